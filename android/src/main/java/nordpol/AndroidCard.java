@@ -5,41 +5,52 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.concurrent.CopyOnWriteArrayList;
 import android.nfc.Tag;
+import android.nfc.TagLostException;
 import android.nfc.tech.IsoDep;
 
-import nordpol.IsoCard;
+import nordpol.ApduFlightRecorder;
+import nordpol.FlightRecordedCard;
 import nordpol.OnCardErrorListener;
 
-public class AndroidCard implements IsoCard {
+public class AndroidCard implements FlightRecordedCard {
     private static final int DEFAULT_TIMEOUT = 15000;
     private static final int SAMSUNG_S5_MINI_MAX = 253;
 
     private IsoDep card;
     private List<OnCardErrorListener> errorListeners =
         new CopyOnWriteArrayList<OnCardErrorListener>();
+    private final ApduFlightRecorder flightRecorder = new ApduFlightRecorder();
 
     private AndroidCard(IsoDep card) {
         this.card = card;
     }
 
     public static AndroidCard get(Tag tag) throws IOException {
-        IsoDep card = IsoDep.get(tag);
-
-        if(card != null) {
-            /* Workaround for the Samsung Galaxy S5 (since the
-             * first connection always hangs on transceive).
-             * TODO: This could be improved if we could identify
-             * Samsung Galaxy S5 devices
-             */
-            card.connect();
-            card.close();
-            return new AndroidCard(card);
-        } else {
-            return null;
+        boolean traced = Tracing.begin("nordpol AndroidCard.get");
+        try {
+            IsoDep card = IsoDep.get(tag);
+
+            if(card != null) {
+                /* Workaround for the Samsung Galaxy S5 (since the
+                 * first connection always hangs on transceive).
+                 * TODO: This could be improved if we could identify
+                 * Samsung Galaxy S5 devices
+                 */
+                card.connect();
+                card.close();
+                return new AndroidCard(card);
+            } else {
+                return null;
+            }
+        } finally {
+            Tracing.end(traced);
         }
     }
 
     private void notifyListeners(IOException exception) {
+        if(exception instanceof TagLostException) {
+            PresenceCheckTuner.getPresenceCheckTuner().tagLost();
+        }
         for(OnCardErrorListener listener: errorListeners) {
             listener.error(this, exception);
         }
@@ -58,12 +69,15 @@ public class AndroidCard implements IsoCard {
     }
 
     public void connect() throws IOException {
+        boolean traced = Tracing.begin("nordpol connect");
         try {
             card.connect();
             card.setTimeout(DEFAULT_TIMEOUT);
         } catch(IOException e) {
             notifyListeners(e);
             throw e;
+        } finally {
+            Tracing.end(traced);
         }
     }
 
@@ -93,7 +107,7 @@ public class AndroidCard implements IsoCard {
 
     public byte[] transceive(byte [] command) throws IOException {
         try {
-            return card.transceive(command);
+            return timedTransceive(command);
         } catch(IOException e) {
             notifyListeners(e);
             throw e;
@@ -104,7 +118,7 @@ public class AndroidCard implements IsoCard {
         try {
             ArrayList<byte[]> responses = new ArrayList<byte[]>();
             for(byte[] command: commands) {
-                responses.add(card.transceive(command));
+                responses.add(timedTransceive(command));
             }
             return responses;
         } catch(IOException e) {
@@ -113,6 +127,40 @@ public class AndroidCard implements IsoCard {
         }
     }
 
+    private byte[] timedTransceive(byte[] command) throws IOException {
+        PresenceCheckTuner tuner = PresenceCheckTuner.getPresenceCheckTuner();
+        long start = System.nanoTime();
+        tuner.transceiveStarted();
+        flightRecorder.recordCommand(command);
+        boolean traced = Tracing.beginTransceive(command);
+        boolean succeeded = false;
+        try {
+            byte[] response = card.transceive(command);
+            succeeded = true;
+            flightRecorder.recordResponse(response);
+            return response;
+        } finally {
+            Tracing.end(traced);
+            if(succeeded) {
+                tuner.transceiveFinished((System.nanoTime() - start) / 1000000);
+            } else {
+                tuner.transceiveFailed();
+            }
+        }
+    }
+
+    /**
+     * Returns the recorder of the last APDUs exchanged with the card. Add a
+     * {@link nordpol.FlightRecorderDumper} to get it dumped on every error.
+     * The dump contains the start of every command and response, which can
+     * include PINs, keys and one time passwords, so do not log it in
+     * release builds.
+     * @return the flight recorder of this card
+     */
+    public ApduFlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
     public Tag getTag() {
         return card.getTag();
     }
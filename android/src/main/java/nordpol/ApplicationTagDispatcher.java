@@ -0,0 +1,216 @@
+package nordpol.android;
+
+import java.util.HashMap;
+import java.util.Map;
+import android.app.Activity;
+import android.app.Application;
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * Exclusive NFC for all activities of an application.
+ * <p>
+ * A TagDispatcher per activity needs enableExclusiveNfc and
+ * disableExclusiveNfc on every resume and pause, so switching screens
+ * tears reader mode down and sets it up again. This class follows the
+ * activity lifecycle instead: reader mode is enabled for an activity as
+ * soon as it resumes, and only then released by the activity before it.
+ * It is only disabled for good if no activity of the application resumes
+ * within {@value #HANDOVER_DELAY} ms, e.g. when the application goes to
+ * the background.
+ * <p>
+ * Tags found by any activity are handed to a {@link TagArbiter}, where
+ * activities, fragments and services subscribe to them. A card connected
+ * through the arbiter stays available after switching screens.
+ * <pre>
+ * {@code
+ * public class MyApplication extends Application {
+ *     public void onCreate() {
+ *         super.onCreate();
+ *         ApplicationTagDispatcher.register(this, TagArbiter.getTagArbiter());
+ *     }
+ * }
+ * }
+ * </pre>
+ * On devices without reader mode, foreground dispatch is used and
+ * disabled as the activity pauses. Activities then need to pass
+ * onNewIntent to {@link #interceptIntent(Activity, Intent)}.
+ */
+public class ApplicationTagDispatcher implements Application.ActivityLifecycleCallbacks {
+    static final int HANDOVER_DELAY = 500;
+
+    /**
+     * Creates the TagDispatchers of the activities
+     */
+    public interface DispatcherFactory {
+        /**
+         * @param activity The activity to create the dispatcher for
+         * @param listener The listener the dispatcher has to hand tags to
+         * @return The dispatcher, or null to leave NFC alone while the
+         * activity is resumed
+         */
+        TagDispatcher create(Activity activity, OnDiscoveredTagListener listener);
+    }
+
+    private static final DispatcherFactory DEFAULT_FACTORY = new DispatcherFactory() {
+            @Override
+            public TagDispatcher create(Activity activity, OnDiscoveredTagListener listener) {
+                return new TagDispatcherBuilder(activity, listener).build();
+            }
+        };
+
+    private final Application application;
+    private final OnDiscoveredTagListener listener;
+    private final DispatcherFactory factory;
+    private final Map<Activity, TagDispatcher> dispatchers = new HashMap<Activity, TagDispatcher>();
+    private TagDispatcher current;
+    private TagDispatcher releasing;
+    private final Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                if(releasing != null) {
+                    releasing.disableExclusiveNfc();
+                    if(releasing == current) {
+                        current = null;
+                    }
+                    releasing = null;
+                }
+            }
+        };
+
+    private ApplicationTagDispatcher(Application application, OnDiscoveredTagListener listener,
+                                     DispatcherFactory factory) {
+        this.application = application;
+        this.listener = listener;
+        this.factory = factory;
+    }
+
+    /**
+     * Register a dispatcher with default settings for all activities
+     * @see #register(Application, OnDiscoveredTagListener, DispatcherFactory)
+     */
+    public static ApplicationTagDispatcher register(Application application,
+                                                    TagArbiter arbiter) {
+        return register(application, arbiter, DEFAULT_FACTORY);
+    }
+
+    /**
+     * Register a dispatcher for the activities of an application. Call
+     * this from Application.onCreate, before any activity is resumed.
+     * @param application The application
+     * @param listener The listener to hand all tags to, typically the
+     * shared {@link TagArbiter}
+     * @param factory Creates the TagDispatcher of each activity, e.g. to
+     * change the settings of the builder
+     * @return The registered dispatcher
+     */
+    public static ApplicationTagDispatcher register(Application application,
+                                                    OnDiscoveredTagListener listener,
+                                                    DispatcherFactory factory) {
+        ApplicationTagDispatcher dispatcher =
+            new ApplicationTagDispatcher(application, listener, factory);
+        application.registerActivityLifecycleCallbacks(dispatcher);
+        return dispatcher;
+    }
+
+    /**
+     * Stop following the activities and disable exclusive NFC
+     */
+    public void unregister() {
+        application.unregisterActivityLifecycleCallbacks(this);
+        TagDispatcher.getUiHandler().removeCallbacks(release);
+        if(current != null) {
+            current.disableExclusiveNfc();
+            current = null;
+        }
+        releasing = null;
+        dispatchers.clear();
+    }
+
+    /**
+     * @return The dispatcher of the activity that currently has exclusive
+     * NFC, or null
+     */
+    public TagDispatcher getCurrentDispatcher() {
+        return current;
+    }
+
+    /**
+     * Hand an intent received by onNewIntent to the dispatcher of the
+     * activity, needed when foreground dispatch is used
+     * @see TagDispatcher#interceptIntent(Intent)
+     */
+    public boolean interceptIntent(Activity activity, Intent intent) {
+        TagDispatcher dispatcher = dispatchers.get(activity);
+        return dispatcher != null && dispatcher.interceptIntent(intent);
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+        TagDispatcher dispatcher = dispatchers.get(activity);
+        if(dispatcher == null && !dispatchers.containsKey(activity)) {
+            dispatcher = factory.create(activity, listener);
+            dispatchers.put(activity, dispatcher);
+        }
+        TagDispatcher previous = releasing;
+        if(previous != null) {
+            TagDispatcher.getUiHandler().removeCallbacks(release);
+            releasing = null;
+        }
+        if(dispatcher != null) {
+            /* Register the new activity before the previous one lets go,
+             * so the reader mode settings never fall back to the default
+             */
+            dispatcher.enableExclusiveNfc();
+        }
+        if(previous != null && previous != dispatcher) {
+            previous.disableExclusiveNfc();
+        }
+        current = dispatcher;
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+        TagDispatcher dispatcher = dispatchers.get(activity);
+        if(dispatcher == null || dispatcher != current) {
+            return;
+        }
+        if(!dispatcher.usesReaderMode()) {
+            dispatcher.disableExclusiveNfc();
+            current = null;
+            return;
+        }
+        releasing = dispatcher;
+        TagDispatcher.getUiHandler().postDelayed(release, HANDOVER_DELAY);
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        /* The platform has already dropped the reader mode of a destroyed
+         * activity, so there is nothing left to hand over. Release its
+         * dispatcher right away, disableExclusiveNfc leaves the adapter
+         * alone for destroyed activities.
+         */
+        TagDispatcher dispatcher = dispatchers.remove(activity);
+        if(dispatcher != null && dispatcher == releasing) {
+            TagDispatcher.getUiHandler().removeCallbacks(release);
+            release.run();
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+}
@@ -0,0 +1,95 @@
+package nordpol.android;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import android.nfc.Tag;
+
+/**
+ * A connected AndroidCard together with the tag it was created from.
+ *
+ * A CardSession is what {@link TagArbiter} keeps around when handing
+ * a card between activities, so that the next listener can continue
+ * using the card without running {@link AndroidCard#get(Tag)} and
+ * {@link AndroidCard#connect()} again.
+ *
+ * Sessions created by {@link TagDispatcher} also carry the responses to
+ * the commands configured with
+ * {@link TagDispatcherBuilder#addPrefetchCommand(byte[])}.
+ */
+public class CardSession {
+    private final Tag tag;
+    private final AndroidCard card;
+    private volatile String selectedAid;
+    private final Map<ByteBuffer, byte[]> prefetchedResponses;
+
+    CardSession(Tag tag, AndroidCard card, String selectedAid) {
+        this(tag, card, selectedAid, Collections.<byte[]>emptyList(),
+             Collections.<byte[]>emptyList());
+    }
+
+    CardSession(Tag tag, AndroidCard card, String selectedAid,
+                List<byte[]> commands, List<byte[]> responses) {
+        this.tag = tag;
+        this.card = card;
+        this.selectedAid = selectedAid;
+        this.prefetchedResponses = new HashMap<ByteBuffer, byte[]>();
+        for(int i = 0; i < commands.size(); i++) {
+            prefetchedResponses.put(ByteBuffer.wrap(commands.get(i)), responses.get(i));
+        }
+    }
+
+    /**
+     * @return The tag the card was created from
+     */
+    public Tag getTag() {
+        return tag;
+    }
+
+    /**
+     * @return The connected card
+     */
+    public AndroidCard getCard() {
+        return card;
+    }
+
+    /**
+     * Returns the AID of the applet last recorded as selected
+     * @return The AID as a hex string or null if unknown
+     */
+    public String getSelectedAid() {
+        return selectedAid;
+    }
+
+    /**
+     * Record the applet that is currently selected on the card, so that
+     * the next user of the session can skip selecting it again
+     * @param selectedAid The AID as a hex string or null if unknown
+     */
+    public void setSelectedAid(String selectedAid) {
+        this.selectedAid = selectedAid;
+    }
+
+    /**
+     * Returns the response the card gave to a prefetched command
+     *
+     * The responses are recorded when the tag is discovered and are not
+     * refreshed, so commands whose response changes the state of the card
+     * should not be prefetched.
+     * @param command The command APDU as configured on the builder
+     * @return The response APDU or null if the command was not prefetched
+     */
+    public byte[] getPrefetchedResponse(byte[] command) {
+        byte[] response = prefetchedResponses.get(ByteBuffer.wrap(command));
+        return response != null ? response.clone() : null;
+    }
+
+    /**
+     * @return true if the card of the session is still connected
+     */
+    public boolean isConnected() {
+        return card.isConnected();
+    }
+}
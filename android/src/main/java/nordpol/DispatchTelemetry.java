@@ -0,0 +1,142 @@
+package nordpol.android;
+
+import nordpol.LatencyHistogram;
+
+/**
+ * Timing of the tags dispatched by a TagDispatcher.
+ * <p>
+ * Every dispatched tag gets a {@link Record} with the time the tag was
+ * reported by Android, the time it was queued for the listener's thread
+ * and the time the listener was invoked. The records are aggregated in
+ * histograms. The time it takes to enable and disable reader mode or
+ * foreground dispatch is kept as well.
+ * <p>
+ * From within {@link OnDiscoveredTagListener#tagDiscovered(android.nfc.Tag)}
+ * the record of the tag being dispatched is available from
+ * {@link #getCurrentRecord()}.
+ */
+public class DispatchTelemetry {
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram listenerLatency = new LatencyHistogram();
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    private final LatencyHistogram enableLatency = new LatencyHistogram();
+    private final LatencyHistogram disableLatency = new LatencyHistogram();
+    private final ThreadLocal<Record> currentRecord = new ThreadLocal<Record>();
+    private volatile Record lastRecord = null;
+
+    /**
+     * The timestamps of a single dispatched tag, taken with
+     * System.nanoTime().
+     */
+    public static class Record {
+        private final long reportedAt;
+        private final long queuedAt;
+        private final long invokedAt;
+        private final TagDispatcher.DispatchMode dispatchMode;
+
+        Record(long reportedAt, long queuedAt, long invokedAt,
+               TagDispatcher.DispatchMode dispatchMode) {
+            this.reportedAt = reportedAt;
+            this.queuedAt = queuedAt;
+            this.invokedAt = invokedAt;
+            this.dispatchMode = dispatchMode;
+        }
+
+        /** @return when the reader callback or the intent reported the tag */
+        public long getReportedAt() {
+            return reportedAt;
+        }
+
+        /** @return when the tag was queued for the listener's thread */
+        public long getQueuedAt() {
+            return queuedAt;
+        }
+
+        /** @return when the listener was invoked */
+        public long getInvokedAt() {
+            return invokedAt;
+        }
+
+        /** @return the mode the tag was dispatched with */
+        public TagDispatcher.DispatchMode getDispatchMode() {
+            return dispatchMode;
+        }
+    }
+
+    DispatchTelemetry() {
+    }
+
+    /**
+     * @return Time from the tag being reported to it being queued,
+     * i.e. the debouncing check. Prefetching runs after queuing and is part
+     * of {@link #getListenerLatency()}
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    /**
+     * @return Time from the tag being queued to the listener being invoked,
+     * including waiting for the dispatch thread and prefetching
+     */
+    public LatencyHistogram getListenerLatency() {
+        return listenerLatency;
+    }
+
+    /**
+     * @return Time from the tag being reported to the listener being invoked
+     */
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    /**
+     * @return Time spent enabling reader mode or foreground dispatch
+     */
+    public LatencyHistogram getEnableLatency() {
+        return enableLatency;
+    }
+
+    /**
+     * @return Time spent disabling reader mode or foreground dispatch
+     */
+    public LatencyHistogram getDisableLatency() {
+        return disableLatency;
+    }
+
+    /**
+     * @return The record of the tag being dispatched on the calling thread,
+     * null if called outside of the listener
+     */
+    public Record getCurrentRecord() {
+        return currentRecord.get();
+    }
+
+    /**
+     * @return The record of the last dispatched tag or null
+     */
+    public Record getLastRecord() {
+        return lastRecord;
+    }
+
+    Record listenerInvoked(long reportedAt, long queuedAt, TagDispatcher.DispatchMode mode) {
+        Record record = new Record(reportedAt, queuedAt, System.nanoTime(), mode);
+        queueLatency.record(record.queuedAt - record.reportedAt);
+        listenerLatency.record(record.invokedAt - record.queuedAt);
+        dispatchLatency.record(record.invokedAt - record.reportedAt);
+        lastRecord = record;
+        currentRecord.set(record);
+        return record;
+    }
+
+    void listenerReturned() {
+        currentRecord.remove();
+    }
+
+    @Override
+    public String toString() {
+        return "queue: " + queueLatency + "\nlistener: " + listenerLatency +
+            "\ndispatch: " + dispatchLatency + "\nenable: " + enableLatency +
+            "\ndisable: " + disableLatency;
+    }
+}
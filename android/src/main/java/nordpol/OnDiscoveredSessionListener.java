@@ -0,0 +1,15 @@
+package nordpol.android;
+
+/**
+ * A listener that can receive a card that TagDispatcher already
+ * connected to, see {@link TagDispatcherBuilder#addPrefetchCommand(byte[])}.
+ */
+public interface OnDiscoveredSessionListener extends OnDiscoveredTagListener {
+    /** Use the connected card of the session.
+     * Called instead of {@link #tagDiscovered(android.nfc.Tag)} when the
+     * prefetch commands could be sent to the card.
+     * @see CardSession#getPrefetchedResponse(byte[])
+     * @param session the connected card and the prefetched responses
+     */
+    public void sessionDiscovered(CardSession session);
+}
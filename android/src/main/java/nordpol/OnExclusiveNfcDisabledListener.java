@@ -0,0 +1,9 @@
+package nordpol.android;
+
+public interface OnExclusiveNfcDisabledListener {
+    /** Called after {@link TagDispatcher#disableExclusiveNfc()} has run.
+     * No more tags will be dispatched until NFC is enabled again.
+     * @param tagDispatcher the TagDispatcher that was disabled
+     */
+    public void exclusiveNfcDisabled(TagDispatcher tagDispatcher);
+}
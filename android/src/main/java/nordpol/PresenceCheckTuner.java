@@ -0,0 +1,102 @@
+package nordpol.android;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tunes the reader mode presence check delay to the observed commands.
+ * <p>
+ * The fixed presence check delay of the Broadcom workaround has to be
+ * long enough for the slowest command of any card, which makes removal
+ * of the card detected late. The platform pauses the presence check
+ * while a command is being transceived, so the delay only needs to
+ * cover the time a card keeps processing in between commands. This
+ * class keeps track of how long the commands sent through
+ * {@link AndroidCard} take and suggests a delay proportional to the
+ * slowest recent ones.
+ * <p>
+ * A TagDispatcher using the adaptive presence check re-arms reader mode
+ * with the suggested delay whenever a tag is lost and no command is in
+ * flight. See {@link TagDispatcherBuilder#enableAdaptivePresenceCheck(boolean)}.
+ */
+public class PresenceCheckTuner {
+    static final int MAX_DELAY = 5000;
+    static final int MIN_DELAY = 250;
+    private static final int DURATION_FACTOR = 2;
+    private static final float DECAY = 0.9f;
+
+    private static PresenceCheckTuner instance = new PresenceCheckTuner();
+
+    private final List<OnTagLostListener> listeners =
+        new CopyOnWriteArrayList<OnTagLostListener>();
+    private int activeTransceives = 0;
+    private float recentMaxDuration = -1;
+
+    interface OnTagLostListener {
+        void tagLost(PresenceCheckTuner tuner);
+    }
+
+    PresenceCheckTuner() {
+    }
+
+    /**
+     * Factory method that returns a singleton instance of this class
+     * @return The singleton instance of this class
+     */
+    public static PresenceCheckTuner getPresenceCheckTuner() {
+        return instance;
+    }
+
+    /**
+     * Returns the suggested presence check delay
+     * @return the delay in milliseconds, {@value #MAX_DELAY} if no command
+     * has been observed yet
+     */
+    public synchronized int getPresenceCheckDelay() {
+        if(recentMaxDuration < 0) {
+            return MAX_DELAY;
+        }
+        int delay = (int) (recentMaxDuration * DURATION_FACTOR);
+        return Math.max(MIN_DELAY, Math.min(MAX_DELAY, delay));
+    }
+
+    /**
+     * @return true if a command is currently being transceived
+     */
+    public synchronized boolean isTransceiving() {
+        return activeTransceives > 0;
+    }
+
+    synchronized void transceiveStarted() {
+        activeTransceives++;
+    }
+
+    synchronized void transceiveFinished(long durationMillis) {
+        activeTransceives--;
+        if(recentMaxDuration < 0) {
+            recentMaxDuration = durationMillis;
+        } else {
+            recentMaxDuration = Math.max(durationMillis, recentMaxDuration * DECAY);
+        }
+    }
+
+    /* A failed command, e.g. after the tag was lost or timed out, says
+     * nothing about how long the card takes to process commands */
+    synchronized void transceiveFailed() {
+        activeTransceives--;
+    }
+
+    void tagLost() {
+        for(OnTagLostListener listener: listeners) {
+            listener.tagLost(this);
+        }
+    }
+
+    void addOnTagLostListener(OnTagLostListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeOnTagLostListener(OnTagLostListener listener) {
+        listeners.remove(listener);
+    }
+}
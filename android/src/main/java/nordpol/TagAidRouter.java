@@ -0,0 +1,93 @@
+package nordpol.android;
+
+import java.io.IOException;
+import android.nfc.Tag;
+
+import nordpol.AidRouter;
+
+/**
+ * Hands discovered tags to an {@link AidRouter}.
+ * <p>
+ * The card is connected, routed using the tag ID as UID and closed again
+ * once the handler returns, so handlers must not keep the card around.
+ * Tags without IsoDep or without a routed applet go to the fallback
+ * listener, if there is one. If connecting, probing or a handler fails,
+ * the error goes to the {@link OnRoutingFailedListener} instead.
+ * <p>
+ * Routing talks to the card and may write the state file of the router,
+ * so it blocks. The TagDispatcher must therefore not dispatch on the UI
+ * thread:
+ * <pre>
+ * {@code
+ * AidRouter router = new AidRouter(new File(getFilesDir(), "aid-router"))
+ *     .addRoute("A000000617", fidesmoHandler)
+ *     .addRoute("A0000005272101", oathHandler);
+ * TagDispatcher dispatcher =
+ *     new TagDispatcherBuilder(this, new TagAidRouter(router, null, errorListener))
+ *         .enableDispatchingOnUiThread(false)
+ *         .build();
+ * }
+ * </pre>
+ */
+public class TagAidRouter implements OnDiscoveredTagListener {
+    /**
+     * Notified when a tag could not be routed due to an error
+     */
+    public interface OnRoutingFailedListener {
+        /**
+         * @param tag The tag that was being routed
+         * @param exception The error connecting, probing or handling the card
+         */
+        public void routingFailed(Tag tag, IOException exception);
+    }
+
+    private final AidRouter router;
+    private final OnDiscoveredTagListener fallback;
+    private final OnRoutingFailedListener errorListener;
+
+    /**
+     * Creates a router that drops routing errors
+     * @param router The router to hand cards to
+     * @param fallback The listener for tags that could not be routed, or null
+     */
+    public TagAidRouter(AidRouter router, OnDiscoveredTagListener fallback) {
+        this(router, fallback, null);
+    }
+
+    /**
+     * @param router The router to hand cards to
+     * @param fallback The listener for tags without a routed applet, or null
+     * @param errorListener The listener for tags that failed to route, or
+     * null to drop the errors
+     */
+    public TagAidRouter(AidRouter router, OnDiscoveredTagListener fallback,
+                        OnRoutingFailedListener errorListener) {
+        this.router = router;
+        this.fallback = fallback;
+        this.errorListener = errorListener;
+    }
+
+    @Override
+    public void tagDiscovered(Tag tag) {
+        String aid = null;
+        try {
+            AndroidCard card = AndroidCard.get(tag);
+            if(card != null) {
+                card.connect();
+                try {
+                    aid = router.route(card, tag.getId());
+                } finally {
+                    card.close();
+                }
+            }
+        } catch(IOException e) {
+            if(errorListener != null) {
+                errorListener.routingFailed(tag, e);
+            }
+            return;
+        }
+        if(aid == null && fallback != null) {
+            fallback.tagDiscovered(tag);
+        }
+    }
+}
@@ -1,7 +1,20 @@
 package nordpol.android;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import android.nfc.Tag;
+import android.nfc.TagLostException;
 
+import nordpol.IsoCard;
+import nordpol.OnCardErrorListener;
 import nordpol.android.OnDiscoveredTagListener;
 
 /**
@@ -18,16 +31,34 @@ import nordpol.android.OnDiscoveredTagListener;
  * it can be used by any other activity that needs it. As long as
  * TagArbiter.tagErrored is not called, the tag found will be kept and
  * can be safely reused among several activities.
+ *
+ * Besides the raw tag the arbiter can also keep a connected card, see
+ * {@link #acquireCard(Tag)}. Handing over the connected card saves the
+ * next activity from reconnecting to the card. The card is kept until
+ * the tag errs or is lost. Sessions prefetched by the TagDispatcher are
+ * kept the same way.
+ *
+ * Several parts of an app can wait for tags at the same time, e.g. a UI
+ * and a background service. Listeners are registered with a priority
+ * using {@link #addListener(OnDiscoveredTagListener, int)}, and
+ * {@link #awaitTag(long, TimeUnit)} returns a Future that a worker can
+ * block on. A tag is handed to all subscribers of the highest priority
+ * currently registered.
 
  * From an end user perspective, this class enables the end user to
  * present their device to the phone once and keep it there while
  * switching between different activities.
  */
 
-public class TagArbiter implements OnDiscoveredTagListener {
+public class TagArbiter implements OnDiscoveredSessionListener {
     private static TagArbiter instance = new TagArbiter();
-    private OnDiscoveredTagListener onDiscoveredTagListener = null;
-    private Tag lastTag = null;
+    /** The priority of the listener set with {@link #setListener(OnDiscoveredTagListener)} */
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private final AtomicReference<Subscriber> defaultSubscriber = new AtomicReference<Subscriber>();
+    private final AtomicReference<Tag> lastTag = new AtomicReference<Tag>();
+    private final AtomicReference<CardSession> session = new AtomicReference<CardSession>();
 
     /**
      * Set a listener to receive a tag found by any activity
@@ -35,14 +66,23 @@ public class TagArbiter implements OnDiscoveredTagListener {
      * This method either registers the listener for later dispatch
      * when a tag arrives pr calls it immediately on the same thread
      * if a tag has already been found.  Only a single listener is
-     * allowed so this method overwrites any existing listener
-     * claiming the event for itself.
+     * allowed through this method so it overwrites any existing listener
+     * set here, claiming the event for itself. The listener has the
+     * priority {@link #DEFAULT_PRIORITY}.
      * @param onDiscoveredTagListener The listener that requires a tag
      */
     public void setListener(OnDiscoveredTagListener onDiscoveredTagListener) {
-        this.onDiscoveredTagListener = onDiscoveredTagListener;
-        if(lastTag != null && this.onDiscoveredTagListener != null) {
-            this.onDiscoveredTagListener.tagDiscovered(lastTag);
+        Subscriber subscriber = null;
+        if(onDiscoveredTagListener != null) {
+            subscriber = new Subscriber(onDiscoveredTagListener, null, DEFAULT_PRIORITY);
+            subscribers.add(subscriber);
+        }
+        Subscriber previous = defaultSubscriber.getAndSet(subscriber);
+        if(previous != null) {
+            subscribers.remove(previous);
+        }
+        if(subscriber != null) {
+            deliverIfTopPriority(subscriber);
         }
     }
 
@@ -50,27 +90,161 @@ public class TagArbiter implements OnDiscoveredTagListener {
      * Removes the current listener from the arbiter
      */
     public void unsetListener() {
-        onDiscoveredTagListener = null;
+        Subscriber previous = defaultSubscriber.getAndSet(null);
+        if(previous != null) {
+            subscribers.remove(previous);
+        }
+    }
+
+    /**
+     * Add a listener to receive tags found by any activity
+     *
+     * Tags are only handed to the listeners with the highest priority
+     * registered. If a tag has already been found and the listener has
+     * the highest priority it is called immediately on the same thread.
+     * @param listener The listener that requires tags
+     * @param priority The priority of the listener, higher goes first
+     */
+    public void addListener(OnDiscoveredTagListener listener, int priority) {
+        Subscriber subscriber = new Subscriber(listener, null, priority);
+        subscribers.add(subscriber);
+        deliverIfTopPriority(subscriber);
+    }
+
+    /**
+     * Removes a listener added with {@link #addListener(OnDiscoveredTagListener, int)}
+     * @param listener The listener to remove
+     */
+    public void removeListener(OnDiscoveredTagListener listener) {
+        for(Subscriber subscriber: subscribers) {
+            if(subscriber.listener == listener && subscriber != defaultSubscriber.get()) {
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Wait for the next tag with {@link #DEFAULT_PRIORITY}
+     * @see #awaitTag(int, long, TimeUnit)
+     * @param timeout How long to wait for a tag
+     * @param unit The unit of the timeout
+     * @return A future completed with the tag
+     */
+    public Future<Tag> awaitTag(long timeout, TimeUnit unit) {
+        return awaitTag(DEFAULT_PRIORITY, timeout, unit);
+    }
+
+    /**
+     * Wait for a tag
+     *
+     * If a tag has already been found and nothing of higher priority is
+     * registered the future is completed right away, otherwise with the
+     * next tag found. The future takes part in the priority ordering
+     * like a listener until it is completed, cancelled or times out.
+     * Once the timeout has passed {@link Future#get()} throws an
+     * ExecutionException caused by a TimeoutException, and
+     * {@link Future#get(long, TimeUnit)} a TimeoutException.
+     * @param priority The priority of the request, higher goes first
+     * @param timeout How long to wait for a tag
+     * @param unit The unit of the timeout
+     * @return A future completed with the tag
+     */
+    public Future<Tag> awaitTag(int priority, long timeout, TimeUnit unit) {
+        TagFuture future = new TagFuture(System.nanoTime() + unit.toNanos(timeout));
+        Subscriber subscriber = new Subscriber(null, future, priority);
+        future.subscriber = subscriber;
+        subscribers.add(subscriber);
+        deliverIfTopPriority(subscriber);
+        return future;
     }
 
     @Override
     public void tagDiscovered(Tag tag) {
-        if(onDiscoveredTagListener != null) {
-            onDiscoveredTagListener.tagDiscovered(tag);
-        }
-        lastTag = tag;
+        tagArrived(tag);
+        notifyListener(tag);
+    }
+
+    @Override
+    public void sessionDiscovered(CardSession discovered) {
+        tagArrived(discovered.getTag());
+        keepSession(discovered);
+        notifyListener(discovered.getTag());
     }
 
     /**
      * Reset a tag previously found e.g. if it erred
      *
      * If the tag provided equals the current lastTag, forget about it
-     * by nulling it.
+     * by nulling it. A connected card kept for the tag is closed.
      * @param tag The tag that erred
      */
     public void tagErrored(Tag tag) {
-        if(lastTag == tag)
-            lastTag = null;
+        lastTag.compareAndSet(tag, null);
+        CardSession current = session.get();
+        if(current != null && current.getTag() == tag) {
+            dropSession(current);
+        }
+    }
+
+    /**
+     * Get a connected card for the tag
+     *
+     * If the arbiter holds a connected card for the tag, that card is
+     * returned as is, including its selected applet. Otherwise a new
+     * card is created and connected and the arbiter keeps it for the
+     * next caller.
+     * @param tag The tag to get a card for
+     * @return A connected card or null if the tag does not support IsoDep
+     * @throws IOException if connecting to the card fails
+     */
+    public AndroidCard acquireCard(Tag tag) throws IOException {
+        CardSession current = getSession(tag);
+        if(current != null) {
+            return current.getCard();
+        }
+        AndroidCard card = AndroidCard.get(tag);
+        if(card == null) {
+            return null;
+        }
+        card.connect();
+        /* If someone else connected the tag concurrently, use theirs */
+        return keepCard(card, null).getCard();
+    }
+
+    /**
+     * Keep an already connected card to be handed to the next listener
+     *
+     * If the arbiter already holds a connected card for the same tag,
+     * that session is kept and returned instead and the given card is
+     * closed.
+     * @param card The connected card
+     * @param selectedAid The AID of the currently selected applet or null
+     * @return The session held by the arbiter
+     */
+    public CardSession keepCard(AndroidCard card, String selectedAid) {
+        CardSession current = session.get();
+        if(current != null && current.getCard() == card) {
+            current.setSelectedAid(selectedAid);
+            return current;
+        }
+        return keepSession(new CardSession(card.getTag(), card, selectedAid));
+    }
+
+    /**
+     * Get the connected card kept for the tag
+     * @param tag The tag the session was created from
+     * @return The session or null if no connected card is kept for the tag
+     */
+    public CardSession getSession(Tag tag) {
+        CardSession current = session.get();
+        if(current == null || current.getTag() != tag) {
+            return null;
+        }
+        if(!current.isConnected()) {
+            dropSession(current);
+            return null;
+        }
+        return current;
     }
 
     /**
@@ -80,4 +254,190 @@ public class TagArbiter implements OnDiscoveredTagListener {
     public static TagArbiter getTagArbiter() {
         return instance;
     }
+
+    private void tagArrived(Tag tag) {
+        Tag previous = lastTag.getAndSet(tag);
+        if(previous != tag) {
+            /* A new discovery invalidates the connection to the old tag */
+            CardSession current = session.get();
+            if(current != null && current.getTag() != tag) {
+                dropSession(current);
+            }
+        }
+    }
+
+    private void notifyListener(Tag tag) {
+        int top = topPriority();
+        for(Subscriber subscriber: subscribers) {
+            if(subscriber.isActive() && subscriber.priority == top) {
+                subscriber.deliver(tag);
+            }
+        }
+    }
+
+    private void deliverIfTopPriority(Subscriber subscriber) {
+        Tag tag = lastTag.get();
+        if(tag != null && subscriber.priority >= topPriority()) {
+            subscriber.deliver(tag);
+        }
+    }
+
+    private int topPriority() {
+        int top = Integer.MIN_VALUE;
+        for(Subscriber subscriber: subscribers) {
+            if(!subscriber.isActive()) {
+                subscribers.remove(subscriber);
+            } else if(subscriber.priority > top) {
+                top = subscriber.priority;
+            }
+        }
+        return top;
+    }
+
+    private CardSession keepSession(CardSession created) {
+        while(true) {
+            CardSession current = session.get();
+            if(current == created) {
+                return current;
+            }
+            if(current != null && current.getTag() == created.getTag() &&
+               current.isConnected()) {
+                if(current.getCard() != created.getCard()) {
+                    closeQuietly(created.getCard());
+                }
+                return current;
+            }
+            if(session.compareAndSet(current, created)) {
+                if(current != null) {
+                    closeQuietly(current.getCard());
+                }
+                created.getCard().addOnCardErrorListener(new SessionErrorListener(created));
+                return created;
+            }
+        }
+    }
+
+    private void dropSession(CardSession current) {
+        if(session.compareAndSet(current, null)) {
+            closeQuietly(current.getCard());
+        }
+    }
+
+    private static void closeQuietly(AndroidCard card) {
+        try {
+            card.close();
+        } catch(IOException e) {
+            /* The card is going away anyway */
+        }
+    }
+
+    private class Subscriber {
+        final OnDiscoveredTagListener listener;
+        final TagFuture future;
+        final int priority;
+
+        Subscriber(OnDiscoveredTagListener listener, TagFuture future, int priority) {
+            this.listener = listener;
+            this.future = future;
+            this.priority = priority;
+        }
+
+        boolean isActive() {
+            return future == null || !future.isDoneOrExpired();
+        }
+
+        void deliver(Tag tag) {
+            if(listener != null) {
+                listener.tagDiscovered(tag);
+            } else if(future.complete(tag)) {
+                subscribers.remove(this);
+            }
+        }
+    }
+
+    private class TagFuture implements Future<Tag> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final long deadline;
+        private final AtomicReference<Object> result = new AtomicReference<Object>();
+        Subscriber subscriber;
+
+        TagFuture(long deadline) {
+            this.deadline = deadline;
+        }
+
+        boolean complete(Object value) {
+            if(result.compareAndSet(null, value)) {
+                done.countDown();
+                return true;
+            }
+            return false;
+        }
+
+        boolean isDoneOrExpired() {
+            return isDone() || System.nanoTime() - deadline >= 0;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = complete(CANCELLED);
+            subscribers.remove(subscriber);
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return result.get() == CANCELLED;
+        }
+
+        @Override
+        public boolean isDone() {
+            return result.get() != null;
+        }
+
+        @Override
+        public Tag get() throws InterruptedException, ExecutionException {
+            try {
+                return await(deadline - System.nanoTime());
+            } catch(TimeoutException e) {
+                throw new ExecutionException(e);
+            }
+        }
+
+        @Override
+        public Tag get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            return await(Math.min(unit.toNanos(timeout), deadline - System.nanoTime()));
+        }
+
+        private Tag await(long nanos) throws InterruptedException, TimeoutException {
+            if(!done.await(Math.max(0, nanos), TimeUnit.NANOSECONDS)) {
+                if(System.nanoTime() - deadline >= 0) {
+                    subscribers.remove(subscriber);
+                }
+                throw new TimeoutException("No tag found in time");
+            }
+            Object value = result.get();
+            if(value == CANCELLED) {
+                throw new CancellationException();
+            }
+            return (Tag) value;
+        }
+    }
+
+    private static final Object CANCELLED = new Object();
+
+    private class SessionErrorListener implements OnCardErrorListener {
+        private final CardSession owner;
+
+        SessionErrorListener(CardSession owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void error(IsoCard card, IOException exception) {
+            if(exception instanceof TagLostException) {
+                card.removeOnCardErrorListener(this);
+                dropSession(owner);
+            }
+        }
+    }
 }
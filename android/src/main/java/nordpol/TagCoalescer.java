@@ -0,0 +1,98 @@
+package nordpol.android;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Suppresses repeated reports of the same tag.
+ *
+ * Reader mode and foreground dispatch tend to report a card several
+ * times when it is wobbled in the field. Reports are keyed on the tag
+ * UID and a report is considered a duplicate while a session for that
+ * UID is active or if the session ended less than the window ago.
+ */
+class TagCoalescer {
+    private final long window;
+    private final Map<ByteBuffer, Entry> entries = new HashMap<ByteBuffer, Entry>();
+    private long dispatchedCount = 0;
+    private long suppressedCount = 0;
+
+    private static class Entry {
+        int activeSessions = 0;
+        long lastSeen;
+    }
+
+    TagCoalescer(long window) {
+        this.window = window;
+    }
+
+    /**
+     * Registers a report of a tag
+     * @param uid The UID of the reported tag
+     * @return true if a session should be started for the tag, false if
+     * the report is a duplicate
+     */
+    synchronized boolean tagReported(byte[] uid) {
+        long now = SystemClock.elapsedRealtime();
+        expire(now);
+        if(uid == null || uid.length == 0) {
+            dispatchedCount++;
+            return true;
+        }
+        ByteBuffer key = ByteBuffer.wrap(uid.clone());
+        Entry entry = entries.get(key);
+        if(entry != null &&
+           (entry.activeSessions > 0 || now - entry.lastSeen < window)) {
+            /* Prolong the window while the card keeps bouncing */
+            entry.lastSeen = now;
+            suppressedCount++;
+            return false;
+        }
+        if(entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        entry.activeSessions++;
+        entry.lastSeen = now;
+        dispatchedCount++;
+        return true;
+    }
+
+    /**
+     * Marks the session of a tag previously accepted by
+     * {@link #tagReported(byte[])} as ended
+     * @param uid The UID of the tag
+     */
+    synchronized void sessionEnded(byte[] uid) {
+        if(uid == null || uid.length == 0) {
+            return;
+        }
+        Entry entry = entries.get(ByteBuffer.wrap(uid));
+        if(entry != null && entry.activeSessions > 0) {
+            entry.activeSessions--;
+            entry.lastSeen = SystemClock.elapsedRealtime();
+        }
+    }
+
+    synchronized long getDispatchedCount() {
+        return dispatchedCount;
+    }
+
+    synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    private void expire(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while(iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(entry.activeSessions == 0 && now - entry.lastSeen >= window) {
+                iterator.remove();
+            }
+        }
+    }
+}
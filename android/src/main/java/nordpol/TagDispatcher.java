@@ -10,11 +10,29 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.AsyncTask;
 import android.os.Looper;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.widget.Toast;
 
+import nordpol.Apdu;
+import nordpol.OperationContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * TagDispatcher provides a unified, simple and exclusive interface for NFC.
  * <p>
@@ -37,17 +55,41 @@ import android.widget.Toast;
  * <p>
  * You'll be notified about new tags through the OnDiscoveredTagListener
  * interface that you provided when setting up TagDispatcher.
+ * <p>
+ * Work on a card that should not outlive the activity can be bound to it
+ * with {@link #newOperationContext(long, TimeUnit)}. Such contexts are
+ * cancelled by {@link #disableExclusiveNfc()}, closing their cards.
  */
 public class TagDispatcher {
     private static final int DELAY_PRESENCE = 5000;
+    private static final int DISPATCH_THREAD_KEEP_ALIVE = 60;
+    private static final byte[] OK_STATUS = Apdu.decodeHex(Apdu.OK_APDU);
+
+    private static Handler uiHandler = null;
+    private static Executor defaultExecutor = null;
 
     private OnDiscoveredTagListener tagDiscoveredListener;
     private boolean handleUnavailableNfc;
     private boolean disableSounds;
-    private boolean dispatchOnUiThread;
+    private DispatchMode dispatchMode;
+    private Executor dispatchExecutor;
+    private Handler dispatchHandler;
+    private TagCoalescer tagCoalescer;
+    private List<byte[]> prefetchCommands = new ArrayList<byte[]>();
     private boolean broadcomWorkaround;
+    private boolean adaptivePresenceCheck;
+    private volatile int armedPresenceDelay = 0;
+    private volatile boolean readerModeEnabled = false;
+    private PresenceCheckTuner.OnTagLostListener presenceCheckRearmer;
+    private final DispatchTelemetry telemetry = new DispatchTelemetry();
+    private List<OnExclusiveNfcDisabledListener> disabledListeners =
+        new CopyOnWriteArrayList<OnExclusiveNfcDisabledListener>();
+    private final Set<OperationContext> operationContexts =
+        Collections.newSetFromMap(new WeakHashMap<OperationContext, Boolean>());
     private boolean noReaderMode;
     private boolean disableNdefCheck;
+    private boolean tracing;
+    private boolean tracingAcquired = false;
     private Activity activity;
 
     public enum NfcStatus {
@@ -56,15 +98,43 @@ public class TagDispatcher {
        NOT_AVAILABLE
     }
 
+    /**
+     * The thread that tags are handed to the OnDiscoveredTagListener on.
+     */
+    public enum DispatchMode {
+       /** Tags are posted to the main looper */
+       UI_THREAD,
+       /** Tags are handed to an Executor or a HandlerThread */
+       BACKGROUND,
+       /** Tags are delivered directly on the thread reporting them */
+       READER_THREAD
+    }
+
     TagDispatcher(TagDispatcherBuilder tagDispatcherBuilder) {
       this.activity = tagDispatcherBuilder.activity;
       this.tagDiscoveredListener = tagDispatcherBuilder.tagDiscoveredListener;
       this.handleUnavailableNfc = tagDispatcherBuilder.enableUnavailableNfcUserPrompt;
       this.disableSounds = !tagDispatcherBuilder.enableSounds;
-      this.dispatchOnUiThread = tagDispatcherBuilder.enableDispatchingOnUiThread;
+      if(tagDispatcherBuilder.enableDispatchingOnReaderThread) {
+          this.dispatchMode = DispatchMode.READER_THREAD;
+      } else if(tagDispatcherBuilder.enableDispatchingOnUiThread) {
+          this.dispatchMode = DispatchMode.UI_THREAD;
+      } else {
+          this.dispatchMode = DispatchMode.BACKGROUND;
+      }
+      if(tagDispatcherBuilder.dispatchHandlerThread != null) {
+          this.dispatchHandler = new Handler(tagDispatcherBuilder.dispatchHandlerThread.getLooper());
+      }
+      this.dispatchExecutor = tagDispatcherBuilder.dispatchExecutor;
+      if(tagDispatcherBuilder.debounceWindow > 0) {
+          this.tagCoalescer = new TagCoalescer(tagDispatcherBuilder.debounceWindow);
+      }
+      this.prefetchCommands = new ArrayList<byte[]>(tagDispatcherBuilder.prefetchCommands);
       this.broadcomWorkaround = tagDispatcherBuilder.enableBroadcomWorkaround;
+      this.adaptivePresenceCheck = tagDispatcherBuilder.enableAdaptivePresenceCheck;
       this.noReaderMode = !tagDispatcherBuilder.enableReaderMode;
       this.disableNdefCheck = !tagDispatcherBuilder.enableNdefCheck;
+      this.tracing = tagDispatcherBuilder.enableTracing;
     }
 
     TagDispatcher(Activity activity,
@@ -79,7 +149,7 @@ public class TagDispatcher {
         this.tagDiscoveredListener = tagDiscoveredListener;
         this.handleUnavailableNfc = handleUnavailableNfc;
         this.disableSounds = disableSounds;
-        this.dispatchOnUiThread = dispatchOnUiThread;
+        this.dispatchMode = dispatchOnUiThread ? DispatchMode.UI_THREAD : DispatchMode.BACKGROUND;
         this.broadcomWorkaround = broadcomWorkaround;
         this.noReaderMode = noReaderMode;
         this.disableNdefCheck = disableNdefCheck;
@@ -256,11 +326,14 @@ public class TagDispatcher {
                 }
                 return NfcStatus.AVAILABLE_DISABLED;
             }
+            long start = System.nanoTime();
+            acquireTracing();
             if (!noReaderMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                 enableReaderMode(adapter);
             } else {
                 enableForegroundDispatch(adapter);
             }
+            telemetry.getEnableLatency().record(System.nanoTime() - start);
             return NfcStatus.AVAILABLE_ENABLED;
         }
         if (handleUnavailableNfc) toastMessage("NFC is not available on this device");
@@ -274,14 +347,97 @@ public class TagDispatcher {
     public void disableExclusiveNfc() {
         NfcAdapter adapter = NfcAdapter.getDefaultAdapter(activity);
         if (adapter != null) {
+            long start = System.nanoTime();
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                 disableReaderMode(adapter);
             } else {
                 disableForegroundDispatch(adapter);
             }
+            telemetry.getDisableLatency().record(System.nanoTime() - start);
+        }
+        releaseTracing();
+        cancelOperationContexts();
+        for(OnExclusiveNfcDisabledListener listener: disabledListeners) {
+            listener.exclusiveNfcDisabled(this);
+        }
+    }
+
+    /**
+     * Creates a context for an operation that ends with the activity
+     * <p>
+     * The context is cancelled by {@link #disableExclusiveNfc()}, so cards
+     * wrapped with {@link OperationContext#wrap(nordpol.IsoCard)} are
+     * closed and their pending commands fail as soon as the activity
+     * pauses, instead of running into the card timeout. Finish the context
+     * to keep a card open, e.g. when handing it on through
+     * {@link TagArbiter}.
+     * @param timeout The time the operation may take from now
+     * @param unit The unit of timeout
+     * @return The new context
+     */
+    public OperationContext newOperationContext(long timeout, TimeUnit unit) {
+        return registerOperationContext(new OperationContext(timeout, unit));
+    }
+
+    /**
+     * Creates a context without a deadline for an operation that ends with
+     * the activity
+     * @see #newOperationContext(long, TimeUnit)
+     */
+    public OperationContext newOperationContext() {
+        return registerOperationContext(new OperationContext());
+    }
+
+    private OperationContext registerOperationContext(OperationContext context) {
+        synchronized(operationContexts) {
+            operationContexts.add(context);
+        }
+        return context;
+    }
+
+    private void cancelOperationContexts() {
+        List<OperationContext> contexts;
+        synchronized(operationContexts) {
+            contexts = new ArrayList<OperationContext>(operationContexts);
+            operationContexts.clear();
+        }
+        for(OperationContext context: contexts) {
+            context.cancel();
+        }
+    }
+
+    /* Card sections are traced while any tracing dispatcher is enabled */
+    private void acquireTracing() {
+        if(tracing && !tracingAcquired) {
+            tracingAcquired = true;
+            Tracing.acquire();
         }
     }
 
+    private void releaseTracing() {
+        if(tracingAcquired) {
+            tracingAcquired = false;
+            Tracing.release();
+        }
+    }
+
+    /**
+     * Add a listener to be notified when exclusive NFC access is disabled.
+     * @param listener The listener to add
+     */
+    public void addOnExclusiveNfcDisabledListener(OnExclusiveNfcDisabledListener listener) {
+        disabledListeners.add(listener);
+    }
+
+    /**
+     * Remove a listener added with
+     * {@link #addOnExclusiveNfcDisabledListener(OnExclusiveNfcDisabledListener)}.
+     * @param listener The listener to remove
+     */
+    public void removeOnExclusiveNfcDisabledListener(OnExclusiveNfcDisabledListener listener) {
+        disabledListeners.remove(listener);
+    }
+
     /** Call the TagDispatcher's listener.
      * This applies only to older Android versions (pre-KITKAT) and must
      * be called from onNewIntent(...) in the TagDispatcher's activity.
@@ -293,35 +449,224 @@ public class TagDispatcher {
     public boolean interceptIntent(Intent intent) {
         Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
         if(tag != null) {
-            dispatchTag(tag);
+            dispatchTag(tag, System.nanoTime());
             return true;
         } else {
             return false;
         }
     }
 
-    private void dispatchTag(final Tag tag) {
-        if(dispatchOnUiThread) {
-            if(Looper.myLooper() != Looper.getMainLooper()) {
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
-                        @Override
-                        public void run() {
-                            tagDiscoveredListener.tagDiscovered(tag);
-                        }
-                    });
+    /**
+     * Returns the mode used to hand tags to the listener.
+     * @return the DispatchMode of this TagDispatcher
+     */
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * Returns the number of tag reports that were suppressed as duplicates.
+     * @see TagDispatcherBuilder#setDebounceWindow(int)
+     * @return the number of suppressed tag reports, 0 if debouncing is off
+     */
+    public long getSuppressedTagCount() {
+        return tagCoalescer != null ? tagCoalescer.getSuppressedCount() : 0;
+    }
+
+    /**
+     * Returns the number of tags that were dispatched to the listener.
+     * Only counted if debouncing is enabled.
+     * @see TagDispatcherBuilder#setDebounceWindow(int)
+     * @return the number of dispatched tags, 0 if debouncing is off
+     */
+    public long getDispatchedTagCount() {
+        return tagCoalescer != null ? tagCoalescer.getDispatchedCount() : 0;
+    }
+
+    /**
+     * Returns the timing of dispatched tags and of enabling and disabling
+     * exclusive NFC access.
+     * @return the DispatchTelemetry of this TagDispatcher
+     */
+    public DispatchTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    private void dispatchTag(Tag tag, long reportedAt) {
+        if(tagCoalescer != null && !tagCoalescer.tagReported(tag.getId())) {
+            return;
+        }
+        Dispatch dispatch = new Dispatch(tag, reportedAt, System.nanoTime());
+        try {
+            submit(dispatch);
+        } catch(RejectedExecutionException e) {
+            /* The dispatch never runs to end the session itself */
+            if(tagCoalescer != null) {
+                tagCoalescer.sessionEnded(tag.getId());
+            }
+            throw e;
+        }
+    }
+
+    private void submit(Dispatch dispatch) {
+        switch(dispatchMode) {
+        case UI_THREAD:
+            if(dispatch.prefetchPending) {
+                /* Connect on the dispatch thread, Dispatch posts itself to
+                 * the main looper once the card has answered */
+                getDefaultExecutor().execute(dispatch);
+            } else if(Looper.myLooper() != Looper.getMainLooper()) {
+                getUiHandler().post(dispatch);
+            } else {
+                dispatch.run();
+            }
+            break;
+        case BACKGROUND:
+            if(dispatchHandler != null) {
+                if(!dispatchHandler.post(dispatch)) {
+                    throw new RejectedExecutionException("Dispatch thread has quit");
+                }
+            } else if(dispatchExecutor != null) {
+                dispatchExecutor.execute(dispatch);
             } else {
-                tagDiscoveredListener.tagDiscovered(tag);
+                getDefaultExecutor().execute(dispatch);
             }
+            break;
+        case READER_THREAD:
+            dispatch.run();
+            break;
+        }
+    }
 
-        } else {
-            new AsyncTask<Void, Void, Void>() {
-                @Override
-                protected Void doInBackground(Void... aParams) {
-                    tagDiscoveredListener.tagDiscovered(tag);
-                    return null;
+    /* Sends the prefetch commands and calls the listener. The card I/O
+     * runs on the thread the tag is dispatched on, never on the one
+     * reporting it, as that is the main thread for foreground dispatch.
+     */
+    private class Dispatch implements Runnable {
+        private final Tag tag;
+        private final long reportedAt;
+        private final long queuedAt;
+        private boolean prefetchPending;
+        private CardSession session = null;
+
+        Dispatch(Tag tag, long reportedAt, long queuedAt) {
+            this.tag = tag;
+            this.reportedAt = reportedAt;
+            this.queuedAt = queuedAt;
+            /* Only a session listener can use the connected card */
+            this.prefetchPending = !prefetchCommands.isEmpty() &&
+                tagDiscoveredListener instanceof OnDiscoveredSessionListener;
+        }
+
+        @Override
+        public void run() {
+            boolean posted = false;
+            try {
+                if(prefetchPending) {
+                    prefetchPending = false;
+                    session = prefetch(tag);
+                    if(dispatchMode == DispatchMode.UI_THREAD) {
+                        getUiHandler().post(this);
+                        posted = true;
+                        return;
+                    }
+                }
+                telemetry.listenerInvoked(reportedAt, queuedAt, dispatchMode);
+                boolean traced = tracing && Tracing.beginDispatch(dispatchMode);
+                try {
+                    if(session != null) {
+                        ((OnDiscoveredSessionListener) tagDiscoveredListener).sessionDiscovered(session);
+                    } else {
+                        tagDiscoveredListener.tagDiscovered(tag);
+                    }
+                } finally {
+                    Tracing.end(traced);
+                    telemetry.listenerReturned();
+                }
+            } finally {
+                if(!posted && tagCoalescer != null) {
+                    tagCoalescer.sessionEnded(tag.getId());
+                }
+            }
+        }
+    }
+
+    private CardSession prefetch(Tag tag) {
+        AndroidCard card = null;
+        boolean traced = tracing && Tracing.begin("nordpol prefetch");
+        try {
+            card = AndroidCard.get(tag);
+            if(card == null) {
+                return null;
+            }
+            card.connect();
+            List<byte[]> responses = card.transceive(prefetchCommands);
+            return new CardSession(tag, card, selectedAid(responses),
+                                   prefetchCommands, responses);
+        } catch(IOException e) {
+            if(card != null) {
+                try {
+                    card.close();
+                } catch(IOException ignored) {
+                    /* The listener will find out when using the tag */
                 }
-            }.execute();
+            }
+            return null;
+        } finally {
+            Tracing.end(traced);
+        }
+    }
+
+    private String selectedAid(List<byte[]> responses) throws IOException {
+        String aid = null;
+        for(int i = 0; i < prefetchCommands.size(); i++) {
+            byte[] command = prefetchCommands.get(i);
+            byte[] response = responses.get(i);
+            boolean isSelect = command.length > 5 &&
+                command[1] == (byte) 0xA4 && command[2] == 0x04;
+            if(isSelect && response.length >= 2 &&
+               Apdu.hasStatus(response, OK_STATUS)) {
+                aid = Apdu.encodeHex(Arrays.copyOfRange(command, 5, 5 + (command[4] & 0xFF)));
+            }
+        }
+        return aid;
+    }
+
+    static synchronized Handler getUiHandler() {
+        if(uiHandler == null) {
+            uiHandler = new Handler(Looper.getMainLooper());
         }
+        return uiHandler;
+    }
+
+    /* Tags used to be dispatched through AsyncTask.execute(), which
+     * queues behind every other AsyncTask of the app. Keep a dedicated
+     * serial thread instead, that goes away when no tags are around.
+     */
+    private static synchronized Executor getDefaultExecutor() {
+        if(defaultExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    DISPATCH_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "nordpol-dispatch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            defaultExecutor = executor;
+        }
+        return defaultExecutor;
+    }
+
+    /* Reader mode may be disabled once the activity has paused, while
+     * foreground dispatch has to be disabled before it pauses.
+     */
+    boolean usesReaderMode() {
+        return !noReaderMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
@@ -332,11 +677,16 @@ public class TagDispatcher {
              * the presence check by sending commands that interrupt the
              * processing of the ongoing command.
              */
-            options.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, DELAY_PRESENCE);
+            int delay = DELAY_PRESENCE;
+            if(adaptivePresenceCheck) {
+                delay = PresenceCheckTuner.getPresenceCheckTuner().getPresenceCheckDelay();
+                armedPresenceDelay = delay;
+            }
+            options.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, delay);
         }
         NfcAdapter.ReaderCallback callback = new NfcAdapter.ReaderCallback() {
                 public void onTagDiscovered(Tag tag) {
-                    dispatchTag(tag);
+                    dispatchTag(tag, System.nanoTime());
                 }
             };
         int flags = NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_NFC_B;
@@ -347,11 +697,51 @@ public class TagDispatcher {
             flags = flags | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
         }
         adapter.enableReaderMode(activity, callback, flags, options);
+        readerModeEnabled = true;
+        if(broadcomWorkaround && adaptivePresenceCheck && presenceCheckRearmer == null) {
+            presenceCheckRearmer = new PresenceCheckTuner.OnTagLostListener() {
+                    @Override
+                    public void tagLost(PresenceCheckTuner tuner) {
+                        rearmReaderMode(tuner);
+                    }
+                };
+            PresenceCheckTuner.getPresenceCheckTuner().addOnTagLostListener(presenceCheckRearmer);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
     private void disableReaderMode(NfcAdapter adapter) {
-        adapter.disableReaderMode(activity);
+        readerModeEnabled = false;
+        if(presenceCheckRearmer != null) {
+            PresenceCheckTuner.getPresenceCheckTuner().removeOnTagLostListener(presenceCheckRearmer);
+            presenceCheckRearmer = null;
+        }
+        /* The platform drops the reader mode of a destroyed activity on
+         * its own, and throws if asked to disable it afterwards */
+        if(!activity.isDestroyed()) {
+            adapter.disableReaderMode(activity);
+        }
+    }
+
+    /* Re-arming reader mode restarts polling, which would drop a card in
+     * the field. It is therefore only done once the tag is gone, and only
+     * if the tuned delay moved far enough from the armed one.
+     */
+    private void rearmReaderMode(final PresenceCheckTuner tuner) {
+        getUiHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    int delay = tuner.getPresenceCheckDelay();
+                    if(!readerModeEnabled || tuner.isTransceiving() ||
+                       Math.abs(delay - armedPresenceDelay) * 4 < armedPresenceDelay) {
+                        return;
+                    }
+                    NfcAdapter adapter = NfcAdapter.getDefaultAdapter(activity);
+                    if(adapter != null && adapter.isEnabled()) {
+                        enableReaderMode(adapter);
+                    }
+                }
+            });
     }
 
     private void enableForegroundDispatch(NfcAdapter adapter) {
@@ -1,6 +1,13 @@
 package nordpol.android;
 
 import android.app.Activity;
+import android.os.HandlerThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import nordpol.Apdu;
 
 /**
  * TagDispatcherBuilder helps create a TagDispatcher using the builder pattern.
@@ -15,9 +22,16 @@ public class TagDispatcherBuilder {
     boolean enableUnavailableNfcUserPrompt;
     boolean enableSounds;
     boolean enableDispatchingOnUiThread;
+    boolean enableDispatchingOnReaderThread;
+    Executor dispatchExecutor;
+    HandlerThread dispatchHandlerThread;
+    int debounceWindow;
+    List<byte[]> prefetchCommands;
     boolean enableBroadcomWorkaround;
+    boolean enableAdaptivePresenceCheck;
     boolean enableReaderMode;
     boolean enableNdefCheck;
+    boolean enableTracing;
 
     /**
      * Constructor for TagDispatcherBuilder
@@ -31,10 +45,23 @@ public class TagDispatcherBuilder {
      * <p>
      * By default new tags will be dispatched on the UI thread. You can change
      * this behavior with the method
-     * {@link #enableDispatchingOnUiThread(boolean)}.
+     * {@link #enableDispatchingOnUiThread(boolean)}. When not dispatching on
+     * the UI thread tags are handed to a dedicated background thread, unless
+     * {@link #setDispatchExecutor(Executor)} or
+     * {@link #setDispatchHandlerThread(HandlerThread)} is used.
+     * <p>
+     * By default every tag reported by Android is dispatched. You can
+     * suppress repeated reports of the same card with the method
+     * {@link #setDebounceWindow(int)}.
+     * <p>
+     * By default no commands are sent before the tag is dispatched. You can
+     * have TagDispatcher send commands right away with the methods
+     * {@link #addPrefetchCommand(byte[])} and {@link #addPrefetchSelect(String)}.
      * <p>
      * By default TagDispatcher will use the Broadcom workaround. You can change
      * this behavior with the method {@link #enableBroadcomWorkaround(boolean)}.
+     * The workaround uses a fixed presence check delay unless
+     * {@link #enableAdaptivePresenceCheck(boolean)} is used.
      * <p>
      * By default TagDispatcher will use ReaderMode. You can change this
      * behavior with the method {@link #enableReaderMode(boolean)}.
@@ -42,6 +69,9 @@ public class TagDispatcherBuilder {
      * By default TagDispatcher will check NFC NDEF. You can change this
      * behavior with the method {@link #enableReaderMode(boolean)}.
      * <p>
+     * By default TagDispatcher does not add trace sections. You can change
+     * this behavior with the method {@link #enableTracing(boolean)}.
+     * <p>
      * Call {@link #build()} to build the TagDispatcher.
      *
      * @param activity               The Activity to attach the TagDispatcher to
@@ -54,9 +84,16 @@ public class TagDispatcherBuilder {
         this.enableUnavailableNfcUserPrompt = true;
         this.enableSounds = true;
         this.enableDispatchingOnUiThread = true;
+        this.enableDispatchingOnReaderThread = false;
+        this.dispatchExecutor = null;
+        this.dispatchHandlerThread = null;
+        this.debounceWindow = 0;
+        this.prefetchCommands = new ArrayList<byte[]>();
         this.enableBroadcomWorkaround = true;
+        this.enableAdaptivePresenceCheck = false;
         this.enableReaderMode = true;
         this.enableNdefCheck = true;
+        this.enableTracing = false;
     }
 
     /**
@@ -100,6 +137,108 @@ public class TagDispatcherBuilder {
         return this;
     }
 
+    /**
+     * Sets if new tags should be dispatched directly on the thread reporting
+     * them
+     * <p>
+     * In ReaderMode this is the binder thread calling
+     * NfcAdapter.ReaderCallback, which saves a thread hop before the
+     * listener runs. The listener must not touch the UI when using this.
+     * Takes precedence over {@link #enableDispatchingOnUiThread(boolean)}.
+     *
+     * @param enableDispatchingOnReaderThread  Should new tags be dispatched on
+     *                                         the reader thread?
+     * @return                                 this TagDispatcherBuilder
+     */
+    public TagDispatcherBuilder enableDispatchingOnReaderThread(boolean enableDispatchingOnReaderThread){
+        this.enableDispatchingOnReaderThread = enableDispatchingOnReaderThread;
+        return this;
+    }
+
+    /**
+     * Sets the Executor new tags are dispatched on
+     * <p>
+     * Only used when dispatching on the UI thread is disabled, see
+     * {@link #enableDispatchingOnUiThread(boolean)}. Defaults to a
+     * dedicated serial thread owned by TagDispatcher.
+     *
+     * @param dispatchExecutor  The Executor to run the listener on
+     * @return                  this TagDispatcherBuilder
+     */
+    public TagDispatcherBuilder setDispatchExecutor(Executor dispatchExecutor){
+        this.dispatchExecutor = dispatchExecutor;
+        return this;
+    }
+
+    /**
+     * Sets a HandlerThread new tags are dispatched on
+     * <p>
+     * Only used when dispatching on the UI thread is disabled, see
+     * {@link #enableDispatchingOnUiThread(boolean)}. The thread needs to
+     * be started before calling {@link #build()} and takes precedence over
+     * {@link #setDispatchExecutor(Executor)}. Once the thread has quit,
+     * tags are rejected with a RejectedExecutionException, as by a shut
+     * down Executor.
+     *
+     * @param dispatchHandlerThread  The started HandlerThread to run the
+     *                               listener on
+     * @return                       this TagDispatcherBuilder
+     */
+    public TagDispatcherBuilder setDispatchHandlerThread(HandlerThread dispatchHandlerThread){
+        this.dispatchHandlerThread = dispatchHandlerThread;
+        return this;
+    }
+
+    /**
+     * Sets the window in which repeated reports of the same tag are dropped
+     * <p>
+     * Tags are identified by their UID. A report is dropped while the
+     * listener is still handling the same card, or if the listener returned
+     * less than debounceWindow milliseconds ago. Every dropped report
+     * prolongs the window. The number of dropped reports is available
+     * from {@link TagDispatcher#getSuppressedTagCount()}.
+     *
+     * @param debounceWindow  The window in milliseconds, 0 to disable
+     * @return                this TagDispatcherBuilder
+     */
+    public TagDispatcherBuilder setDebounceWindow(int debounceWindow){
+        this.debounceWindow = debounceWindow;
+        return this;
+    }
+
+    /**
+     * Adds a command to send as soon as a tag is discovered
+     * <p>
+     * If the listener implements {@link OnDiscoveredSessionListener} the
+     * prefetch commands are sent on the dispatch thread right before the
+     * listener is called, and it receives the connected card along with the
+     * responses, see {@link CardSession#getPrefetchedResponse(byte[])}.
+     * With {@link TagDispatcher.DispatchMode#UI_THREAD} they are sent on a
+     * background thread and the session is then posted to the main looper.
+     * Other listeners only get the tag and the card is not touched. If
+     * sending any of the commands fails only the tag is dispatched.
+     *
+     * @param command  The command APDU to send
+     * @return         this TagDispatcherBuilder
+     */
+    public TagDispatcherBuilder addPrefetchCommand(byte[] command){
+        this.prefetchCommands.add(command.clone());
+        return this;
+    }
+
+    /**
+     * Adds a SELECT of an applet to send as soon as a tag is discovered
+     * <p>
+     * See {@link #addPrefetchCommand(byte[])}. The command is built with
+     * {@link Apdu#select(String)}.
+     *
+     * @param aid  The AID of the applet to select as a hex string
+     * @return     this TagDispatcherBuilder
+     */
+    public TagDispatcherBuilder addPrefetchSelect(String aid){
+        return addPrefetchCommand(Apdu.select(aid));
+    }
+
     /**
      * Delays presence check.
      * <p>
@@ -116,6 +255,25 @@ public class TagDispatcherBuilder {
         return this;
     }
 
+    /**
+     * Sets if the presence check delay of the Broadcom workaround should be
+     * tuned to the observed command durations
+     * <p>
+     * Instead of always delaying the presence check by 5 seconds, the delay
+     * is derived from how long recent commands took, see
+     * {@link PresenceCheckTuner}. Card removal is then detected sooner in
+     * between commands. Reader mode is re-armed with the tuned delay when a
+     * tag is lost. Has no effect without the Broadcom workaround.
+     *
+     * @param enableAdaptivePresenceCheck  Should the presence check delay be
+     *                                     tuned?
+     * @return                             this TagDispatcherBuilder
+     */
+    public TagDispatcherBuilder enableAdaptivePresenceCheck(boolean enableAdaptivePresenceCheck){
+        this.enableAdaptivePresenceCheck = enableAdaptivePresenceCheck;
+        return this;
+    }
+
     /**
      * Sets if TagDispatcher should use ReaderMode on devices where it is supported
      * <p>
@@ -146,6 +304,28 @@ public class TagDispatcherBuilder {
         return this;
     }
 
+    /**
+     * Sets if card and dispatch hot paths should show up in system traces
+     * <p>
+     * Adds android.os.Trace sections for {@link AndroidCard#get},
+     * connecting, each command labelled by its INS byte, prefetching and
+     * dispatching to the listener labelled by the dispatch mode, so a slow
+     * tap can be followed in systrace or Perfetto. Needs Android 4.3 or
+     * later.
+     * <p>
+     * Prefetch and dispatch sections are only added for this dispatcher.
+     * The AndroidCard sections are process wide: they are added for all
+     * cards while at least one dispatcher built with tracing has exclusive
+     * NFC enabled, and stop once the last one is disabled.
+     *
+     * @param enableTracing  Add trace sections?
+     * @return               this TagDispatcherBuilder
+     */
+    public TagDispatcherBuilder enableTracing(boolean enableTracing){
+        this.enableTracing = enableTracing;
+        return this;
+    }
+
     /**
      * Build the {@link TagDispatcher}.
      *
@@ -0,0 +1,82 @@
+package nordpol.android;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Trace sections around the card and dispatch hot paths, shown as slices
+ * in systrace and Perfetto.
+ * <p>
+ * Tracing is process wide: it is on while at least one TagDispatcher built
+ * with {@link TagDispatcherBuilder#enableTracing(boolean)} has exclusive
+ * NFC enabled, and needs Jelly Bean MR2 or later. {@link #begin(String)}
+ * tells whether a section was begun, so sections stay balanced if tracing
+ * is switched on or off in between.
+ */
+final class Tracing {
+    private static final String[] TRANSCEIVE_LABELS = new String[256];
+    private static volatile boolean enabled = false;
+    private static int users = 0;
+
+    private Tracing() {
+    }
+
+    static synchronized void acquire() {
+        users++;
+        enabled = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    static synchronized void release() {
+        if(users > 0 && --users == 0) {
+            enabled = false;
+        }
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if the section was begun and has to be ended with
+     * {@link #end(boolean)}
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static boolean begin(String name) {
+        if(!enabled) {
+            return false;
+        }
+        Trace.beginSection(name);
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void end(boolean begun) {
+        if(begun) {
+            Trace.endSection();
+        }
+    }
+
+    static boolean beginDispatch(TagDispatcher.DispatchMode mode) {
+        return enabled && begin("nordpol dispatch " + mode);
+    }
+
+    /* Labels are built once per instruction byte and then reused */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static boolean beginTransceive(byte[] command) {
+        if(!enabled) {
+            return false;
+        }
+        String label = "nordpol transceive";
+        if(command.length >= 2) {
+            int ins = command[1] & 0xFF;
+            label = TRANSCEIVE_LABELS[ins];
+            if(label == null) {
+                label = String.format("nordpol transceive INS %02X", ins);
+                TRANSCEIVE_LABELS[ins] = label;
+            }
+        }
+        Trace.beginSection(label);
+        return true;
+    }
+}
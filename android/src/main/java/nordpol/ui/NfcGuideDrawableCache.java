@@ -0,0 +1,139 @@
+package nordpol.android;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+/**
+ * Process wide cache of the decoded NfcGuideView device art.
+ *
+ * The hand and phone images are large and were decoded again for every
+ * inflated NfcGuideView. The decoded bitmaps are kept here, keyed by
+ * design and screen density, and every view gets its own drawable
+ * sharing the cached bitmap. The cache is bounded by the byte size of
+ * the bitmaps.
+ *
+ * When a target height is given the art is rendered at exactly that
+ * size instead of the size of the density bucket. Bitmaps are sub-sampled
+ * while decoding and drawables that are not bitmaps, such as vector
+ * drawables, are drawn straight into a bitmap of the target size.
+ */
+class NfcGuideDrawableCache {
+    private static final int MAX_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final String PHONE_KEY = "PHONE";
+
+    private static final LruCache<String, Bitmap> bitmaps =
+        new LruCache<String, Bitmap>(getCacheSize()) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+    private NfcGuideDrawableCache() {
+    }
+
+    static Drawable getDeviceDrawable(Resources resources, NfcDeviceDesign nfcDeviceDesign,
+                                      int targetHeight) {
+        return getDrawable(resources, nfcDeviceDesign.name(), getDeviceResource(nfcDeviceDesign),
+                           targetHeight);
+    }
+
+    static Drawable getPhoneDrawable(Resources resources, int targetHeight) {
+        return getDrawable(resources, PHONE_KEY, R.drawable.nfc_guide_view_nexus_five,
+                           targetHeight);
+    }
+
+    /**
+     * @param targetHeight the height in pixels to render at, 0 to use the
+     * size of the density bucket
+     */
+    private static Drawable getDrawable(Resources resources, String name, int resourceId,
+                                        int targetHeight) {
+        String key;
+        if(targetHeight > 0) {
+            key = name + "#" + targetHeight;
+        } else {
+            key = name + "@" + resources.getDisplayMetrics().densityDpi;
+        }
+        Bitmap bitmap = bitmaps.get(key);
+        if(bitmap == null) {
+            if(targetHeight > 0) {
+                bitmap = render(resources, resourceId, targetHeight);
+                /* The bitmap is in screen pixels already, keep
+                 * BitmapDrawable from scaling it again.
+                 */
+                bitmap.setDensity(resources.getDisplayMetrics().densityDpi);
+            } else {
+                bitmap = BitmapFactory.decodeResource(resources, resourceId, null);
+            }
+            bitmaps.put(key, bitmap);
+        }
+        return new BitmapDrawable(resources, bitmap);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap render(Resources resources, int resourceId, int targetHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.inScaled = false;
+        BitmapFactory.decodeResource(resources, resourceId, options);
+
+        if(options.outHeight <= 0) {
+            /* Not a bitmap, draw the drawable at the target size */
+            Drawable drawable = resources.getDrawable(resourceId);
+            int width = scaledWidth(drawable.getIntrinsicWidth(),
+                                    drawable.getIntrinsicHeight(), targetHeight);
+            Bitmap bitmap = Bitmap.createBitmap(width, targetHeight, Bitmap.Config.ARGB_8888);
+            drawable.setBounds(0, 0, width, targetHeight);
+            drawable.draw(new Canvas(bitmap));
+            return bitmap;
+        }
+
+        int width = scaledWidth(options.outWidth, options.outHeight, targetHeight);
+        int sampleSize = 1;
+        while(options.outHeight / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeResource(resources, resourceId, options);
+        if(decoded.getHeight() == targetHeight && decoded.getWidth() == width) {
+            return decoded;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded, width, targetHeight, true);
+        if(scaled != decoded) {
+            decoded.recycle();
+        }
+        return scaled;
+    }
+
+    private static int scaledWidth(int width, int height, int targetHeight) {
+        if(width <= 0 || height <= 0) {
+            return targetHeight;
+        }
+        return Math.max(1, (int) ((long) width * targetHeight / height));
+    }
+
+    private static int getDeviceResource(NfcDeviceDesign nfcDeviceDesign) {
+        switch(nfcDeviceDesign) {
+            case CARD_BLACK:
+                return R.drawable.nfc_guide_view_hand_holding_card_black;
+            case USB_BLACK:
+                return R.drawable.nfc_guide_view_hand_holding_usb_black;
+            case USB_BLACK_FIDESMO:
+                return R.drawable.nfc_guide_view_hand_holding_usb_black_fidesmo;
+            case CARD_RUBY:
+            default:
+                return R.drawable.nfc_guide_view_hand_holding_card_ruby;
+        }
+    }
+
+    private static int getCacheSize() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_CACHE_BYTES);
+    }
+}
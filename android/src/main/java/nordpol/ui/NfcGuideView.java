@@ -6,6 +6,7 @@ import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewPropertyAnimator;
 import android.view.ViewTreeObserver;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.AccelerateInterpolator;
@@ -40,6 +41,11 @@ import nordpol.android.R;
  * For a black USB: app:nfc_device="usb_black"
  * For a black USB with a Fidesmo logo: app:nfc_device="usb_black_fidesmo"
  *
+ * By default the phone and device graphics are shown at the size of the
+ * screen density bucket. To render them at exactly the height they are
+ * shown at, which also keeps the decoded bitmaps small, add:
+ * app:device_art_height="120dp"
+ *
  * After setting up the View as usually in Java you can call the
  * setCurrentStatus method on it to change between different NFC transaction
  * states. The available states are the following:
@@ -64,6 +70,7 @@ public class NfcGuideView extends RelativeLayout {
     private int mNfcGuideHandWidth = 0;
     private int mRootViewWidth = 0;
     private int mRootViewHeight = 0;
+    private int mDeviceArtHeight = 0;
 
     private View mRootView;
     private ImageView mNfcGuidePhone;
@@ -96,6 +103,7 @@ public class NfcGuideView extends RelativeLayout {
         try {
             nfcDeviceDesign = typedArray.getInteger(R.styleable.NfcGuideView_nfc_device, 0);
             transactionItemIcon = typedArray.getDrawable(R.styleable.NfcGuideView_transaction_item_icon);
+            mDeviceArtHeight = typedArray.getDimensionPixelSize(R.styleable.NfcGuideView_device_art_height, 0);
         } finally {
           typedArray.recycle();
         }
@@ -110,6 +118,7 @@ public class NfcGuideView extends RelativeLayout {
         mNfcGuideHand = (ImageView) mRootView.findViewById(R.id.nfc_guide_view_hand);
         nfcGuideViewTransactionItemIcon = (ImageView) mRootView.findViewById(R.id.nfc_guide_view_transaction_item_icon);
 
+        mNfcGuidePhone.setImageDrawable(NfcGuideDrawableCache.getPhoneDrawable(getResources(), mDeviceArtHeight));
         setNfcDeviceDesign(getNfcDeviceDesign(nfcDeviceDesign));
 
         if (transactionItemIcon != null) {
@@ -119,6 +128,9 @@ public class NfcGuideView extends RelativeLayout {
             nfcGuideViewTransactionItemIcon.setVisibility(View.GONE);
         }
 
+        /* Read the sizes of all guide items in a single pass once the
+         * first layout is done and position them from there.
+         */
         mRootView.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
             @SuppressWarnings("deprecation")
             @Override
@@ -130,34 +142,8 @@ public class NfcGuideView extends RelativeLayout {
                 }
                 mRootViewWidth = mRootView.getWidth();
                 mRootViewHeight = mRootView.getHeight();
-                nfcGuideStartPositions();
-            }
-        });
-
-        mNfcGuidePhone.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
-            @SuppressWarnings("deprecation")
-            @Override
-            public void onGlobalLayout() {
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN) {
-                    mNfcGuidePhone.getViewTreeObserver().removeOnGlobalLayoutListener(this);
-                } else {
-                    mNfcGuidePhone.getViewTreeObserver().removeGlobalOnLayoutListener(this);
-                }
                 mNfcGuidePhoneWidth = mNfcGuidePhone.getWidth();
                 nfcGuidePhoneHeight = mNfcGuidePhone.getHeight();
-                nfcGuideStartPositions();
-            }
-        });
-
-        mNfcGuideHand.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
-            @SuppressWarnings("deprecation")
-            @Override
-            public void onGlobalLayout() {
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN) {
-                    mNfcGuideHand.getViewTreeObserver().removeOnGlobalLayoutListener(this);
-                } else {
-                    mNfcGuideHand.getViewTreeObserver().removeGlobalOnLayoutListener(this);
-                }
                 mNfcGuideHandWidth = mNfcGuideHand.getWidth();
                 nfcGuideStartPositions();
             }
@@ -237,20 +223,17 @@ public class NfcGuideView extends RelativeLayout {
             .animate()
             .alpha(0f);
 
-        mNfcGuideHand
-            .animate()
+        animateWithLayer(mNfcGuideHand)
             .x(getHandXTransferring())
             .alpha(1f)
             .setInterpolator(new AccelerateDecelerateInterpolator());
 
-        mNfcGuidePhone
-            .animate()
+        animateWithLayer(mNfcGuidePhone)
             .x(getPhoneXTransferring())
             .alpha(1f)
             .setInterpolator(new AccelerateDecelerateInterpolator());
 
-        nfcGuideViewTransactionItemIcon
-                .animate()
+        animateWithLayer(nfcGuideViewTransactionItemIcon)
                 .x(getTransactionItemIconXTransferring())
                 .alpha(1f)
                 .setInterpolator(new AccelerateDecelerateInterpolator());
@@ -291,29 +274,37 @@ public class NfcGuideView extends RelativeLayout {
     }
 
     private void blowUp() {
-        mNfcGuideHand
-            .animate()
+        animateWithLayer(mNfcGuideHand)
             .x(0)
             .alpha(0f)
             .setInterpolator(new AccelerateInterpolator())
             .setDuration(ANIMATION_DURATION_MEDIUM);
 
         int phonePosition = mRootViewWidth-mNfcGuidePhoneWidth;
-        mNfcGuidePhone
-            .animate()
+        animateWithLayer(mNfcGuidePhone)
             .x(phonePosition)
             .alpha(0f)
             .setInterpolator(new AccelerateInterpolator())
             .setDuration(ANIMATION_DURATION_MEDIUM);
 
-        nfcGuideViewTransactionItemIcon
-                .animate()
+        animateWithLayer(nfcGuideViewTransactionItemIcon)
                 .x(phonePosition)
                 .alpha(0f)
                 .setInterpolator(new AccelerateInterpolator())
                 .setDuration(ANIMATION_DURATION_MEDIUM);
     }
 
+    /* Render the large images into a hardware layer while they move, so
+     * that they are not redrawn for every frame of the animation.
+     */
+    private ViewPropertyAnimator animateWithLayer(View view) {
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN) {
+            return view.animate().withLayer();
+        } else {
+            return view.animate();
+        }
+    }
+
     /**
      * Set the NfcGuideViewStatus that the NfcGuideView should have
      *
@@ -350,15 +341,6 @@ public class NfcGuideView extends RelativeLayout {
         }
     }
 
-    @SuppressWarnings("deprecation")
-    private Drawable getResDrawable(int resourceId){
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-            return getResources().getDrawable(resourceId, null);
-        } else {
-            return getResources().getDrawable(resourceId);
-        }
-    }
-
     private int getPixelsFromDp(float dp) {
         final float scale = getResources().getDisplayMetrics().density;
         return (int) (dp * scale + 0.5f);
@@ -370,20 +352,7 @@ public class NfcGuideView extends RelativeLayout {
      * @param nfcDeviceDesign
      */
     public void setNfcDeviceDesign(NfcDeviceDesign nfcDeviceDesign) {
-        mNfcGuideHand.setImageDrawable(getDeviceDrawable(nfcDeviceDesign));
-    }
-
-    private Drawable getDeviceDrawable(NfcDeviceDesign nfcDeviceDesign) {
-        switch(nfcDeviceDesign) {
-            case CARD_BLACK:
-                return getResDrawable(R.drawable.nfc_guide_view_hand_holding_card_black);
-            case USB_BLACK:
-                return getResDrawable(R.drawable.nfc_guide_view_hand_holding_usb_black);
-            case USB_BLACK_FIDESMO:
-                return getResDrawable(R.drawable.nfc_guide_view_hand_holding_usb_black_fidesmo);
-            case CARD_RUBY:
-            default:
-                return getResDrawable(R.drawable.nfc_guide_view_hand_holding_card_ruby);
-        }
+        mNfcGuideHand.setImageDrawable(NfcGuideDrawableCache.getDeviceDrawable(getResources(), nfcDeviceDesign,
+                                                                          mDeviceArtHeight));
     }
 }
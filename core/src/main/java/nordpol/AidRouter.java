@@ -0,0 +1,301 @@
+package nordpol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Routes a card to the handler of the first applet that can be selected
+ * on it.
+ * <p>
+ * Which applets a card carries is not known up front, so they are
+ * probed with SELECT. Rather than always probing in the order the
+ * routes were added, the router learns how often each AID matches and
+ * probes the most frequent ones first, falling back to the order the
+ * routes were added in for AIDs that have matched equally often. Cards
+ * that have been seen before go straight to the AID they matched last
+ * time.
+ * <p>
+ * With a state file the learned hit counts and matches survive restarts
+ * of the application. The file is written through a temporary file that
+ * is renamed once complete, after the handler has returned and at most
+ * every ten seconds. Failing to write it does not fail the routing.
+ */
+public class AidRouter {
+    private static final int MAX_KNOWN_CARDS = 256;
+    private static final String HITS_PREFIX = "hits.";
+    private static final String CARD_PREFIX = "card.";
+    private static final long SAVE_INTERVAL_MILLIS = 10000;
+
+    /**
+     * Handles a card once its applet has been selected
+     */
+    public interface AidHandler {
+        /**
+         * @param card The connected card with the applet selected
+         * @param aid The AID of the selected applet
+         * @param selectResponse The response to the SELECT command
+         */
+        public void handle(IsoCard card, String aid, byte[] selectResponse) throws IOException;
+    }
+
+    private final Map<String, AidHandler> routes = new LinkedHashMap<String, AidHandler>();
+    private final Map<String, Integer> order = new LinkedHashMap<String, Integer>();
+    private final Map<String, Integer> hits = new LinkedHashMap<String, Integer>();
+    private final Map<String, String> knownCards =
+        new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_KNOWN_CARDS;
+            }
+        };
+    private final File stateFile;
+    private final Object saveLock = new Object();
+    private boolean dirty = false;
+    private long lastSave = 0;
+
+    /**
+     * Creates a router learning in memory only
+     */
+    public AidRouter() {
+        this.stateFile = null;
+    }
+
+    /**
+     * Creates a router keeping what it learned in a file
+     * @param stateFile The file to load from and save to. It is created
+     * on the first match.
+     */
+    public AidRouter(File stateFile) throws IOException {
+        this.stateFile = stateFile;
+        if(stateFile.isFile()) {
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Adds a route. AIDs are probed in the order they were added until
+     * hit rates have been learned.
+     * @param aid The AID of the applet as a hex string
+     * @param handler The handler for cards carrying the applet
+     * @return This router
+     */
+    public synchronized AidRouter addRoute(String aid, AidHandler handler) {
+        String key = aid.toUpperCase(Locale.ROOT);
+        routes.put(key, handler);
+        if(!order.containsKey(key)) {
+            order.put(key, order.size());
+        }
+        return this;
+    }
+
+    /**
+     * Selects the applet of a route on the card and calls its handler.
+     * The handler runs without holding the router, so other cards can be
+     * routed meanwhile.
+     * @param card The connected card
+     * @param uid The UID of the card, or null to always probe
+     * @return The AID the card was routed to, or null if no applet could
+     * be selected
+     */
+    public String route(IsoCard card, byte[] uid) throws IOException {
+        String uidKey = uid != null && uid.length > 0 ? Apdu.encodeHex(uid) : null;
+        String known;
+        Map<String, AidHandler> handlers;
+        List<String> probeOrder;
+        synchronized(this) {
+            known = uidKey != null ? knownCards.get(uidKey) : null;
+            handlers = new LinkedHashMap<String, AidHandler>(routes);
+            probeOrder = getProbeOrder();
+        }
+        String aid = null;
+        byte[] response = null;
+        if(known != null && handlers.containsKey(known)) {
+            response = select(card, known);
+            aid = response != null ? known : null;
+        }
+        Iterator<String> candidates = probeOrder.iterator();
+        while(aid == null && candidates.hasNext()) {
+            String candidate = candidates.next();
+            if(!candidate.equals(known)) {
+                response = select(card, candidate);
+                aid = response != null ? candidate : null;
+            }
+        }
+        learn(uidKey, known, aid);
+        try {
+            if(aid != null) {
+                handlers.get(aid).handle(card, aid, response);
+            }
+        } finally {
+            saveIfDue();
+        }
+        return aid;
+    }
+
+    /**
+     * @return The AIDs of all routes in the order they are probed for an
+     * unknown card
+     */
+    public synchronized List<String> getProbeOrder() {
+        List<String> aids = new ArrayList<String>(routes.keySet());
+        Collections.sort(aids, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    int byHits = hitCount(b) - hitCount(a);
+                    return byHits != 0 ? byHits : order.get(a) - order.get(b);
+                }
+            });
+        return aids;
+    }
+
+    /**
+     * Forget the learned hit counts and cards
+     */
+    public void reset() throws IOException {
+        synchronized(this) {
+            hits.clear();
+            knownCards.clear();
+            dirty = true;
+        }
+        save();
+    }
+
+    /**
+     * Writes what has been learned to the state file right away. Routing
+     * only writes it when it has not been written for a while, so save
+     * before the application is stopped to keep the latest matches. Does
+     * nothing without a state file.
+     */
+    public void save() throws IOException {
+        if(stateFile == null) {
+            return;
+        }
+        synchronized(saveLock) {
+            final Properties properties;
+            synchronized(this) {
+                properties = snapshot();
+                dirty = false;
+                lastSave = System.currentTimeMillis();
+            }
+            try {
+                AtomicFiles.write(stateFile, new AtomicFiles.Content() {
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            properties.store(out, null);
+                        }
+                    });
+            } catch(IOException e) {
+                synchronized(this) {
+                    dirty = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes what has been learned
+     * @param out The stream to write the properties to
+     */
+    public void store(OutputStream out) throws IOException {
+        snapshot().store(out, null);
+    }
+
+    /**
+     * Reads what has been learned, merging it into the current state
+     * @param in The stream to read the properties from
+     */
+    public synchronized void load(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+        for(String name: properties.stringPropertyNames()) {
+            String value = properties.getProperty(name);
+            if(name.startsWith(HITS_PREFIX)) {
+                try {
+                    hits.put(name.substring(HITS_PREFIX.length()), Integer.parseInt(value));
+                } catch(NumberFormatException e) {
+                    /* Skip the broken entry */
+                }
+            } else if(name.startsWith(CARD_PREFIX)) {
+                knownCards.put(name.substring(CARD_PREFIX.length()), value);
+            }
+        }
+    }
+
+    private synchronized Properties snapshot() {
+        Properties properties = new Properties();
+        for(Map.Entry<String, Integer> entry: hits.entrySet()) {
+            properties.setProperty(HITS_PREFIX + entry.getKey(), entry.getValue().toString());
+        }
+        for(Map.Entry<String, String> entry: knownCards.entrySet()) {
+            properties.setProperty(CARD_PREFIX + entry.getKey(), entry.getValue());
+        }
+        return properties;
+    }
+
+    private synchronized void learn(String uidKey, String known, String aid) {
+        if(aid != null) {
+            countHit(aid);
+            if(uidKey != null) {
+                knownCards.put(uidKey, aid);
+            }
+            dirty = true;
+        } else if(known != null) {
+            knownCards.remove(uidKey);
+            dirty = true;
+        }
+    }
+
+    /* What is learned only speeds up routing, so failing to write it must
+     * not fail the routing. It is tried again with a later match. */
+    private void saveIfDue() {
+        synchronized(this) {
+            if(stateFile == null || !dirty ||
+               System.currentTimeMillis() - lastSave < SAVE_INTERVAL_MILLIS) {
+                return;
+            }
+        }
+        try {
+            save();
+        } catch(IOException e) {
+            /* Kept dirty, written with a later match */
+        }
+    }
+
+    private void countHit(String aid) {
+        hits.put(aid, hitCount(aid) + 1);
+    }
+
+    private int hitCount(String aid) {
+        Integer count = hits.get(aid);
+        return count != null ? count : 0;
+    }
+
+    /* Returns the response if the applet was selected, null otherwise */
+    private static byte[] select(IsoCard card, String aid) throws IOException {
+        byte[] response = card.transceive(Apdu.select(aid));
+        if(response.length < 2) {
+            return null;
+        }
+        int sw1 = response[response.length - 2] & 0xFF;
+        int sw2 = response[response.length - 1] & 0xFF;
+        return (sw1 == 0x90 && sw2 == 0x00) || sw1 == 0x61 ? response : null;
+    }
+}
@@ -23,13 +23,25 @@ public class Apdu {
      * @return the resulting hex string
      */
     public static String encodeHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
+        return encodeHex(bytes, 0, bytes.length);
+    }
+    /**
+     * Encodes a range of a byte array into a hexadecimal string having two characters per byte
+     * @param bytes the input byte[]
+     * @param offset the index of the first byte to encode
+     * @param length the number of bytes to encode
+     * @return the resulting hex string
+     */
+    public static String encodeHex(byte[] bytes, int offset, int length) {
+        char[] hexChars = new char[length * 2];
 
-        for ( int i = 0; i < bytes.length; i++ ) {
-            sb.append(String.format("%02X", bytes[i] & 0xFF));
+        for ( int i = 0; i < length; i++ ) {
+            int b = bytes[offset + i] & 0xFF;
+            hexChars[i * 2] = hexArray[b >>> 4];
+            hexChars[i * 2 + 1] = hexArray[b & 0x0F];
         }
 
-        return sb.toString();
+        return new String(hexChars);
     }
     /**
      * Encodes a byte into a hexadecimal string
@@ -0,0 +1,74 @@
+package nordpol;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a method of an interface as a command APDU.
+ * <p>
+ * The nordpol-processor annotation processor generates an implementation
+ * of the interface, named after it with an Impl suffix, that takes an
+ * {@link IsoCard} in its constructor. The generated methods encode the
+ * command straight into the APDU array and check the status word of the
+ * response, throwing an IOException for any other status. Responses with
+ * status 61xx are completed with GET RESPONSE before the status is
+ * checked, unless 61xx is the expected status itself.
+ * <p>
+ * Parameters without annotation make up the data field in declaration
+ * order: byte, short and int parameters big endian, byte[] parameters as
+ * they are. Parameters annotated with {@link P1}, {@link P2},
+ * {@link P1P2} or {@link Le} replace the values of the annotation.
+ * <p>
+ * The method may return void, byte[] for the response data, byte, short
+ * or int for response data of exactly that size, or an interface
+ * annotated with {@link ApduResponse} to decode the response data with.
+ * <pre>
+ * public interface FileCommands {
+ *     {@literal @}ApduCommand(ins = 0xA4, p1 = 0x02, p2 = 0x0C)
+ *     void selectFile(short fileId) throws IOException;
+ *
+ *     {@literal @}ApduCommand(ins = 0xB0, le = 0)
+ *     byte[] readBinary(@ApduCommand.P1P2 int offset) throws IOException;
+ * }
+ *
+ * FileCommands commands = new FileCommandsImpl(card);
+ * </pre>
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface ApduCommand {
+    int cla() default 0x00;
+    int ins();
+    int p1() default 0x00;
+    int p2() default 0x00;
+    /** The expected length of the response data, 0 for 256, -1 for none */
+    int le() default -1;
+    /** The status word of a successful response */
+    int status() default 0x9000;
+
+    /** Sets P1 from a byte or int parameter */
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.PARAMETER)
+    public @interface P1 {
+    }
+
+    /** Sets P2 from a byte or int parameter */
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.PARAMETER)
+    public @interface P2 {
+    }
+
+    /** Sets P1 and P2 big endian from a short or int parameter, e.g. an offset */
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.PARAMETER)
+    public @interface P1P2 {
+    }
+
+    /** Sets Le from an int parameter, 0 for 256 */
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.PARAMETER)
+    public @interface Le {
+    }
+}
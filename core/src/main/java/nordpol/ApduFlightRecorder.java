@@ -0,0 +1,127 @@
+package nordpol;
+
+import java.util.Locale;
+
+/**
+ * Keeps the last APDUs exchanged with a card for post-mortem analysis.
+ * <p>
+ * The recorder is a ring buffer of the last commands and responses,
+ * each stored with a timestamp, its full length and a prefix of its
+ * bytes. All storage is allocated up front, so recording does not
+ * allocate and is cheap enough to leave on at all times. Use
+ * {@link #dump()} when a card errs to see what led up to it.
+ */
+public class ApduFlightRecorder {
+    public static final int DEFAULT_ENTRIES = 32;
+    public static final int DEFAULT_PREFIX_LENGTH = 16;
+
+    private final int entries;
+    private final int prefixLength;
+    private final byte[] prefixes;
+    private final int[] storedLengths;
+    private final int[] fullLengths;
+    private final long[] timestamps;
+    private final boolean[] responses;
+    private long recorded = 0;
+
+    /**
+     * Creates a recorder keeping the last {@value #DEFAULT_ENTRIES} APDUs
+     * and their first {@value #DEFAULT_PREFIX_LENGTH} bytes.
+     */
+    public ApduFlightRecorder() {
+        this(DEFAULT_ENTRIES, DEFAULT_PREFIX_LENGTH);
+    }
+
+    /**
+     * @param entries The number of APDUs to keep, commands and responses
+     * counted separately
+     * @param prefixLength The number of bytes to keep of every APDU
+     */
+    public ApduFlightRecorder(int entries, int prefixLength) {
+        if(entries < 1 || prefixLength < 0) {
+            throw new IllegalArgumentException("Invalid recorder size");
+        }
+        this.entries = entries;
+        this.prefixLength = prefixLength;
+        this.prefixes = new byte[entries * prefixLength];
+        this.storedLengths = new int[entries];
+        this.fullLengths = new int[entries];
+        this.timestamps = new long[entries];
+        this.responses = new boolean[entries];
+    }
+
+    /**
+     * Records a command APDU sent to the card
+     * @param command The command APDU
+     */
+    public void recordCommand(byte[] command) {
+        record(command, false);
+    }
+
+    /**
+     * Records a response APDU received from the card
+     * @param response The response APDU
+     */
+    public void recordResponse(byte[] response) {
+        record(response, true);
+    }
+
+    private synchronized void record(byte[] apdu, boolean response) {
+        int index = (int) (recorded % entries);
+        int length = apdu != null ? apdu.length : 0;
+        int stored = Math.min(length, prefixLength);
+        if(stored > 0) {
+            System.arraycopy(apdu, 0, prefixes, index * prefixLength, stored);
+        }
+        storedLengths[index] = stored;
+        fullLengths[index] = length;
+        timestamps[index] = System.nanoTime();
+        responses[index] = response;
+        recorded++;
+    }
+
+    /**
+     * @return The total number of APDUs recorded, including those no
+     * longer kept
+     */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    /**
+     * Forget all recorded APDUs
+     */
+    public synchronized void clear() {
+        recorded = 0;
+    }
+
+    /**
+     * Formats the kept APDUs as hex, oldest first. Every line holds the
+     * time relative to the latest APDU, the direction ({@code >>} for
+     * commands, {@code <<} for responses), the recorded prefix and the
+     * full length of the APDU.
+     * @return The dump, one APDU per line
+     */
+    public synchronized String dump() {
+        int kept = (int) Math.min(recorded, entries);
+        StringBuilder sb = new StringBuilder();
+        sb.append("Last ").append(kept).append(" of ").append(recorded).append(" APDUs");
+        if(kept == 0) {
+            return sb.toString();
+        }
+        long latest = timestamps[(int) ((recorded - 1) % entries)];
+        for(long i = recorded - kept; i < recorded; i++) {
+            int index = (int) (i % entries);
+            long micros = (latest - timestamps[index]) / 1000;
+            sb.append('\n')
+                .append(String.format(Locale.ROOT, "%10.3f ms ", -micros / 1000.0))
+                .append(responses[index] ? "<< " : ">> ")
+                .append(Apdu.encodeHex(prefixes, index * prefixLength, storedLengths[index]));
+            if(storedLengths[index] < fullLengths[index]) {
+                sb.append("...");
+            }
+            sb.append(" (").append(fullLengths[index]).append(" bytes)");
+        }
+        return sb.toString();
+    }
+}
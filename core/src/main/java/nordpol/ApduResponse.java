@@ -0,0 +1,45 @@
+package nordpol;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the layout of the data of a response APDU, see
+ * {@link ApduCommand}.
+ * <p>
+ * Every method of the interface reads a {@link Field} of the response
+ * data. The generated implementation decodes fields from the response
+ * array when they are called, without copying it first. Responses
+ * shorter than the fixed fields are rejected with an IOException by the
+ * command.
+ * <pre>
+ * {@literal @}ApduResponse
+ * public interface Version {
+ *     {@literal @}ApduResponse.Field(offset = 0)
+ *     byte major();
+ *
+ *     {@literal @}ApduResponse.Field(offset = 1, length = 3)
+ *     int build();
+ *
+ *     {@literal @}ApduResponse.Field(offset = 4)
+ *     byte[] name();
+ * }
+ * </pre>
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface ApduResponse {
+    /**
+     * A field of the response data: a byte, a big endian short or int of
+     * up to four bytes, or a byte[]
+     */
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.METHOD)
+    public @interface Field {
+        int offset();
+        /** The length in bytes, -1 for the size of the type or the rest of the data */
+        int length() default -1;
+    }
+}
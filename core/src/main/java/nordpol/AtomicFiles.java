@@ -0,0 +1,60 @@
+package nordpol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes files through a temporary file that is renamed once complete, so
+ * a crash never leaves a truncated file behind.
+ */
+final class AtomicFiles {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes the content of a file
+     */
+    interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * Replaces a file, creating its directory if needed
+     * @param file The file to write
+     * @param content Writes the new content of the file
+     */
+    static void write(File file, Content content) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create directory " + directory);
+        }
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            content.writeTo(out);
+        } finally {
+            out.close();
+        }
+        /* Renaming onto an existing file fails on Windows */
+        if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            temp.delete();
+            throw new IOException("Can not write " + file);
+        }
+    }
+
+    /**
+     * Writes a byte array as the content of a file
+     */
+    static void write(File file, final byte[] bytes) throws IOException {
+        write(file, new Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(bytes);
+                }
+            });
+    }
+}
@@ -0,0 +1,78 @@
+package nordpol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A pool of direct buffers in power of two sizes.
+ * <p>
+ * Direct buffers avoid a copy on every channel read and write but are
+ * expensive to allocate, so they are kept for reuse. Buffers larger than
+ * the largest size class are allocated on the heap and not pooled.
+ */
+class ByteBufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 16;
+    private static final int MAX_POOLED = 16;
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free =
+        new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+    private final AtomicIntegerArray freeCounts = new AtomicIntegerArray(MAX_SHIFT - MIN_SHIFT + 1);
+
+    ByteBufferPool() {
+        for(int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+    }
+
+    /**
+     * @param capacity The minimum capacity needed
+     * @return A cleared buffer of at least the given capacity
+     */
+    ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        if(sizeClass < 0) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        if(buffer == null) {
+            return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        }
+        freeCounts.decrementAndGet(sizeClass);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     * @param buffer A buffer obtained from {@link #acquire(int)}
+     */
+    void release(ByteBuffer buffer) {
+        if(!buffer.isDirect()) {
+            return;
+        }
+        int sizeClass = sizeClass(buffer.capacity());
+        if(sizeClass < 0 || buffer.capacity() != 1 << (sizeClass + MIN_SHIFT)) {
+            return;
+        }
+        if(freeCounts.incrementAndGet(sizeClass) > MAX_POOLED) {
+            freeCounts.decrementAndGet(sizeClass);
+            return;
+        }
+        free.get(sizeClass).offer(buffer);
+    }
+
+    private static int sizeClass(int capacity) {
+        int shift = MIN_SHIFT;
+        while((1 << shift) < capacity) {
+            shift++;
+            if(shift > MAX_SHIFT) {
+                return -1;
+            }
+        }
+        return shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,22 @@
+package nordpol;
+
+import java.io.IOException;
+
+/**
+ * A unit of work against a single applet on a card, see
+ * {@link OperationPlanner}.
+ */
+public interface CardOperation {
+    /**
+     * @return The AID of the applet the operation works with as a hex
+     * string, or null if it does not depend on the selected applet
+     */
+    public String getAid();
+
+    /**
+     * Performs the operation. The applet of {@link #getAid()} has been
+     * selected when this is called.
+     * @param card The connected card
+     */
+    public void run(IsoCard card) throws IOException;
+}
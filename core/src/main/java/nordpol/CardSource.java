@@ -0,0 +1,22 @@
+package nordpol;
+
+import java.io.IOException;
+
+/**
+ * Supplies the cards of a {@link PersonalizationPipeline}, e.g. from a
+ * reader with a card feeder
+ */
+public interface CardSource {
+    /**
+     * Waits for the next card
+     * @return The next card, connected, or null if there are no more cards
+     */
+    public IsoCard next() throws IOException;
+
+    /**
+     * Called once the pipeline is done with a card, whether it was
+     * personalized or not
+     * @param card The card returned by {@link #next()}
+     */
+    public void release(IsoCard card) throws IOException;
+}
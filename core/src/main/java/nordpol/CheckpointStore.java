@@ -0,0 +1,31 @@
+package nordpol;
+
+import java.io.IOException;
+
+/**
+ * Keeps the progress of {@link CheckpointedOperation}s per card.
+ */
+public interface CheckpointStore {
+    /**
+     * @param uid The UID of the card
+     * @param operation The name of the operation
+     * @return The number of steps confirmed by the last checkpoint, 0 if
+     * there is none
+     */
+    public int get(byte[] uid, String operation) throws IOException;
+
+    /**
+     * Records a checkpoint
+     * @param uid The UID of the card
+     * @param operation The name of the operation
+     * @param completedSteps The number of steps completed on the card
+     */
+    public void put(byte[] uid, String operation, int completedSteps) throws IOException;
+
+    /**
+     * Forgets the progress of an operation, e.g. once it has completed
+     * @param uid The UID of the card
+     * @param operation The name of the operation
+     */
+    public void remove(byte[] uid, String operation) throws IOException;
+}
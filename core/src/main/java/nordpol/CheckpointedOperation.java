@@ -0,0 +1,121 @@
+package nordpol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A multi-step operation that can be resumed where it was interrupted.
+ * <p>
+ * Long transactions, e.g. installing an applet, are often interrupted by
+ * the card leaving the field. Steps that the card has committed do not
+ * need to be run again, so the operation records a checkpoint per card
+ * UID in a {@link CheckpointStore} after each step marked with
+ * {@link #addCheckpoint()}. When the operation is run again for the same
+ * card, e.g. from the listener of the next tag discovered, it continues
+ * with the step after the last checkpoint.
+ * <pre>
+ * {@code
+ * CheckpointedOperation install = new CheckpointedOperation("install")
+ *     .setResumeStep(selectIssuerSecurityDomain)
+ *     .addStep(load).addCheckpoint()
+ *     .addStep(installApplet).addCheckpoint()
+ *     .addStep(personalize);
+ * install.run(card, tag.getId(), store);
+ * }
+ * </pre>
+ * Steps after the last checkpoint are run again on resumption, so they
+ * have to be safe to repeat.
+ */
+public class CheckpointedOperation {
+    /**
+     * A step of an operation
+     */
+    public interface Step {
+        /**
+         * @param card The connected card
+         */
+        public void run(IsoCard card) throws IOException;
+    }
+
+    private final String name;
+    private final List<Step> steps = new ArrayList<Step>();
+    private final List<Integer> checkpoints = new ArrayList<Integer>();
+    private Step resumeStep;
+
+    /**
+     * @param name The name the progress of the operation is stored under
+     */
+    public CheckpointedOperation(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name the progress of the operation is stored under
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param step The step to run after the steps added so far
+     * @return This operation
+     */
+    public CheckpointedOperation addStep(Step step) {
+        steps.add(step);
+        return this;
+    }
+
+    /**
+     * Marks the steps added so far as committed on the card once they
+     * have completed
+     * @return This operation
+     */
+    public CheckpointedOperation addCheckpoint() {
+        if(steps.isEmpty()) {
+            throw new IllegalStateException("A checkpoint needs a step before it");
+        }
+        checkpoints.add(steps.size());
+        return this;
+    }
+
+    /**
+     * @param resumeStep A step restoring the state the steps need, e.g.
+     * selecting an applet, run before continuing from a checkpoint
+     * @return This operation
+     */
+    public CheckpointedOperation setResumeStep(Step resumeStep) {
+        this.resumeStep = resumeStep;
+        return this;
+    }
+
+    /**
+     * Runs the operation, continuing from the last checkpoint recorded
+     * for the card. The progress is removed from the store once all steps
+     * have completed.
+     * @param card The connected card
+     * @param uid The UID of the card
+     * @param store The store of the checkpoints
+     * @return The number of steps skipped thanks to an earlier checkpoint
+     * @throws IOException if a step fails. Checkpoints reached before the
+     * failure are kept.
+     */
+    public int run(IsoCard card, byte[] uid, CheckpointStore store) throws IOException {
+        int completed = store.get(uid, name);
+        if(completed > steps.size() || (completed > 0 && !checkpoints.contains(completed))) {
+            /* Recorded by a different version of the operation */
+            completed = 0;
+        }
+        if(completed > 0 && resumeStep != null) {
+            resumeStep.run(card);
+        }
+        for(int i = completed; i < steps.size(); i++) {
+            steps.get(i).run(card);
+            if(i + 1 < steps.size() && checkpoints.contains(i + 1)) {
+                store.put(uid, name, i + 1);
+            }
+        }
+        store.remove(uid, name);
+        return completed;
+    }
+}
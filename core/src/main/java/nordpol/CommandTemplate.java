@@ -0,0 +1,168 @@
+package nordpol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A command APDU with placeholders for the fields of a record, parsed
+ * once and filled for each record.
+ * <p>
+ * The template is hex, where spaces are ignored, with placeholders in
+ * braces. {@code {name}} is replaced by the value of the field, which
+ * has to be hex. {@code {lc}} is replaced by the number of bytes after
+ * it, so the length of the data does not have to be part of the record.
+ * <pre>
+ * {@code
+ * CommandTemplate storeKey = CommandTemplate.compile("80E20000 {lc} DF01 10 {key}",
+ *                                                    records.getFieldNames());
+ * byte[] command = storeKey.fill(record);
+ * }
+ * </pre>
+ * Filling decodes the fields straight into the command, so a record
+ * costs one array per command.
+ */
+public class CommandTemplate {
+    private static final int LITERAL = -1;
+    private static final int LENGTH = -2;
+    private static final String LENGTH_PLACEHOLDER = "lc";
+
+    private final String template;
+    private final byte[][] literals;
+    /* Per segment: LITERAL, LENGTH or the index of the field */
+    private final int[] segments;
+
+    private CommandTemplate(String template, byte[][] literals, int[] segments) {
+        this.template = template;
+        this.literals = literals;
+        this.segments = segments;
+    }
+
+    /**
+     * Parses a template
+     * @param template The template as described above
+     * @param fieldNames The names of the fields of the records to fill
+     * the template with
+     * @return The parsed template
+     * @throws IllegalArgumentException If the template is not valid or
+     * refers to a field that is not in fieldNames
+     */
+    public static CommandTemplate compile(String template, List<String> fieldNames) {
+        List<byte[]> literals = new ArrayList<byte[]>();
+        List<Integer> segments = new ArrayList<Integer>();
+        StringBuilder hex = new StringBuilder();
+        int i = 0;
+        while(i < template.length()) {
+            char c = template.charAt(i);
+            if(c == '{') {
+                int end = template.indexOf('}', i);
+                if(end < 0) {
+                    throw new IllegalArgumentException("Unterminated placeholder in " + template);
+                }
+                addLiteral(hex, literals, segments);
+                String name = template.substring(i + 1, end).trim();
+                if(name.equals(LENGTH_PLACEHOLDER)) {
+                    segments.add(LENGTH);
+                    literals.add(null);
+                } else {
+                    int field = fieldNames.indexOf(name);
+                    if(field < 0) {
+                        throw new IllegalArgumentException("Unknown field " + name + " in " + template);
+                    }
+                    segments.add(field);
+                    literals.add(null);
+                }
+                i = end + 1;
+            } else {
+                if(!Character.isWhitespace(c)) {
+                    hex.append(c);
+                }
+                i++;
+            }
+        }
+        addLiteral(hex, literals, segments);
+        int[] segmentArray = new int[segments.size()];
+        for(int j = 0; j < segmentArray.length; j++) {
+            segmentArray[j] = segments.get(j);
+        }
+        return new CommandTemplate(template, literals.toArray(new byte[literals.size()][]),
+                                   segmentArray);
+    }
+
+    /**
+     * Builds the command for a record
+     * @param record The fields of the record, in the order of the field
+     * names the template was compiled with
+     * @return The command APDU
+     * @throws IllegalArgumentException If a field used by the template is
+     * not hex or the data is too long for {@code {lc}}
+     */
+    public byte[] fill(String[] record) {
+        int length = 0;
+        for(int i = 0; i < segments.length; i++) {
+            length += segmentLength(i, record);
+        }
+        byte[] command = new byte[length];
+        int offset = 0;
+        for(int i = 0; i < segments.length; i++) {
+            int segment = segments[i];
+            if(segment == LITERAL) {
+                System.arraycopy(literals[i], 0, command, offset, literals[i].length);
+            } else if(segment == LENGTH) {
+                int lc = length - offset - 1;
+                if(lc > 0xFF) {
+                    throw new IllegalArgumentException("Command data of " + lc + " bytes is too long");
+                }
+                command[offset] = (byte) lc;
+            } else {
+                decodeHex(record[segment], command, offset);
+            }
+            offset += segmentLength(i, record);
+        }
+        return command;
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    private int segmentLength(int i, String[] record) {
+        int segment = segments[i];
+        if(segment == LITERAL) {
+            return literals[i].length;
+        } else if(segment == LENGTH) {
+            return 1;
+        } else {
+            String value = record[segment];
+            if((value.length() & 0x01) != 0) {
+                throw new IllegalArgumentException("Odd number of characters in " + value);
+            }
+            return value.length() / 2;
+        }
+    }
+
+    private static void addLiteral(StringBuilder hex, List<byte[]> literals, List<Integer> segments) {
+        if(hex.length() > 0) {
+            String value = hex.toString();
+            if((value.length() & 0x01) != 0) {
+                throw new IllegalArgumentException("Odd number of characters in " + value);
+            }
+            byte[] literal = new byte[value.length() / 2];
+            decodeHex(value, literal, 0);
+            literals.add(literal);
+            segments.add(LITERAL);
+            hex.setLength(0);
+        }
+    }
+
+    private static void decodeHex(String hex, byte[] target, int offset) {
+        for(int i = 0; i < hex.length(); i += 2) {
+            int high = Character.digit(hex.charAt(i), 16);
+            int low = Character.digit(hex.charAt(i + 1), 16);
+            if(high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not hex: " + hex);
+            }
+            target[offset + i / 2] = (byte) (high << 4 | low);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package nordpol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads records from comma separated values, one line at a time.
+ * <p>
+ * The first line names the fields. Fields may be quoted with double
+ * quotes, in which case they may contain commas and doubled quotes.
+ * Empty lines and lines starting with {@code #} are skipped. Fields are
+ * taken as they are, so hex values used in command templates must not
+ * contain spaces.
+ */
+public class CsvRecordSource implements RecordSource {
+    private final BufferedReader reader;
+    private final List<String> fieldNames;
+    private final List<String> fields = new ArrayList<String>();
+    private final StringBuilder field = new StringBuilder();
+    private long lineNumber = 0;
+
+    /**
+     * Reads the field names from the first line
+     * @param reader The reader to read the records from
+     */
+    public CsvRecordSource(Reader reader) throws IOException {
+        this.reader = reader instanceof BufferedReader ?
+            (BufferedReader) reader : new BufferedReader(reader);
+        String[] header = next();
+        if(header == null) {
+            throw new IOException("No header line with the field names");
+        }
+        fieldNames = Collections.unmodifiableList(Arrays.asList(header));
+    }
+
+    public List<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    public String[] next() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            if(line == null) {
+                return null;
+            }
+            lineNumber++;
+        } while(line.trim().length() == 0 || line.startsWith("#"));
+        String[] record = parse(line);
+        if(fieldNames != null && record.length != fieldNames.size()) {
+            throw new IOException("Line " + lineNumber + " has " + record.length +
+                                  " fields, expected " + fieldNames.size());
+        }
+        return record;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private String[] parse(String line) throws IOException {
+        fields.clear();
+        field.setLength(0);
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(quoted) {
+                if(c != '"') {
+                    field.append(c);
+                } else if(i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if(c == '"') {
+                quoted = true;
+            } else if(c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if(quoted) {
+            throw new IOException("Unterminated quote on line " + lineNumber);
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+}
@@ -0,0 +1,59 @@
+package nordpol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the outcome of each record as a line of comma separated values,
+ * flushed right away so the outcome of a run survives it being aborted.
+ * <p>
+ * Each line holds the number of the record, its first field, which
+ * usually identifies the card, {@code OK} or {@code FAILED} and the
+ * error message of failures.
+ */
+public class CsvResultSink implements ResultSink, Closeable {
+    private final Writer writer;
+
+    /**
+     * Writes the header line
+     * @param writer The writer to write the results to
+     */
+    public CsvResultSink(Writer writer) throws IOException {
+        this.writer = writer;
+        writer.write("record,key,result,error\n");
+        writer.flush();
+    }
+
+    public void success(long index, String[] record) throws IOException {
+        write(index, record, "OK", "");
+    }
+
+    public void failure(long index, String[] record, Exception error) throws IOException {
+        String message = error.getMessage();
+        write(index, record, "FAILED", message != null ? message : error.toString());
+    }
+
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private void write(long index, String[] record, String result, String error) throws IOException {
+        writer.write(Long.toString(index));
+        writer.write(',');
+        writer.write(quote(record.length > 0 ? record[0] : ""));
+        writer.write(',');
+        writer.write(result);
+        writer.write(',');
+        writer.write(quote(error));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private static String quote(String value) {
+        if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"").replace('\n', ' ') + "\"";
+    }
+}
@@ -0,0 +1,69 @@
+package nordpol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A FileContentCache keeping one file per cached content in a directory.
+ * <p>
+ * Content is written to a temporary file that is renamed once complete,
+ * so a crash never leaves a truncated entry behind.
+ */
+public class DirectoryFileContentCache implements FileContentCache {
+    private static final String SUFFIX = ".ef";
+
+    private final File directory;
+
+    /**
+     * @param directory The directory to keep the cached content in. It is
+     * created if it does not exist.
+     */
+    public DirectoryFileContentCache(File directory) {
+        this.directory = directory;
+    }
+
+    public byte[] get(String key) throws IOException {
+        File file = new File(directory, key + SUFFIX);
+        if(!file.isFile()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    public void put(String key, byte[] content) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create cache directory " + directory);
+        }
+        removeOtherVersions(key);
+        AtomicFiles.write(new File(directory, key + SUFFIX), content);
+    }
+
+    /* Keys are UID-FID-VERSION, drop the content of older versions */
+    private void removeOtherVersions(String key) {
+        String filePrefix = key.substring(0, key.lastIndexOf('-') + 1);
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File file: files) {
+            String name = file.getName();
+            if(name.startsWith(filePrefix) && name.endsWith(SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package nordpol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads transparent elementary files (ISO 7816-4) from a card.
+ * <p>
+ * The file is selected by its file ID and read with READ BINARY commands
+ * as large as the card allows, see {@link IsoCard#getMaxTransceiveLength()}.
+ * The content is streamed to an OutputStream as it arrives. Files longer
+ * than the 32767 byte offset READ BINARY can address fail with an
+ * IOException rather than being read incompletely.
+ * <p>
+ * With a {@link FileContentCache} the content of a file can be kept
+ * between taps. Entries are keyed by card UID, file ID and a version
+ * tag chosen by the caller, e.g. a serial number or hash read from the
+ * card, so that changed files are read again.
+ */
+public class ElementaryFileReader {
+    private static final int MAX_SHORT_LE = 256;
+    private static final int MAX_OFFSET = 0x7FFF;
+    private static final byte INS_SELECT = (byte) 0xA4;
+    private static final byte INS_READ_BINARY = (byte) 0xB0;
+    private static final int SW_OK = 0x9000;
+    private static final int SW_END_OF_FILE = 0x6282;
+    private static final int SW_WRONG_OFFSET = 0x6B00;
+    private static final int SW1_WRONG_LE = 0x6C;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final IsoCard card;
+    private final FileContentCache cache;
+
+    /**
+     * Creates a reader that always reads from the card
+     * @param card The connected card to read from
+     */
+    public ElementaryFileReader(IsoCard card) {
+        this(card, null);
+    }
+
+    /**
+     * @param card The connected card to read from
+     * @param cache The cache to keep file contents in, or null
+     */
+    public ElementaryFileReader(IsoCard card, FileContentCache cache) {
+        this.card = card;
+        this.cache = cache;
+    }
+
+    /**
+     * Reads a file, preferring the cached content of the same version
+     * @param uid The UID of the card
+     * @param fileId The two byte file ID
+     * @param version The version tag of the expected content
+     * @param sink The stream to write the content to
+     * @return true if the content came from the cache
+     */
+    public boolean read(byte[] uid, byte[] fileId, String version, OutputStream sink)
+        throws IOException {
+        if(cache == null) {
+            read(fileId, sink);
+            return false;
+        }
+        String key = Apdu.encodeHex(uid) + "-" + Apdu.encodeHex(fileId) + "-" +
+            Apdu.encodeHex(version.getBytes(UTF8));
+        byte[] cached = cache.get(key);
+        if(cached != null) {
+            sink.write(cached);
+            return true;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        read(fileId, new TeeOutputStream(sink, content));
+        cache.put(key, content.toByteArray());
+        return false;
+    }
+
+    /**
+     * Selects a file and reads its content from the card
+     * @param fileId The two byte file ID
+     * @param sink The stream to write the content to
+     */
+    public void read(byte[] fileId, OutputStream sink) throws IOException {
+        select(fileId);
+        int chunk = Math.min(MAX_SHORT_LE, card.getMaxTransceiveLength() - 2);
+        if(chunk <= 0) {
+            throw new IOException("Card can not transceive any data");
+        }
+        int offset = 0;
+        int le = chunk;
+        boolean leCorrected = false;
+        while(true) {
+            if(offset > MAX_OFFSET) {
+                throw new IOException("File is longer than READ BINARY can reach, " +
+                                      (MAX_OFFSET + 1) + " bytes");
+            }
+            byte[] response = card.transceive(readBinary(offset, le));
+            int sw = statusWord(response);
+            int length = response.length - 2;
+            if((sw >> 8) == SW1_WRONG_LE) {
+                /* Fewer bytes left than asked for, ask again once */
+                int exactLe = (sw & 0xFF) == 0 ? MAX_SHORT_LE : sw & 0xFF;
+                if(leCorrected || exactLe == le) {
+                    throw readFailed(offset, response);
+                }
+                le = exactLe;
+                leCorrected = true;
+                continue;
+            }
+            if(sw == SW_WRONG_OFFSET && offset > 0) {
+                return;
+            }
+            if(sw != SW_OK && sw != SW_END_OF_FILE) {
+                throw readFailed(offset, response);
+            }
+            sink.write(response, 0, length);
+            offset += length;
+            leCorrected = false;
+            if(sw == SW_END_OF_FILE || length < le || length == 0) {
+                return;
+            }
+        }
+    }
+
+    private void select(byte[] fileId) throws IOException {
+        byte[] command = new byte[] {0x00, INS_SELECT, 0x02, 0x0C, 0x02, fileId[0], fileId[1]};
+        byte[] response = card.transceive(command);
+        if(statusWord(response) != SW_OK) {
+            throw new IOException("SELECT of file " + Apdu.encodeHex(fileId) +
+                                  " failed with status " + Apdu.encodeHex(Apdu.statusBytes(response)));
+        }
+    }
+
+    private static IOException readFailed(int offset, byte[] response) {
+        return new IOException("READ BINARY failed at offset " + offset +
+                               " with status " + Apdu.encodeHex(Apdu.statusBytes(response)));
+    }
+
+    private static byte[] readBinary(int offset, int le) {
+        return new byte[] {0x00, INS_READ_BINARY, (byte) (offset >> 8), (byte) offset, (byte) le};
+    }
+
+    private static int statusWord(byte[] response) throws IOException {
+        if(response.length < 2) {
+            throw new IOException("Response without status word");
+        }
+        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+    }
+
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream first;
+        private final OutputStream second;
+
+        TeeOutputStream(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package nordpol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * A CheckpointStore persisting the progress in a properties file, so
+ * that an operation can be resumed after the app has been restarted.
+ * <p>
+ * The file is rewritten on every change through a temporary file that
+ * is renamed once complete, so a crash never leaves a truncated file
+ * behind.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+    private final File file;
+    private Properties checkpoints;
+
+    /**
+     * @param file The file to keep the progress in. It is created on the
+     * first checkpoint.
+     */
+    public FileCheckpointStore(File file) {
+        this.file = file;
+    }
+
+    public synchronized int get(byte[] uid, String operation) throws IOException {
+        String completedSteps = load().getProperty(MemoryCheckpointStore.key(uid, operation));
+        return completedSteps != null ? Integer.parseInt(completedSteps) : 0;
+    }
+
+    public synchronized void put(byte[] uid, String operation, int completedSteps)
+        throws IOException {
+        load().setProperty(MemoryCheckpointStore.key(uid, operation),
+                           Integer.toString(completedSteps));
+        save();
+    }
+
+    public synchronized void remove(byte[] uid, String operation) throws IOException {
+        if(load().remove(MemoryCheckpointStore.key(uid, operation)) != null) {
+            save();
+        }
+    }
+
+    private Properties load() throws IOException {
+        if(checkpoints == null) {
+            checkpoints = new Properties();
+            if(file.isFile()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    checkpoints.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        return checkpoints;
+    }
+
+    private void save() throws IOException {
+        AtomicFiles.write(file, new AtomicFiles.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    checkpoints.store(out, null);
+                }
+            });
+    }
+}
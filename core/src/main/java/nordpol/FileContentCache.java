@@ -0,0 +1,26 @@
+package nordpol;
+
+import java.io.IOException;
+
+/**
+ * Storage for the content of elementary files read by
+ * {@link ElementaryFileReader}.
+ * <p>
+ * Keys are made of hex characters and dashes only and identify the card
+ * UID, the file ID and the version of the file content.
+ */
+public interface FileContentCache {
+    /**
+     * @param key The key of the content
+     * @return The cached content or null if there is none
+     */
+    public byte[] get(String key) throws IOException;
+
+    /**
+     * Stores content, replacing other versions of the same file of the
+     * same card
+     * @param key The key of the content
+     * @param content The content of the file
+     */
+    public void put(String key, byte[] content) throws IOException;
+}
@@ -0,0 +1,15 @@
+package nordpol;
+
+/**
+ * A card keeping an {@link ApduFlightRecorder} of its exchanges.
+ * <p>
+ * OnCardErrorListeners are called with the card that failed, so they can
+ * check for this interface to see the APDUs leading up to the error, see
+ * {@link FlightRecorderDumper}.
+ */
+public interface FlightRecordedCard extends IsoCard {
+    /**
+     * @return The recorder of the last APDUs exchanged with the card
+     */
+    public ApduFlightRecorder getFlightRecorder();
+}
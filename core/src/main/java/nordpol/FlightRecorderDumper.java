@@ -0,0 +1,43 @@
+package nordpol;
+
+import java.io.IOException;
+
+/**
+ * An OnCardErrorListener dumping the flight recorder of the failed card.
+ * <p>
+ * Add it to a card to get the APDUs that led up to every error as hex,
+ * e.g. to log them in debug builds:
+ * <pre>
+ * {@code
+ * card.addOnCardErrorListener(new FlightRecorderDumper() {
+ *     protected void dumped(IsoCard card, IOException exception, String dump) {
+ *         Log.w("MyApp", "Card error, " + dump, exception);
+ *     }
+ * });
+ * }
+ * </pre>
+ * The dump holds the start of every command and response, which can
+ * include PINs, keys and one time passwords. Cards that do not implement
+ * {@link FlightRecordedCard} are dumped as an empty recorder.
+ */
+public abstract class FlightRecorderDumper implements OnCardErrorListener {
+    @Override
+    public void error(IsoCard card, IOException exception) {
+        String dump;
+        if(card instanceof FlightRecordedCard) {
+            dump = ((FlightRecordedCard) card).getFlightRecorder().dump();
+        } else {
+            dump = new ApduFlightRecorder(1, 0).dump();
+        }
+        dumped(card, exception, dump);
+    }
+
+    /**
+     * Called with the dump whenever the card reports an error
+     * @param card The card that failed
+     * @param exception The error of the card
+     * @param dump The dump of the flight recorder, see
+     * {@link ApduFlightRecorder#dump()}
+     */
+    protected abstract void dumped(IsoCard card, IOException exception, String dump);
+}
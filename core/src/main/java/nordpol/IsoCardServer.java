@@ -0,0 +1,303 @@
+package nordpol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Exposes an IsoCard over TCP to {@link RemoteIsoCard} clients.
+ * <p>
+ * All connections are served by a single thread using a selector, which
+ * also serializes the access to the card. Batches sent with
+ * {@link IsoCard#transceive(List)} arrive as a single frame and are
+ * answered with a single frame. Errors reported by the card to its
+ * {@link OnCardErrorListener}s are forwarded to all clients.
+ * <p>
+ * There is no authentication or encryption, anyone who can connect may
+ * send commands to the card. Bind to the loopback address unless the
+ * network in between is trusted.
+ * <pre>
+ * {@code
+ * InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+ * IsoCardServer server = new IsoCardServer(card, address);
+ * server.start();
+ * RemoteIsoCard remote = new RemoteIsoCard(server.getAddress());
+ * }
+ * </pre>
+ */
+public class IsoCardServer implements Closeable {
+    private final IsoCard card;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+    private final OnCardErrorListener errorForwarder = new OnCardErrorListener() {
+            @Override
+            public void error(IsoCard card, IOException exception) {
+                for(Connection connection: connections) {
+                    connection.send(RemoteFrames.messageFrame(RemoteFrames.CARD_ERROR,
+                                                              RemoteFrames.describe(exception)));
+                }
+                selector.wakeup();
+            }
+        };
+    private volatile boolean closed = false;
+    private Thread thread;
+
+    /**
+     * Binds the server. Connections are served once {@link #start()} is called.
+     * @param card The card to expose
+     * @param address The address to listen on, port 0 picks a free port.
+     * Prefer a loopback address, clients are not authenticated.
+     */
+    public IsoCardServer(IsoCard card, InetSocketAddress address) throws IOException {
+        this.card = card;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch(IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        card.addOnCardErrorListener(errorForwarder);
+    }
+
+    /**
+     * @return The address the server listens on
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Starts serving connections on a daemon thread
+     */
+    public synchronized void start() {
+        if(thread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve();
+                }
+            }, "nordpol-remote");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the server and closes all connections. The card itself is
+     * not closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        card.removeOnCardErrorListener(errorForwarder);
+        if(thread == null) {
+            serverChannel.close();
+            selector.close();
+        } else {
+            selector.wakeup();
+        }
+    }
+
+    private void serve() {
+        try {
+            while(!closed) {
+                for(Connection connection: connections) {
+                    connection.updateInterest();
+                }
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if(key.isReadable()) {
+                            connection.read();
+                        }
+                        if(key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch(IOException e) {
+                        connection.close();
+                    }
+                }
+            }
+        } catch(IOException e) {
+            /* The selector failed, nothing left to serve with */
+        } finally {
+            for(Connection connection: connections) {
+                connection.close();
+            }
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if(channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+    }
+
+    private ByteBuffer handle(byte type, ByteBuffer payload) {
+        try {
+            ByteBuffer result;
+            switch(type) {
+            case RemoteFrames.CONNECT:
+                card.connect();
+                result = RemoteFrames.frame(RemoteFrames.RESULT, 0);
+                break;
+            case RemoteFrames.CLOSE:
+                card.close();
+                result = RemoteFrames.frame(RemoteFrames.RESULT, 0);
+                break;
+            case RemoteFrames.TRANSCEIVE:
+                return RemoteFrames.apduFrame(RemoteFrames.RESULT,
+                                              card.transceive(RemoteFrames.decodeApdus(payload)));
+            case RemoteFrames.GET_MAX_TRANSCEIVE_LENGTH:
+                result = RemoteFrames.frame(RemoteFrames.RESULT, 4);
+                result.putInt(card.getMaxTransceiveLength());
+                break;
+            case RemoteFrames.SET_TIMEOUT:
+                card.setTimeout(payload.getInt());
+                result = RemoteFrames.frame(RemoteFrames.RESULT, 0);
+                break;
+            case RemoteFrames.IS_CONNECTED:
+                result = RemoteFrames.frame(RemoteFrames.RESULT, 1);
+                result.put((byte) (card.isConnected() ? 1 : 0));
+                break;
+            default:
+                return RemoteFrames.messageFrame(RemoteFrames.FAILURE, "Unknown request " + type);
+            }
+            result.flip();
+            return result;
+        } catch(Exception e) {
+            return RemoteFrames.messageFrame(RemoteFrames.FAILURE, RemoteFrames.describe(e));
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch(IOException e) {
+            /* Nothing to do about it */
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+        private ByteBuffer in = RemoteFrames.POOL.acquire(4096);
+        SelectionKey key;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void send(ByteBuffer frame) {
+            outgoing.add(frame);
+        }
+
+        void updateInterest() {
+            if(key.isValid()) {
+                key.interestOps(outgoing.isEmpty() ? SelectionKey.OP_READ :
+                                SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void read() throws IOException {
+            if(channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while(in.remaining() >= RemoteFrames.HEADER_LENGTH) {
+                int start = in.position();
+                byte type = in.get(start);
+                int length = payloadLength(start);
+                if(in.remaining() < RemoteFrames.HEADER_LENGTH + length) {
+                    break;
+                }
+                ByteBuffer payload = in.duplicate();
+                payload.position(start + RemoteFrames.HEADER_LENGTH);
+                payload.limit(start + RemoteFrames.HEADER_LENGTH + length);
+                in.position(payload.limit());
+                send(handle(type, payload));
+            }
+            in.compact();
+            if(in.position() >= RemoteFrames.HEADER_LENGTH) {
+                int needed = RemoteFrames.HEADER_LENGTH + payloadLength(0);
+                if(needed > in.capacity()) {
+                    ByteBuffer larger = RemoteFrames.POOL.acquire(needed);
+                    in.flip();
+                    larger.put(in);
+                    RemoteFrames.POOL.release(in);
+                    in = larger;
+                }
+            }
+            updateInterest();
+        }
+
+        void write() throws IOException {
+            ByteBuffer frame;
+            while((frame = outgoing.peek()) != null) {
+                channel.write(frame);
+                if(frame.hasRemaining()) {
+                    return;
+                }
+                outgoing.poll();
+                RemoteFrames.POOL.release(frame);
+            }
+            updateInterest();
+        }
+
+        void close() {
+            if(!connections.remove(this)) {
+                return;
+            }
+            if(key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            RemoteFrames.POOL.release(in);
+        }
+
+        private int payloadLength(int start) throws IOException {
+            int length = in.getInt(start + 1);
+            if(length < 0 || length > RemoteFrames.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package nordpol;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations.
+ * <p>
+ * Durations are counted in buckets whose upper bounds are powers of two
+ * microseconds, from 1 microsecond up to about 35 minutes. Recording is
+ * cheap and does not allocate, so histograms can be kept always on.
+ * Percentiles are reported as the upper bound of the bucket they fall
+ * in.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a duration
+     * @param nanos The duration in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        long duration = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(duration));
+        count.incrementAndGet();
+        totalNanos.addAndGet(duration);
+        long max;
+        while((max = maxNanos.get()) < duration && !maxNanos.compareAndSet(max, duration)) {
+            /* Retry until the maximum is updated or surpassed */
+        }
+    }
+
+    /**
+     * @return The number of recorded durations
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The longest recorded duration in nanoseconds
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return The mean of the recorded durations in nanoseconds, 0 if
+     * nothing was recorded
+     */
+    public long getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / n;
+    }
+
+    /**
+     * Returns an upper bound of a percentile of the recorded durations
+     * @param percentile The percentile between 0 and 100
+     * @return The upper bound of the bucket holding the percentile in
+     * nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for(long bucketCount: counts) {
+            total += bucketCount;
+        }
+        if(total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if(seen >= Math.max(1, rank)) {
+                return Math.min(getUpperBoundNanos(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * @return A copy of the counts per bucket, see {@link #getUpperBoundNanos(int)}
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * @param bucket The index of a bucket
+     * @return The longest duration counted in the bucket in nanoseconds
+     */
+    public static long getUpperBoundNanos(int bucket) {
+        return (1L << bucket) * 1000;
+    }
+
+    /**
+     * Forget all recorded durations
+     */
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                             getCount(), getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+                             getPercentileNanos(90) / 1e6, getPercentileNanos(99) / 1e6,
+                             getMaxNanos() / 1e6);
+    }
+
+    private static int bucketOf(long nanos) {
+        long micros = (nanos + 999) / 1000;
+        if(micros <= 1) {
+            return 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(micros - 1);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+}
@@ -0,0 +1,237 @@
+package nordpol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Sends a GlobalPlatform load file to a card as a sequence of LOAD
+ * commands.
+ * <p>
+ * The load file is read incrementally from a stream and framed into
+ * LOAD blocks as large as the card allows. Two command buffers are
+ * reused for all blocks, and the next block is read from the stream on
+ * a helper thread while the current one is being transceived. Since the
+ * command arrays are reused, the card must not keep references to them
+ * after transceive returns.
+ * <p>
+ * The card must already be prepared for the load, i.e. the security
+ * domain selected, any secure channel opened and INSTALL [for load]
+ * sent. When a secure channel wraps the commands, reduce the block size
+ * by its overhead with {@link #setMaxBlockSize(int)}.
+ */
+public class LoadFileLoader {
+    private static final int HEADER_LENGTH = 5;
+    private static final int MAX_SHORT_LC = 255;
+    private static final byte CLA_GP = (byte) 0x80;
+    private static final byte INS_LOAD = (byte) 0xE8;
+    private static final byte P1_MORE_BLOCKS = 0x00;
+    private static final byte P1_LAST_BLOCK = (byte) 0x80;
+    private static final byte TAG_LOAD_FILE_DATA_BLOCK = (byte) 0xC4;
+
+    /* The CAP components in the order they are to be loaded */
+    private static final String[] CAP_COMPONENTS = {
+        "Header", "Directory", "Import", "Applet", "Class", "Method",
+        "StaticField", "Export", "ConstantPool", "RefLocation"
+    };
+
+    private final IsoCard card;
+    private int maxBlockSize = MAX_SHORT_LC;
+
+    /**
+     * @param card The connected card to load to
+     */
+    public LoadFileLoader(IsoCard card) {
+        this.card = card;
+    }
+
+    /**
+     * Limits the data size of each LOAD command
+     * @param maxBlockSize The maximum number of data bytes per command
+     */
+    public void setMaxBlockSize(int maxBlockSize) {
+        if(maxBlockSize < 1 || maxBlockSize > MAX_SHORT_LC) {
+            throw new IllegalArgumentException("Invalid block size: " + maxBlockSize);
+        }
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    /**
+     * Loads the components of a CAP file
+     * @param capFile The CAP file
+     * @param listener The listener to report progress to, or null
+     */
+    public void loadCap(File capFile, OnLoadProgressListener listener) throws IOException {
+        ZipFile zip = new ZipFile(capFile);
+        try {
+            List<InputStream> components = new ArrayList<InputStream>();
+            long length = 0;
+            for(String component: CAP_COMPONENTS) {
+                ZipEntry entry = findComponent(zip, component);
+                if(entry != null) {
+                    components.add(zip.getInputStream(entry));
+                    length += entry.getSize();
+                }
+            }
+            if(components.isEmpty()) {
+                throw new IOException("No CAP components found in " + capFile);
+            }
+            load(new SequenceInputStream(Collections.enumeration(components)), length, listener);
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Loads a load file, i.e. the concatenated CAP components as found in
+     * an IJC file
+     * @param loadFile The stream to read the load file from
+     * @param length The number of bytes of the load file
+     * @param listener The listener to report progress to, or null
+     */
+    public void load(InputStream loadFile, long length, OnLoadProgressListener listener)
+        throws IOException {
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            load(new BlockSource(loadFile, length), listener, reader);
+        } finally {
+            reader.shutdownNow();
+        }
+    }
+
+    private void load(BlockSource source, OnLoadProgressListener listener, ExecutorService reader)
+        throws IOException {
+        int blockSize = Math.min(maxBlockSize, card.getMaxTransceiveLength() - HEADER_LENGTH);
+        if(blockSize < 1) {
+            throw new IOException("Card can not transceive LOAD commands");
+        }
+        long total = source.getTotalLength();
+        int blocks = (int) ((total + blockSize - 1) / blockSize);
+        byte[][] buffers = {
+            new byte[HEADER_LENGTH + blockSize], new byte[HEADER_LENGTH + blockSize]
+        };
+        Future<Integer> next = reader.submit(source.fill(buffers[0], blockSize));
+        long sent = 0;
+        for(int block = 0; block < blocks; block++) {
+            byte[] command = buffers[block % 2];
+            int dataLength = await(next);
+            boolean last = block == blocks - 1;
+            if(!last) {
+                /* Read the next block while this one is on its way */
+                next = reader.submit(source.fill(buffers[(block + 1) % 2], blockSize));
+            }
+            command[0] = CLA_GP;
+            command[1] = INS_LOAD;
+            command[2] = last ? P1_LAST_BLOCK : P1_MORE_BLOCKS;
+            command[3] = (byte) block;
+            command[4] = (byte) dataLength;
+            if(dataLength < blockSize) {
+                command = Arrays.copyOf(command, HEADER_LENGTH + dataLength);
+            }
+            byte[] response = card.transceive(command);
+            if(!Apdu.hasStatus(response, Apdu.OK_APDU)) {
+                throw new IOException("LOAD of block " + block + " failed with status " +
+                                      Apdu.encodeHex(Apdu.statusBytes(response)));
+            }
+            sent += dataLength;
+            if(listener != null) {
+                listener.blockLoaded(block, blocks, sent, total);
+            }
+        }
+    }
+
+    private static int await(Future<Integer> future) throws IOException {
+        try {
+            return future.get();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Reading load file failed: " + e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading load file");
+        }
+    }
+
+    private static ZipEntry findComponent(ZipFile zip, String component) {
+        String suffix = "/javacard/" + component + ".cap";
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while(entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if(entry.getName().endsWith(suffix)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The load file data block: the C4 tag and length followed by the
+     * load file, read in block sized pieces.
+     */
+    private static class BlockSource {
+        private final InputStream in;
+        private final long remainingTotal;
+        private byte[] header;
+        private long remaining;
+
+        BlockSource(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+            if(length < 0x80) {
+                header = new byte[] {TAG_LOAD_FILE_DATA_BLOCK, (byte) length};
+            } else if(length < 0x100) {
+                header = new byte[] {TAG_LOAD_FILE_DATA_BLOCK, (byte) 0x81, (byte) length};
+            } else if(length < 0x10000) {
+                header = new byte[] {TAG_LOAD_FILE_DATA_BLOCK, (byte) 0x82,
+                                     (byte) (length >> 8), (byte) length};
+            } else {
+                header = new byte[] {TAG_LOAD_FILE_DATA_BLOCK, (byte) 0x83, (byte) (length >> 16),
+                                     (byte) (length >> 8), (byte) length};
+            }
+            this.remainingTotal = header.length + length;
+        }
+
+        long getTotalLength() {
+            return remainingTotal;
+        }
+
+        Callable<Integer> fill(final byte[] buffer, final int blockSize) {
+            return new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    int filled = 0;
+                    if(header != null) {
+                        System.arraycopy(header, 0, buffer, HEADER_LENGTH, header.length);
+                        filled = header.length;
+                        header = null;
+                    }
+                    while(filled < blockSize && remaining > 0) {
+                        int read = in.read(buffer, HEADER_LENGTH + filled,
+                                           (int) Math.min(blockSize - filled, remaining));
+                        if(read < 0) {
+                            throw new IOException("Load file ended " + remaining + " bytes early");
+                        }
+                        filled += read;
+                        remaining -= read;
+                    }
+                    return filled;
+                }
+            };
+        }
+    }
+}
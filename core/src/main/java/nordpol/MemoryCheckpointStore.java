@@ -0,0 +1,29 @@
+package nordpol;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A CheckpointStore keeping the progress in memory, so that it survives
+ * the card leaving and re-entering the field but not the process.
+ */
+public class MemoryCheckpointStore implements CheckpointStore {
+    private final ConcurrentHashMap<String, Integer> checkpoints =
+        new ConcurrentHashMap<String, Integer>();
+
+    public int get(byte[] uid, String operation) {
+        Integer completedSteps = checkpoints.get(key(uid, operation));
+        return completedSteps != null ? completedSteps : 0;
+    }
+
+    public void put(byte[] uid, String operation, int completedSteps) {
+        checkpoints.put(key(uid, operation), completedSteps);
+    }
+
+    public void remove(byte[] uid, String operation) {
+        checkpoints.remove(key(uid, operation));
+    }
+
+    static String key(byte[] uid, String operation) {
+        return Apdu.encodeHex(uid) + "/" + operation;
+    }
+}
@@ -0,0 +1,11 @@
+package nordpol;
+
+public interface OnLoadProgressListener {
+    /** Called after the card accepted a LOAD block.
+     * @param block the number of the block, starting at 0
+     * @param blocks the total number of blocks
+     * @param bytesLoaded the number of load file bytes sent so far
+     * @param totalBytes the total number of load file bytes
+     */
+    void blockLoaded(int block, int blocks, long bytesLoaded, long totalBytes);
+}
@@ -0,0 +1,19 @@
+package nordpol;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a card is used within an {@link OperationContext} that was
+ * cancelled or whose deadline has passed
+ */
+public class OperationCancelledException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public OperationCancelledException(String message) {
+        super(message);
+    }
+
+    public OperationCancelledException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
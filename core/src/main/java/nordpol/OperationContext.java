@@ -0,0 +1,241 @@
+package nordpol;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A deadline and a cancellation signal for the work done with a card.
+ * <p>
+ * Cards wrapped with {@link #wrap(IsoCard)} check the context before
+ * every command, including every round of a GET RESPONSE loop such as
+ * {@link Apdu#transceiveAndGetResponse(byte[], IsoCard, String)}, and
+ * fail with an {@link OperationCancelledException} once it is cancelled
+ * or expired. The timeout of the card is lowered to what is left until
+ * the deadline, so a single slow command does not outlast it either.
+ * <p>
+ * {@link #cancel()} closes the wrapped cards right away, which also makes
+ * a command blocked on another thread fail, so an abandoned operation
+ * gives up its thread and the card without waiting for the card timeout.
+ * A context whose deadline has passed cancels itself the next time it is
+ * checked.
+ * <pre>
+ * {@code
+ * OperationContext context = new OperationContext(10, TimeUnit.SECONDS);
+ * IsoCard card = context.wrap(isoCard);
+ * try {
+ *     install(card);
+ * } finally {
+ *     context.finish();
+ * }
+ * }
+ * </pre>
+ */
+public class OperationContext {
+    private final long deadline;
+    private final List<IsoCard> cards = new CopyOnWriteArrayList<IsoCard>();
+    private volatile boolean cancelled = false;
+    private volatile boolean finished = false;
+    private volatile String reason;
+
+    /**
+     * Creates a context without a deadline
+     */
+    public OperationContext() {
+        this.deadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * @param timeout The time the operation may take from now
+     * @param unit The unit of timeout
+     */
+    public OperationContext(long timeout, TimeUnit unit) {
+        this.deadline = System.nanoTime() + unit.toNanos(timeout);
+    }
+
+    /**
+     * Attaches a card to the context
+     * @param card The card to use within the context
+     * @return The card checking the context before each command. Use it
+     * instead of the original card.
+     */
+    public IsoCard wrap(IsoCard card) {
+        cards.add(card);
+        if(cancelled) {
+            closeCards();
+        }
+        return new ContextIsoCard(this, card);
+    }
+
+    /**
+     * Cancels the operation and closes the wrapped cards. Does nothing if
+     * the context is already cancelled or finished.
+     */
+    public void cancel() {
+        cancel("Operation cancelled");
+    }
+
+    /**
+     * Marks the operation as done. Later cancellation no longer closes the
+     * wrapped cards, e.g. when they are handed on to another operation.
+     */
+    public void finish() {
+        finished = true;
+        cards.clear();
+    }
+
+    /**
+     * @return true if the context was cancelled or its deadline has passed
+     * before it was finished
+     */
+    public boolean isCancelled() {
+        return cancelled || !finished && deadline != Long.MAX_VALUE &&
+            System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @return The milliseconds left until the deadline, Long.MAX_VALUE if
+     * there is none
+     */
+    public long getRemainingMillis() {
+        if(deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * @throws OperationCancelledException If the context was cancelled or
+     * its deadline has passed
+     */
+    public void check() throws OperationCancelledException {
+        if(!cancelled && deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0) {
+            cancel("Operation deadline exceeded");
+        }
+        if(cancelled) {
+            throw new OperationCancelledException(reason);
+        }
+    }
+
+    private synchronized void cancel(String reason) {
+        if(cancelled || finished) {
+            return;
+        }
+        this.reason = reason;
+        cancelled = true;
+        closeCards();
+    }
+
+    private void closeCards() {
+        for(IsoCard card: cards) {
+            try {
+                card.close();
+            } catch(IOException e) {
+                /* Closing is all that is left to do with it */
+            }
+        }
+        cards.clear();
+    }
+
+    /* Checks the context before each command */
+    private static class ContextIsoCard implements IsoCard {
+        private final OperationContext context;
+        private final IsoCard card;
+        private int requestedTimeout;
+        private int appliedTimeout;
+
+        ContextIsoCard(OperationContext context, IsoCard card) {
+            this.context = context;
+            this.card = card;
+            this.requestedTimeout = card.getTimeout();
+            this.appliedTimeout = requestedTimeout;
+        }
+
+        public void addOnCardErrorListener(OnCardErrorListener listener) {
+            card.addOnCardErrorListener(listener);
+        }
+
+        public void removeOnCardErrorListener(OnCardErrorListener listener) {
+            card.removeOnCardErrorListener(listener);
+        }
+
+        public void close() throws IOException {
+            card.close();
+        }
+
+        public void connect() throws IOException {
+            context.check();
+            try {
+                card.connect();
+            } catch(IOException e) {
+                throw cancelledOr(e);
+            }
+            /* Connecting may reset the timeout */
+            requestedTimeout = card.getTimeout();
+            appliedTimeout = requestedTimeout;
+        }
+
+        public int getMaxTransceiveLength() throws IOException {
+            return card.getMaxTransceiveLength();
+        }
+
+        public int getTimeout() {
+            return requestedTimeout;
+        }
+
+        public boolean isConnected() {
+            return !context.cancelled && card.isConnected();
+        }
+
+        public void setTimeout(int timeout) {
+            requestedTimeout = timeout;
+            appliedTimeout = timeout;
+            card.setTimeout(timeout);
+        }
+
+        public byte[] transceive(byte[] data) throws IOException {
+            prepare();
+            try {
+                return card.transceive(data);
+            } catch(IOException e) {
+                throw cancelledOr(e);
+            }
+        }
+
+        /* Batches are sent as a whole, the context is checked before */
+        public List<byte[]> transceive(List<byte[]> data) throws IOException {
+            prepare();
+            try {
+                return card.transceive(data);
+            } catch(IOException e) {
+                throw cancelledOr(e);
+            }
+        }
+
+        private void prepare() throws IOException {
+            context.check();
+            long remaining = context.getRemainingMillis();
+            int timeout = requestedTimeout;
+            if(remaining != Long.MAX_VALUE && (timeout <= 0 || remaining < timeout)) {
+                timeout = (int) Math.max(1, remaining);
+            }
+            if(timeout != appliedTimeout) {
+                card.setTimeout(timeout);
+                appliedTimeout = timeout;
+            }
+        }
+
+        /* A command failing because the card was closed by cancel() */
+        private IOException cancelledOr(IOException e) {
+            if(context.isCancelled() && !(e instanceof OperationCancelledException)) {
+                try {
+                    context.check();
+                } catch(OperationCancelledException cancelled) {
+                    return new OperationCancelledException(cancelled.getMessage(), e);
+                }
+            }
+            return e;
+        }
+    }
+}
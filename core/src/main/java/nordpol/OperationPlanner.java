@@ -0,0 +1,174 @@
+package nordpol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Orders operations against several applets to minimize the number of
+ * SELECT commands.
+ * <p>
+ * Every applet switch costs a round trip plus the initialization of the
+ * applet. The planner runs operations in an order that keeps working
+ * with the selected applet as long as possible, only respecting the
+ * dependencies declared between operations. Operations that are not
+ * ordered by a dependency may run in any order.
+ * <p>
+ * The order is computed greedily: among the operations whose
+ * dependencies are done, those on the selected applet go first,
+ * operations that do not depend on an applet run right away, and
+ * otherwise the applet with the most operations ready is selected next.
+ * Ties are broken by the order the operations were added in.
+ */
+public class OperationPlanner {
+    private static final byte[] SW_OK = {(byte) 0x90, 0x00};
+
+    private final Map<CardOperation, List<CardOperation>> dependencies =
+        new LinkedHashMap<CardOperation, List<CardOperation>>();
+
+    /**
+     * Adds an operation
+     * @param operation The operation to add
+     * @param dependsOn Operations that have to be run before it. They are
+     * added as well if they have not been added before.
+     * @return This planner
+     */
+    public OperationPlanner add(CardOperation operation, CardOperation... dependsOn) {
+        for(CardOperation dependency: dependsOn) {
+            add(dependency);
+        }
+        List<CardOperation> edges = dependencies.get(operation);
+        if(edges == null) {
+            edges = new ArrayList<CardOperation>();
+            dependencies.put(operation, edges);
+        }
+        for(CardOperation dependency: dependsOn) {
+            if(!edges.contains(dependency)) {
+                edges.add(dependency);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Computes the order to run the operations in
+     * @param selectedAid The AID of the applet currently selected on the
+     * card or null if unknown
+     * @return All operations added, in the order they should run in
+     * @throws IllegalStateException if the dependencies contain a cycle
+     */
+    public List<CardOperation> plan(String selectedAid) {
+        Map<CardOperation, Integer> pending = new HashMap<CardOperation, Integer>();
+        Map<CardOperation, List<CardOperation>> dependents =
+            new HashMap<CardOperation, List<CardOperation>>();
+        Map<CardOperation, Integer> rank = new HashMap<CardOperation, Integer>();
+        List<CardOperation> ready = new ArrayList<CardOperation>();
+        for(Map.Entry<CardOperation, List<CardOperation>> entry: dependencies.entrySet()) {
+            rank.put(entry.getKey(), rank.size());
+            pending.put(entry.getKey(), entry.getValue().size());
+            if(entry.getValue().isEmpty()) {
+                ready.add(entry.getKey());
+            }
+            for(CardOperation dependency: entry.getValue()) {
+                List<CardOperation> list = dependents.get(dependency);
+                if(list == null) {
+                    list = new ArrayList<CardOperation>();
+                    dependents.put(dependency, list);
+                }
+                list.add(entry.getKey());
+            }
+        }
+
+        List<CardOperation> order = new ArrayList<CardOperation>(dependencies.size());
+        String current = selectedAid;
+        while(!ready.isEmpty()) {
+            CardOperation next = pick(ready, current);
+            ready.remove(next);
+            order.add(next);
+            if(next.getAid() != null) {
+                current = next.getAid();
+            }
+            List<CardOperation> unblocked = dependents.get(next);
+            if(unblocked == null) {
+                continue;
+            }
+            for(CardOperation dependent: unblocked) {
+                int left = pending.get(dependent) - 1;
+                pending.put(dependent, left);
+                if(left == 0) {
+                    insertByRank(ready, dependent, rank);
+                }
+            }
+        }
+        if(order.size() != dependencies.size()) {
+            throw new IllegalStateException("The operation dependencies contain a cycle");
+        }
+        return order;
+    }
+
+    /**
+     * Runs all operations in the planned order, selecting applets as
+     * needed
+     * @param card The connected card
+     * @param selectedAid The AID of the applet currently selected on the
+     * card or null if unknown
+     * @return The AID of the applet selected after the last operation
+     */
+    public String run(IsoCard card, String selectedAid) throws IOException {
+        String current = selectedAid;
+        for(CardOperation operation: plan(selectedAid)) {
+            String aid = operation.getAid();
+            if(aid != null && !aid.equalsIgnoreCase(current)) {
+                byte[] response = card.transceive(Apdu.select(aid));
+                if(!Apdu.hasStatus(response, SW_OK)) {
+                    throw new IOException("Could not select " + aid + ", status " +
+                                          Apdu.encodeHex(Apdu.statusBytes(response)));
+                }
+                current = aid;
+            }
+            operation.run(card);
+        }
+        return current;
+    }
+
+    private CardOperation pick(List<CardOperation> ready, String current) {
+        for(CardOperation operation: ready) {
+            String aid = operation.getAid();
+            if(aid == null || aid.equalsIgnoreCase(current)) {
+                return operation;
+            }
+        }
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        CardOperation best = null;
+        int bestCount = 0;
+        for(CardOperation operation: ready) {
+            String aid = operation.getAid().toUpperCase(Locale.ROOT);
+            Integer count = counts.get(aid);
+            count = count == null ? 1 : count + 1;
+            counts.put(aid, count);
+        }
+        for(CardOperation operation: ready) {
+            int count = counts.get(operation.getAid().toUpperCase(Locale.ROOT));
+            if(count > bestCount) {
+                best = operation;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    /* Keeps the ready operations in the order they were added in */
+    private void insertByRank(List<CardOperation> ready, CardOperation operation,
+                              Map<CardOperation, Integer> rank) {
+        int index = rank.get(operation);
+        int position = 0;
+        while(position < ready.size() && rank.get(ready.get(position)) < index) {
+            position++;
+        }
+        ready.add(position, operation);
+    }
+}
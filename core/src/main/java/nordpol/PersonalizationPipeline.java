@@ -0,0 +1,199 @@
+package nordpol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Personalizes a batch of cards, running the same commands on each card
+ * with the data of one record.
+ * <p>
+ * Records are read from a {@link RecordSource} as cards become
+ * available and their outcome is handed to a {@link ResultSink} right
+ * away, so memory use does not grow with the size of the batch. The
+ * commands are {@link CommandTemplate}s, parsed once per run. All
+ * commands of a record are built before the first one is sent, so a
+ * record with invalid data fails without touching a card.
+ * <pre>
+ * {@code
+ * PersonalizationPipeline pipeline = new PersonalizationPipeline()
+ *     .addCommand("00A4040007 A0000006170001")
+ *     .addCommand("80E20000 {lc} DF01 10 {key}")
+ *     .addCommand("80E28001 {lc} DF02 {pinLength} {pin}");
+ * pipeline.run(new CsvRecordSource(new FileReader(input)),
+ *              new CsvResultSink(new FileWriter(output)), reader1, reader2);
+ * }
+ * </pre>
+ * A record fails if a command does not answer with its expected status
+ * or the card reports an error; the card is released and the next record
+ * goes to the next card. Failures of the record source or the result
+ * sink abort the run.
+ */
+public class PersonalizationPipeline {
+    private static final String DEFAULT_STATUS = "9000";
+
+    private final List<String> templates = new ArrayList<String>();
+    private final List<byte[]> expectedStatuses = new ArrayList<byte[]>();
+
+    /**
+     * Adds a command expected to answer 9000
+     * @see #addCommand(String, String)
+     */
+    public PersonalizationPipeline addCommand(String template) {
+        return addCommand(template, DEFAULT_STATUS);
+    }
+
+    /**
+     * @param template The command as a {@link CommandTemplate}
+     * @param expectedStatus The status word the card has to answer with
+     * @return This pipeline
+     */
+    public PersonalizationPipeline addCommand(String template, String expectedStatus) {
+        templates.add(template);
+        expectedStatuses.add(Apdu.decodeHex(expectedStatus));
+        return this;
+    }
+
+    /**
+     * Personalizes cards until either the records or the cards run out.
+     * With more than one card source, each source is served by a thread
+     * of its own.
+     * @param records The records to personalize the cards with
+     * @param sink The sink receiving the outcome of each record
+     * @param cards The sources of the cards
+     * @return The number of cards personalized successfully
+     * @throws IllegalArgumentException If a template does not fit the
+     * fields of the records
+     */
+    public long run(RecordSource records, ResultSink sink, CardSource... cards)
+        throws IOException {
+        List<CommandTemplate> commands = new ArrayList<CommandTemplate>();
+        for(String template: templates) {
+            commands.add(CommandTemplate.compile(template, records.getFieldNames()));
+        }
+        Run run = new Run(records, sink, commands);
+        if(cards.length == 1) {
+            run.serve(cards[0]);
+            return run.personalized;
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < cards.length; i++) {
+            Thread thread = new Thread(run.worker(cards[i]), "nordpol-personalization-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            for(Thread thread: threads) {
+                thread.join();
+            }
+        } catch(InterruptedException e) {
+            run.abort(new IOException("Interrupted"));
+            Thread.currentThread().interrupt();
+        }
+        run.rethrow();
+        return run.personalized;
+    }
+
+    private class Run {
+        private final RecordSource records;
+        private final ResultSink sink;
+        private final List<CommandTemplate> commands;
+        private long index = 0;
+        private long personalized = 0;
+        private volatile boolean recordsExhausted = false;
+        private volatile Throwable failure;
+
+        Run(RecordSource records, ResultSink sink, List<CommandTemplate> commands) {
+            this.records = records;
+            this.sink = sink;
+            this.commands = commands;
+        }
+
+        Runnable worker(final CardSource cards) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(cards);
+                    } catch(Throwable e) {
+                        abort(e);
+                    }
+                }
+            };
+        }
+
+        void serve(CardSource cards) throws IOException {
+            IsoCard card;
+            /* Check for records before waiting for a card, so the other
+             * workers do not take one more card each at the end */
+            while(failure == null && !recordsExhausted && (card = cards.next()) != null) {
+                try {
+                    long recordIndex;
+                    String[] record;
+                    synchronized(this) {
+                        record = failure == null && !recordsExhausted ? records.next() : null;
+                        recordsExhausted = record == null;
+                        recordIndex = ++index;
+                    }
+                    if(record == null) {
+                        return;
+                    }
+                    personalize(card, recordIndex, record);
+                } finally {
+                    cards.release(card);
+                }
+            }
+        }
+
+        synchronized void abort(Throwable e) {
+            if(failure == null) {
+                failure = e;
+            }
+        }
+
+        void rethrow() throws IOException {
+            if(failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if(failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if(failure instanceof Error) {
+                throw (Error) failure;
+            } else if(failure != null) {
+                throw new IOException(failure);
+            }
+        }
+
+        private void personalize(IsoCard card, long recordIndex, String[] record)
+            throws IOException {
+            Exception error = null;
+            try {
+                byte[][] apdus = new byte[commands.size()][];
+                for(int i = 0; i < apdus.length; i++) {
+                    apdus[i] = commands.get(i).fill(record);
+                }
+                for(int i = 0; i < apdus.length; i++) {
+                    byte[] response = card.transceive(apdus[i]);
+                    if(response.length < 2) {
+                        throw new IOException("Command " + (i + 1) + " got no status word");
+                    }
+                    if(!Apdu.hasStatus(response, expectedStatuses.get(i))) {
+                        throw new IOException("Command " + (i + 1) + " answered " +
+                                              Apdu.encodeHex(Apdu.statusBytes(response)));
+                    }
+                }
+            } catch(IOException e) {
+                error = e;
+            } catch(IllegalArgumentException e) {
+                error = e;
+            }
+            synchronized(this) {
+                if(error == null) {
+                    personalized++;
+                    sink.success(recordIndex, record);
+                } else {
+                    sink.failure(recordIndex, record, error);
+                }
+            }
+        }
+    }
+}
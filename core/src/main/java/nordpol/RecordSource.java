@@ -0,0 +1,22 @@
+package nordpol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A stream of per-card data records, read one at a time
+ * @see CsvRecordSource
+ */
+public interface RecordSource extends Closeable {
+    /**
+     * @return The names of the fields of each record, in order
+     */
+    public List<String> getFieldNames();
+
+    /**
+     * @return The fields of the next record, or null at the end of the
+     * stream
+     */
+    public String[] next() throws IOException;
+}
@@ -0,0 +1,94 @@
+package nordpol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The framing shared by {@link RemoteIsoCard} and {@link IsoCardServer}.
+ * <p>
+ * Every frame is a one byte type, a four byte big endian payload length
+ * and the payload. Requests are answered in order by a RESULT or a
+ * FAILURE frame, while CARD_ERROR frames may be sent by the server at
+ * any time. Lists of APDUs are encoded as a four byte length followed
+ * by the APDU, repeated.
+ */
+final class RemoteFrames {
+    static final int HEADER_LENGTH = 5;
+    static final int MAX_PAYLOAD_LENGTH = 1 << 24;
+
+    static final byte CONNECT = 0x01;
+    static final byte CLOSE = 0x02;
+    static final byte TRANSCEIVE = 0x03;
+    static final byte GET_MAX_TRANSCEIVE_LENGTH = 0x04;
+    static final byte SET_TIMEOUT = 0x05;
+    static final byte IS_CONNECTED = 0x06;
+
+    static final byte RESULT = 0x40;
+    static final byte FAILURE = 0x41;
+    static final byte CARD_ERROR = 0x42;
+
+    static final ByteBufferPool POOL = new ByteBufferPool();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private RemoteFrames() {
+    }
+
+    /**
+     * @return A pooled buffer with the header written, ready for the payload
+     */
+    static ByteBuffer frame(byte type, int payloadLength) {
+        ByteBuffer frame = POOL.acquire(HEADER_LENGTH + payloadLength);
+        frame.put(type).putInt(payloadLength);
+        return frame;
+    }
+
+    static ByteBuffer apduFrame(byte type, List<byte[]> apdus) {
+        int length = 0;
+        for(byte[] apdu: apdus) {
+            length += 4 + apdu.length;
+        }
+        ByteBuffer frame = frame(type, length);
+        for(byte[] apdu: apdus) {
+            frame.putInt(apdu.length).put(apdu);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    static List<byte[]> decodeApdus(ByteBuffer payload) throws IOException {
+        List<byte[]> apdus = new ArrayList<byte[]>();
+        while(payload.hasRemaining()) {
+            if(payload.remaining() < 4) {
+                throw new IOException("Truncated APDU length");
+            }
+            int length = payload.getInt();
+            if(length < 0 || length > payload.remaining()) {
+                throw new IOException("Truncated APDU");
+            }
+            byte[] apdu = new byte[length];
+            payload.get(apdu);
+            apdus.add(apdu);
+        }
+        return apdus;
+    }
+
+    static ByteBuffer messageFrame(byte type, String message) {
+        byte[] bytes = String.valueOf(message).getBytes(UTF8);
+        ByteBuffer frame = frame(type, bytes.length);
+        frame.put(bytes).flip();
+        return frame;
+    }
+
+    static String decodeMessage(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    static String describe(Exception e) {
+        return e.getClass().getName() + ": " + e.getMessage();
+    }
+}
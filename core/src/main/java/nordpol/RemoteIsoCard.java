@@ -0,0 +1,214 @@
+package nordpol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An IsoCard on a remote host, served by an {@link IsoCardServer}.
+ * <p>
+ * Every call is a round trip to the server, so sending commands as a
+ * batch with {@link #transceive(List)} is much faster than one by one:
+ * the whole batch travels in a single frame each way. Errors the remote
+ * card reports to its listeners are reported to the listeners of this
+ * card as IOExceptions, as are failures of the connection itself.
+ * <p>
+ * The timeout set with {@link #setTimeout(int)} is sent along with the
+ * next request.
+ */
+public class RemoteIsoCard implements IsoCard {
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(RemoteFrames.HEADER_LENGTH);
+    private final List<OnCardErrorListener> errorListeners =
+        new CopyOnWriteArrayList<OnCardErrorListener>();
+    private volatile int timeout = 0;
+    private volatile boolean timeoutChanged = false;
+
+    /**
+     * Connects to a server. The remote card is connected separately with
+     * {@link #connect()}.
+     * @param address The address of the server
+     */
+    public RemoteIsoCard(SocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    public void addOnCardErrorListener(OnCardErrorListener listener) {
+        errorListeners.add(listener);
+    }
+
+    public void removeOnCardErrorListener(OnCardErrorListener listener) {
+        errorListeners.remove(listener);
+    }
+
+    /**
+     * Closes the remote card and the connection to the server
+     */
+    public synchronized void close() throws IOException {
+        try {
+            if(channel.isOpen()) {
+                RemoteFrames.POOL.release(call(emptyFrame(RemoteFrames.CLOSE)));
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    public synchronized void connect() throws IOException {
+        RemoteFrames.POOL.release(call(emptyFrame(RemoteFrames.CONNECT)));
+    }
+
+    public synchronized int getMaxTransceiveLength() throws IOException {
+        ByteBuffer result = call(emptyFrame(RemoteFrames.GET_MAX_TRANSCEIVE_LENGTH));
+        try {
+            return result.getInt();
+        } finally {
+            RemoteFrames.POOL.release(result);
+        }
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return true if the remote card is connected, false if it is not or
+     * if the server can not be reached
+     */
+    public synchronized boolean isConnected() {
+        if(!channel.isOpen()) {
+            return false;
+        }
+        try {
+            ByteBuffer result = call(emptyFrame(RemoteFrames.IS_CONNECTED));
+            try {
+                return result.get() != 0;
+            } finally {
+                RemoteFrames.POOL.release(result);
+            }
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+        this.timeoutChanged = true;
+    }
+
+    public byte[] transceive(byte[] data) throws IOException {
+        return transceive(Collections.singletonList(data)).get(0);
+    }
+
+    public synchronized List<byte[]> transceive(List<byte[]> data) throws IOException {
+        ByteBuffer result = call(RemoteFrames.apduFrame(RemoteFrames.TRANSCEIVE, data));
+        try {
+            return RemoteFrames.decodeApdus(result);
+        } finally {
+            RemoteFrames.POOL.release(result);
+        }
+    }
+
+    private static ByteBuffer emptyFrame(byte type) {
+        ByteBuffer frame = RemoteFrames.frame(type, 0);
+        frame.flip();
+        return frame;
+    }
+
+    /* Sends a request, pipelined behind a pending timeout change, and
+     * returns the payload of its result in a pooled buffer.
+     */
+    private ByteBuffer call(ByteBuffer request) throws IOException {
+        boolean sendTimeout = timeoutChanged;
+        try {
+            if(sendTimeout) {
+                timeoutChanged = false;
+                ByteBuffer timeoutFrame = RemoteFrames.frame(RemoteFrames.SET_TIMEOUT, 4);
+                timeoutFrame.putInt(timeout).flip();
+                writeFully(timeoutFrame);
+            }
+            writeFully(request);
+        } catch(IOException e) {
+            throw connectionFailed(e);
+        }
+        if(sendTimeout) {
+            RemoteFrames.POOL.release(readResult());
+        }
+        return readResult();
+    }
+
+    private ByteBuffer readResult() throws IOException {
+        while(true) {
+            byte type;
+            ByteBuffer payload;
+            try {
+                header.clear();
+                readFully(header);
+                header.flip();
+                type = header.get();
+                int length = header.getInt();
+                if(length < 0 || length > RemoteFrames.MAX_PAYLOAD_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                payload = RemoteFrames.POOL.acquire(length);
+                payload.limit(length);
+                readFully(payload);
+                payload.flip();
+            } catch(IOException e) {
+                throw connectionFailed(e);
+            }
+            switch(type) {
+            case RemoteFrames.RESULT:
+                return payload;
+            case RemoteFrames.CARD_ERROR:
+                notifyListeners(new IOException(RemoteFrames.decodeMessage(payload)));
+                RemoteFrames.POOL.release(payload);
+                break;
+            default:
+                String message = RemoteFrames.decodeMessage(payload);
+                RemoteFrames.POOL.release(payload);
+                throw new IOException(message);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer frame) throws IOException {
+        try {
+            while(frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        } finally {
+            RemoteFrames.POOL.release(frame);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by the server");
+            }
+        }
+    }
+
+    private IOException connectionFailed(IOException e) {
+        try {
+            channel.close();
+        } catch(IOException ignored) {
+            /* Already failing */
+        }
+        notifyListeners(e);
+        return e;
+    }
+
+    private void notifyListeners(IOException exception) {
+        for(OnCardErrorListener listener: errorListeners) {
+            listener.error(this, exception);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package nordpol;
+
+import java.io.IOException;
+
+/**
+ * Receives the outcome of each record of a {@link PersonalizationPipeline}
+ * as soon as it is known. Calls are never concurrent, but records may
+ * complete out of order when several card sources are used.
+ * @see CsvResultSink
+ */
+public interface ResultSink {
+    /**
+     * @param index The number of the record in the source, starting at 1
+     * @param record The fields of the record
+     */
+    public void success(long index, String[] record) throws IOException;
+
+    /**
+     * @param index The number of the record in the source, starting at 1
+     * @param record The fields of the record
+     * @param error Why the card could not be personalized with the record
+     */
+    public void failure(long index, String[] record, Exception error) throws IOException;
+}
@@ -0,0 +1,121 @@
+package nordpol
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, File}
+import java.util.concurrent.CopyOnWriteArrayList
+import scala.collection.JavaConversions._
+import org.scalatest._
+
+class AidRouterSpec extends WordSpec with Matchers {
+  val first = "A0000006170001"
+  val second = "A0000006170002"
+  val third = "A0000006170003"
+  val uid = Apdu.decodeHex("04112233")
+
+  /** A card carrying the given applets */
+  def cardWith(aids: String*) = new FakeIsoCard({ command =>
+    val hex = Apdu.encodeHex(command)
+    if (aids.exists(aid => hex == Apdu.encodeHex(Apdu.select(aid)))) Apdu.decodeHex("9000")
+    else Apdu.decodeHex("6A82")
+  })
+
+  def selects(card: FakeIsoCard): Seq[String] =
+    card.commands.map(command => Apdu.encodeHex(command.drop(5))).toList
+
+  class RecordingHandler extends AidRouter.AidHandler {
+    val handled = new CopyOnWriteArrayList[String]()
+    def handle(card: IsoCard, aid: String, selectResponse: Array[Byte]): Unit = handled.add(aid)
+  }
+
+  def router(handler: AidRouter.AidHandler) =
+    new AidRouter().addRoute(first, handler).addRoute(second, handler).addRoute(third, handler)
+
+  "AidRouter.route" should {
+    "probe in the order the routes were added" in {
+      val handler = new RecordingHandler()
+      val card = cardWith(third)
+      router(handler).route(card, null) shouldEqual third
+      selects(card) shouldEqual Seq(first, second, third)
+      handler.handled.toList shouldEqual Seq(third)
+    }
+    "probe the AIDs matching most often first" in {
+      val r = router(new RecordingHandler())
+      r.route(cardWith(third), null)
+      r.route(cardWith(third), null)
+      r.route(cardWith(second), null)
+      r.getProbeOrder.toList shouldEqual Seq(third, second, first)
+      val card = cardWith(second)
+      r.route(card, null) shouldEqual second
+      selects(card) shouldEqual Seq(third, second)
+    }
+    "select the AID of a known card directly" in {
+      val r = router(new RecordingHandler())
+      r.route(cardWith(third), uid)
+      val card = cardWith(third)
+      r.route(card, uid) shouldEqual third
+      selects(card) shouldEqual Seq(third)
+    }
+    "probe again if a known card no longer matches" in {
+      val r = router(new RecordingHandler())
+      r.route(cardWith(third), uid)
+      val card = cardWith(second)
+      r.route(card, uid) shouldEqual second
+      selects(card) shouldEqual Seq(third, first, second)
+    }
+    "return null if no applet matches" in {
+      val handler = new RecordingHandler()
+      router(handler).route(cardWith(), uid) shouldEqual null
+      handler.handled.size shouldEqual 0
+    }
+  }
+
+  "AidRouter state" should {
+    "survive a store and load" in {
+      val r = router(new RecordingHandler())
+      r.route(cardWith(third), uid)
+      val out = new ByteArrayOutputStream()
+      r.store(out)
+      val loaded = router(new RecordingHandler())
+      loaded.load(new ByteArrayInputStream(out.toByteArray))
+      loaded.getProbeOrder.head shouldEqual third
+      val card = cardWith(third)
+      loaded.route(card, uid)
+      selects(card) shouldEqual Seq(third)
+    }
+    "be kept in the state file" in TempDirectory("aid-router") { directory =>
+      val file = new File(directory, "router.properties")
+      val handler = new RecordingHandler()
+      new AidRouter(file).addRoute(first, handler).addRoute(second, handler).route(cardWith(second), uid)
+      val reloaded = new AidRouter(file).addRoute(first, handler).addRoute(second, handler)
+      reloaded.getProbeOrder.toList shouldEqual Seq(second, first)
+    }
+    "be written after the handler and at most every few seconds" in TempDirectory("aid-router") { directory =>
+      val file = new File(directory, "router.properties")
+      val existed = new CopyOnWriteArrayList[Boolean]()
+      val handler = new AidRouter.AidHandler {
+        def handle(card: IsoCard, aid: String, selectResponse: Array[Byte]): Unit =
+          existed.add(file.exists)
+      }
+      val r = new AidRouter(file).addRoute(first, handler).addRoute(second, handler)
+      r.route(cardWith(second), uid)
+      existed.toList shouldEqual Seq(false)
+      file.exists shouldEqual true
+      r.route(cardWith(first), null)
+      r.route(cardWith(first), null)
+      new AidRouter(file).addRoute(first, handler).addRoute(second, handler)
+        .getProbeOrder.toList shouldEqual Seq(second, first)
+      r.save()
+      new AidRouter(file).addRoute(first, handler).addRoute(second, handler)
+        .getProbeOrder.toList shouldEqual Seq(first, second)
+    }
+    "not fail the routing if it can not be written" in TempDirectory("aid-router") { directory =>
+      val blocker = new File(directory, "blocker")
+      blocker.createNewFile() shouldEqual true
+      val handler = new RecordingHandler()
+      val r = new AidRouter(new File(blocker, "router.properties"))
+        .addRoute(first, handler)
+      r.route(cardWith(first), uid) shouldEqual first
+      handler.handled.toList shouldEqual Seq(first)
+      an [java.io.IOException] should be thrownBy r.save()
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package nordpol
+
+import org.scalatest._
+
+class ApduFlightRecorderSpec extends WordSpec with Matchers {
+  "ApduFlightRecorder.dump" should {
+    "report an empty recorder" in {
+      new ApduFlightRecorder(4, 4).dump() shouldEqual "Last 0 of 0 APDUs"
+    }
+    "list commands and responses oldest first" in {
+      val recorder = new ApduFlightRecorder(4, 4)
+      recorder.recordCommand(Apdu.decodeHex("00A40400"))
+      recorder.recordResponse(Apdu.decodeHex("9000"))
+      val lines = recorder.dump().split("\n")
+      lines(0) shouldEqual "Last 2 of 2 APDUs"
+      lines(1) should endWith (">> 00A40400 (4 bytes)")
+      lines(2) should endWith ("<< 9000 (2 bytes)")
+    }
+    "truncate APDUs to the prefix length" in {
+      val recorder = new ApduFlightRecorder(4, 2)
+      recorder.recordCommand(Apdu.decodeHex("00A40400"))
+      recorder.dump().split("\n")(1) should endWith (">> 00A4... (4 bytes)")
+    }
+    "keep only the last entries" in {
+      val recorder = new ApduFlightRecorder(2, 4)
+      recorder.recordCommand(Apdu.decodeHex("01"))
+      recorder.recordCommand(Apdu.decodeHex("02"))
+      recorder.recordCommand(Apdu.decodeHex("03"))
+      val lines = recorder.dump().split("\n")
+      lines(0) shouldEqual "Last 2 of 3 APDUs"
+      lines(1) should endWith (">> 02 (1 bytes)")
+      lines(2) should endWith (">> 03 (1 bytes)")
+    }
+  }
+}
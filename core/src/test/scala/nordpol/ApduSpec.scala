@@ -13,6 +13,9 @@ class ApduSpec extends WordSpec with Matchers {
     "encode several bytes" in {
       Apdu.encodeHex(Array[Byte](0xFF.toByte, 0x00.toByte, 0x11.toByte)) shouldEqual "FF0011"
     }
+    "encode a range of bytes" in {
+      Apdu.encodeHex(Array[Byte](0xFF.toByte, 0x00.toByte, 0x11.toByte), 1, 2) shouldEqual "0011"
+    }
   }
   "Apdu.decodeHex" should {
     "decode one byte" in {
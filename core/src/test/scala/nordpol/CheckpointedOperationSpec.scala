@@ -0,0 +1,78 @@
+package nordpol
+
+import java.io.{File, IOException}
+import org.scalatest._
+
+class CheckpointedOperationSpec extends WordSpec with Matchers {
+  val uid = Apdu.decodeHex("04112233")
+
+  def step(command: String) = new CheckpointedOperation.Step {
+    def run(card: IsoCard): Unit = Apdu.transceiveAndRequireOk(Apdu.decodeHex(command), card)
+  }
+
+  def operation = new CheckpointedOperation("install")
+    .setResumeStep(step("00"))
+    .addStep(step("01")).addStep(step("02")).addCheckpoint()
+    .addStep(step("03")).addCheckpoint()
+    .addStep(step("04"))
+
+  /** A card that is lost when it receives the given command */
+  def cardLostAt(command: String) = new FakeIsoCard({ received =>
+    if (Apdu.encodeHex(received) == command) throw new IOException("Tag was lost.")
+    Apdu.decodeHex("9000")
+  })
+
+  def okCard = new FakeIsoCard(_ => Apdu.decodeHex("9000"))
+
+  def resumeAfterLoss(store: CheckpointStore, newStore: => CheckpointStore) = {
+    val first = cardLostAt("04")
+    intercept[IOException] {
+      operation.run(first, uid, store)
+    }
+    first.commandsHex shouldEqual Seq("01", "02", "03", "04")
+
+    val second = okCard
+    operation.run(second, uid, newStore) shouldEqual 3
+    second.commandsHex shouldEqual Seq("00", "04")
+  }
+
+  "CheckpointedOperation.run" should {
+    "run all steps of a new card" in {
+      val card = okCard
+      operation.run(card, uid, new MemoryCheckpointStore()) shouldEqual 0
+      card.commandsHex shouldEqual Seq("01", "02", "03", "04")
+    }
+    "resume from the last checkpoint" in {
+      val store = new MemoryCheckpointStore()
+      resumeAfterLoss(store, store)
+    }
+    "run steps after the last checkpoint again" in {
+      val store = new MemoryCheckpointStore()
+      intercept[IOException] {
+        operation.run(cardLostAt("02"), uid, store)
+      }
+      val card = okCard
+      operation.run(card, uid, store) shouldEqual 0
+      card.commandsHex shouldEqual Seq("01", "02", "03", "04")
+    }
+    "keep the progress of other cards apart" in {
+      val store = new MemoryCheckpointStore()
+      intercept[IOException] {
+        operation.run(cardLostAt("04"), uid, store)
+      }
+      val card = okCard
+      operation.run(card, Apdu.decodeHex("04445566"), store) shouldEqual 0
+      store.get(uid, "install") shouldEqual 3
+    }
+    "forget the progress once completed" in {
+      val store = new MemoryCheckpointStore()
+      resumeAfterLoss(store, store)
+      store.get(uid, "install") shouldEqual 0
+    }
+    "persist the progress in a file" in TempDirectory("checkpoints") { directory =>
+      val file = new File(directory, "install.properties")
+      resumeAfterLoss(new FileCheckpointStore(file), new FileCheckpointStore(file))
+      new FileCheckpointStore(file).get(uid, "install") shouldEqual 0
+    }
+  }
+}
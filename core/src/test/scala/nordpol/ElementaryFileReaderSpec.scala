@@ -0,0 +1,100 @@
+package nordpol
+
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import org.scalatest._
+
+class ElementaryFileReaderSpec extends WordSpec with Matchers {
+  val content = Array.tabulate[Byte](600)(_.toByte)
+
+  def fileCard(maxTransceiveLength: Int = 253) = new FakeIsoCard({ command =>
+    (command(1) & 0xFF) match {
+      case 0xA4 => Apdu.decodeHex("9000")
+      case 0xB0 =>
+        val offset = ((command(2) & 0xFF) << 8) | (command(3) & 0xFF)
+        val le = if (command(4) == 0) 256 else command(4) & 0xFF
+        if (offset >= content.length) Apdu.decodeHex("6B00")
+        else {
+          val data = content.slice(offset, math.min(offset + le, content.length))
+          data ++ Apdu.decodeHex(if (data.length < le) "6282" else "9000")
+        }
+    }
+  }, maxTransceiveLength)
+
+  "ElementaryFileReader.read" should {
+    "select the file and read it in chunks" in {
+      val card = fileCard()
+      val sink = new ByteArrayOutputStream()
+      new ElementaryFileReader(card).read(Apdu.decodeHex("2F01"), sink)
+      sink.toByteArray shouldEqual content
+      card.commandsHex shouldEqual Seq("00A4020C022F01", "00B00000FB", "00B000FBFB", "00B001F6FB")
+    }
+    "use the largest chunks the card allows" in {
+      val card = fileCard(maxTransceiveLength = 1000)
+      val sink = new ByteArrayOutputStream()
+      new ElementaryFileReader(card).read(Apdu.decodeHex("2F01"), sink)
+      sink.toByteArray shouldEqual content
+      card.commandsHex shouldEqual Seq("00A4020C022F01", "00B0000000", "00B0010000", "00B0020000")
+    }
+    "fail if the file can not be selected" in {
+      val card = new FakeIsoCard(_ => Apdu.decodeHex("6A82"))
+      intercept[IOException] {
+        new ElementaryFileReader(card).read(Apdu.decodeHex("2F01"), new ByteArrayOutputStream())
+      }
+    }
+    "ask again once with the length the card asks for" in {
+      val card = new FakeIsoCard({ command =>
+        (command(1) & 0xFF, command(3) & 0xFF, command(4) & 0xFF) match {
+          case (0xA4, _, _) => Apdu.decodeHex("9000")
+          case (0xB0, 0x00, 0x10) => content.take(0x10) ++ Apdu.decodeHex("9000")
+          case (0xB0, 0x00, _) => Apdu.decodeHex("6C10")
+          case (0xB0, _, _) => Apdu.decodeHex("6B00")
+        }
+      })
+      val sink = new ByteArrayOutputStream()
+      new ElementaryFileReader(card).read(Apdu.decodeHex("2F01"), sink)
+      sink.toByteArray shouldEqual content.take(0x10)
+      card.commandsHex shouldEqual Seq("00A4020C022F01", "00B00000FB", "00B0000010", "00B0001010")
+    }
+    "fail if the card keeps asking for another length" in {
+      val card = new FakeIsoCard({ command =>
+        if ((command(1) & 0xFF) == 0xA4) Apdu.decodeHex("9000") else Apdu.decodeHex("6C00")
+      }, maxTransceiveLength = 1000)
+      intercept[IOException] {
+        new ElementaryFileReader(card).read(Apdu.decodeHex("2F01"), new ByteArrayOutputStream())
+      }
+      card.commands.size shouldEqual 2
+    }
+    "fail rather than cache a file longer than READ BINARY can reach" in TempDirectory("ef-cache") { directory =>
+      val card = new FakeIsoCard({ command =>
+        if ((command(1) & 0xFF) == 0xA4) Apdu.decodeHex("9000")
+        else new Array[Byte](256) ++ Apdu.decodeHex("9000")
+      }, maxTransceiveLength = 1000)
+      val cache = new DirectoryFileContentCache(directory)
+      val uid = Apdu.decodeHex("04112233")
+      intercept[IOException] {
+        new ElementaryFileReader(card, cache).read(uid, Apdu.decodeHex("2F01"), "1", new ByteArrayOutputStream())
+      }
+      card.commands.size shouldEqual 129
+      intercept[IOException] {
+        new ElementaryFileReader(card, cache).read(uid, Apdu.decodeHex("2F01"), "1", new ByteArrayOutputStream())
+      }
+      card.commands.size shouldEqual 258
+    }
+    "read unchanged files from the cache" in TempDirectory("ef-cache") { directory =>
+      val cache = new DirectoryFileContentCache(directory)
+      val uid = Apdu.decodeHex("04112233")
+      val first = fileCard()
+      new ElementaryFileReader(first, cache).read(uid, Apdu.decodeHex("2F01"), "1", new ByteArrayOutputStream()) shouldEqual false
+
+      val second = fileCard()
+      val sink = new ByteArrayOutputStream()
+      new ElementaryFileReader(second, cache).read(uid, Apdu.decodeHex("2F01"), "1", sink) shouldEqual true
+      sink.toByteArray shouldEqual content
+      second.commands.size shouldEqual 0
+
+      new ElementaryFileReader(second, cache).read(uid, Apdu.decodeHex("2F01"), "2", new ByteArrayOutputStream()) shouldEqual false
+      directory.list().length shouldEqual 1
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package nordpol
+
+import java.io.IOException
+import java.util.{ArrayList, List => JList}
+import java.util.concurrent.CopyOnWriteArrayList
+import scala.collection.JavaConversions._
+
+/** An IsoCard answering commands with the given function */
+class FakeIsoCard(respond: Array[Byte] => Array[Byte], maxTransceiveLength: Int = 253) extends IsoCard {
+  val commands = new CopyOnWriteArrayList[Array[Byte]]()
+  val listeners = new CopyOnWriteArrayList[OnCardErrorListener]()
+  @volatile var connected = true
+  @volatile var timeout = 1000
+
+  def addOnCardErrorListener(listener: OnCardErrorListener): Unit = listeners.add(listener)
+  def removeOnCardErrorListener(listener: OnCardErrorListener): Unit = listeners.remove(listener)
+  def close(): Unit = connected = false
+  def connect(): Unit = connected = true
+  def getMaxTransceiveLength(): Int = maxTransceiveLength
+  def getTimeout(): Int = timeout
+  def isConnected(): Boolean = connected
+  def setTimeout(timeout: Int): Unit = this.timeout = timeout
+
+  def transceive(data: Array[Byte]): Array[Byte] = {
+    commands.add(data.clone())
+    try {
+      respond(data)
+    } catch {
+      case e: IOException =>
+        listeners.foreach(_.error(this, e))
+        throw e
+    }
+  }
+
+  def transceive(data: JList[Array[Byte]]): JList[Array[Byte]] = {
+    val responses = new ArrayList[Array[Byte]]()
+    data.foreach(command => responses.add(transceive(command)))
+    responses
+  }
+
+  def commandsHex: Seq[String] = commands.map(Apdu.encodeHex(_)).toList
+}
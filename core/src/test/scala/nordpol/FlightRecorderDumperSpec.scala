@@ -0,0 +1,39 @@
+package nordpol
+
+import java.io.IOException
+import scala.collection.mutable.ListBuffer
+import org.scalatest._
+
+class FlightRecorderDumperSpec extends WordSpec with Matchers {
+  class RecordedCard(respond: Array[Byte] => Array[Byte]) extends FakeIsoCard(respond) with FlightRecordedCard {
+    val recorder = new ApduFlightRecorder(4, 4)
+    override def transceive(data: Array[Byte]): Array[Byte] = {
+      recorder.recordCommand(data)
+      super.transceive(data)
+    }
+    def getFlightRecorder(): ApduFlightRecorder = recorder
+  }
+
+  class RecordingDumper extends FlightRecorderDumper {
+    val dumps = ListBuffer[String]()
+    protected def dumped(card: IsoCard, exception: IOException, dump: String): Unit = dumps += dump
+  }
+
+  "FlightRecorderDumper" should {
+    "dump the recorder of the failed card" in {
+      val card = new RecordedCard(_ => throw new IOException("Tag was lost"))
+      val dumper = new RecordingDumper
+      card.addOnCardErrorListener(dumper)
+      an [IOException] should be thrownBy card.transceive(Apdu.decodeHex("00A40400"))
+      dumper.dumps should have size 1
+      dumper.dumps(0).split("\n")(1) should endWith (">> 00A40400 (4 bytes)")
+    }
+    "dump an empty recorder for cards without one" in {
+      val card = new FakeIsoCard(_ => throw new IOException("Tag was lost"))
+      val dumper = new RecordingDumper
+      card.addOnCardErrorListener(dumper)
+      an [IOException] should be thrownBy card.transceive(Apdu.decodeHex("00A40400"))
+      dumper.dumps shouldEqual Seq("Last 0 of 0 APDUs")
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package nordpol
+
+import org.scalatest._
+
+class LatencyHistogramSpec extends WordSpec with Matchers {
+  "LatencyHistogram" should {
+    "report nothing when empty" in {
+      val histogram = new LatencyHistogram()
+      histogram.getCount shouldEqual 0
+      histogram.getMeanNanos shouldEqual 0
+      histogram.getPercentileNanos(50) shouldEqual 0
+    }
+    "count durations in power of two microsecond buckets" in {
+      val histogram = new LatencyHistogram()
+      histogram.record(500)
+      histogram.record(1000)
+      histogram.record(3000)
+      histogram.record(4000)
+      histogram.record(5000)
+      histogram.getBucketCounts.take(4) shouldEqual Array(2L, 0L, 2L, 1L)
+    }
+    "report percentiles as bucket upper bounds" in {
+      val histogram = new LatencyHistogram()
+      (1 to 90).foreach(_ => histogram.record(3000))
+      (1 to 10).foreach(_ => histogram.record(100000))
+      histogram.getPercentileNanos(50) shouldEqual 4000
+      histogram.getPercentileNanos(90) shouldEqual 4000
+      histogram.getPercentileNanos(99) shouldEqual 100000
+    }
+    "keep count, mean and maximum" in {
+      val histogram = new LatencyHistogram()
+      histogram.record(1000)
+      histogram.record(3000)
+      histogram.getCount shouldEqual 2
+      histogram.getMeanNanos shouldEqual 2000
+      histogram.getMaxNanos shouldEqual 3000
+      histogram.reset()
+      histogram.getCount shouldEqual 0
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package nordpol
+
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import scala.collection.mutable.ArrayBuffer
+import org.scalatest._
+
+class LoadFileLoaderSpec extends WordSpec with Matchers {
+  val loadFile = Array.tabulate[Byte](600)(_.toByte)
+
+  "LoadFileLoader.load" should {
+    "send the load file data block in LOAD commands" in {
+      val card = new FakeIsoCard(_ => Apdu.decodeHex("9000"))
+      new LoadFileLoader(card).load(new ByteArrayInputStream(loadFile), loadFile.length, null)
+      val commands = card.commandsHex
+      commands.map(_.take(10)) shouldEqual Seq("80E80000F8", "80E80001F8", "80E880026C")
+      commands.head.substring(10, 18) shouldEqual "C4820258"
+      val sent = card.commandsHex.map(c => Apdu.decodeHex(c).drop(5)).reduce(_ ++ _)
+      sent shouldEqual Apdu.decodeHex("C4820258") ++ loadFile
+    }
+    "respect the maximum block size" in {
+      val card = new FakeIsoCard(_ => Apdu.decodeHex("9000"))
+      val loader = new LoadFileLoader(card)
+      loader.setMaxBlockSize(100)
+      loader.load(new ByteArrayInputStream(loadFile, 0, 10), 10, null)
+      card.commandsHex shouldEqual Seq("80E880000CC40A00010203040506070809")
+    }
+    "report progress per block" in {
+      val card = new FakeIsoCard(_ => Apdu.decodeHex("9000"))
+      val progress = ArrayBuffer[(Int, Int, Long, Long)]()
+      new LoadFileLoader(card).load(new ByteArrayInputStream(loadFile), loadFile.length,
+        new OnLoadProgressListener {
+          def blockLoaded(block: Int, blocks: Int, loaded: Long, total: Long): Unit =
+            progress += ((block, blocks, loaded, total))
+        })
+      progress shouldEqual Seq((0, 3, 248L, 604L), (1, 3, 496L, 604L), (2, 3, 604L, 604L))
+    }
+    "fail on an error status" in {
+      val card = new FakeIsoCard(_ => Apdu.decodeHex("6A80"))
+      intercept[IOException] {
+        new LoadFileLoader(card).load(new ByteArrayInputStream(loadFile), loadFile.length, null)
+      }
+      card.commands.size shouldEqual 1
+    }
+    "fail if the stream ends early" in {
+      val card = new FakeIsoCard(_ => Apdu.decodeHex("9000"))
+      intercept[IOException] {
+        new LoadFileLoader(card).load(new ByteArrayInputStream(loadFile), 1000, null)
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package nordpol
+
+import java.io.IOException
+import java.util.Arrays
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import scala.collection.JavaConversions._
+import org.scalatest._
+
+class OperationContextSpec extends WordSpec with Matchers {
+  def okCard = new FakeIsoCard(_ => Apdu.decodeHex("9000"))
+
+  "OperationContext" should {
+    "pass commands through while active" in {
+      val fake = okCard
+      val card = new OperationContext(1, TimeUnit.MINUTES).wrap(fake)
+      Apdu.encodeHex(card.transceive(Apdu.decodeHex("00A4040000"))) shouldEqual "9000"
+      fake.commands.size shouldEqual 1
+    }
+    "fail commands and close the card once cancelled" in {
+      val fake = okCard
+      val context = new OperationContext()
+      val card = context.wrap(fake)
+      context.cancel()
+      fake.connected shouldEqual false
+      context.isCancelled shouldEqual true
+      an[OperationCancelledException] should be thrownBy card.transceive(Apdu.decodeHex("00A4040000"))
+      an[OperationCancelledException] should be thrownBy card.transceive(Arrays.asList(Apdu.decodeHex("00A4040000")))
+      fake.commands shouldBe empty
+    }
+    "stop GET RESPONSE loops when cancelled" in {
+      val context = new OperationContext()
+      var rounds = 0
+      val card = context.wrap(new FakeIsoCard({ _ =>
+        rounds += 1
+        if (rounds == 2) context.cancel()
+        Apdu.decodeHex("AA6101")
+      }))
+      an[OperationCancelledException] should be thrownBy
+        Apdu.transceiveAndGetResponse(Apdu.decodeHex("00CA000000"), card, "00C0000000")
+      rounds shouldEqual 2
+    }
+    "fail a command blocked while cancelled" in {
+      val context = new OperationContext()
+      val started = new CountDownLatch(1)
+      val closed = new CountDownLatch(1)
+      val fake = new FakeIsoCard(_ => {
+        started.countDown()
+        closed.await(5, TimeUnit.SECONDS)
+        throw new IOException("Tag was lost")
+      }) {
+        override def close(): Unit = {
+          super.close()
+          closed.countDown()
+        }
+      }
+      val card = context.wrap(fake)
+      new Thread(new Runnable {
+        def run(): Unit = {
+          started.await()
+          context.cancel()
+        }
+      }).start()
+      val thrown = the[OperationCancelledException] thrownBy card.transceive(Apdu.decodeHex("00A4040000"))
+      thrown.getCause.getMessage shouldEqual "Tag was lost"
+    }
+    "cancel itself once the deadline has passed" in {
+      val fake = okCard
+      val context = new OperationContext(10, TimeUnit.MILLISECONDS)
+      val card = context.wrap(fake)
+      Thread.sleep(20)
+      context.isCancelled shouldEqual true
+      val thrown = the[OperationCancelledException] thrownBy card.transceive(Apdu.decodeHex("00A4040000"))
+      thrown.getMessage shouldEqual "Operation deadline exceeded"
+      fake.connected shouldEqual false
+    }
+    "lower the card timeout to the time left" in {
+      val fake = okCard
+      fake.timeout = 15000
+      val card = new OperationContext(2, TimeUnit.SECONDS).wrap(fake)
+      card.transceive(Apdu.decodeHex("00A4040000"))
+      fake.timeout should (be > 0 and be <= 2000)
+      card.getTimeout shouldEqual 15000
+    }
+    "leave the card open once finished" in {
+      val fake = okCard
+      val context = new OperationContext()
+      val card = context.wrap(fake)
+      context.finish()
+      context.cancel()
+      fake.connected shouldEqual true
+      card.transceive(Apdu.decodeHex("00A4040000"))
+    }
+  }
+}
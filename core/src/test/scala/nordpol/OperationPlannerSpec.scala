@@ -0,0 +1,80 @@
+package nordpol
+
+import java.io.IOException
+import scala.collection.JavaConversions._
+import org.scalatest._
+
+class OperationPlannerSpec extends WordSpec with Matchers {
+  val appletA = "A0000006170001"
+  val appletB = "A0000006170002"
+
+  /** An operation sending a single command named after it */
+  case class Op(name: String, aid: String) extends CardOperation {
+    def getAid(): String = aid
+    def run(card: IsoCard): Unit = card.transceive(Apdu.decodeHex(name))
+  }
+
+  def okCard = new FakeIsoCard(_ => Apdu.decodeHex("9000"))
+
+  def selectA = Apdu.encodeHex(Apdu.select(appletA))
+  def selectB = Apdu.encodeHex(Apdu.select(appletB))
+
+  "OperationPlanner.plan" should {
+    "group independent operations per applet" in {
+      val ops = Seq(Op("01", appletA), Op("02", appletB), Op("03", appletA), Op("04", appletB))
+      val planner = new OperationPlanner()
+      ops.foreach(planner.add(_))
+      planner.plan(null).map(_.asInstanceOf[Op].name) shouldEqual Seq("01", "03", "02", "04")
+    }
+    "start with the applet already selected" in {
+      val ops = Seq(Op("01", appletA), Op("02", appletB), Op("03", appletA))
+      val planner = new OperationPlanner()
+      ops.foreach(planner.add(_))
+      planner.plan(appletB).map(_.asInstanceOf[Op].name) shouldEqual Seq("02", "01", "03")
+    }
+    "respect dependencies" in {
+      val first = Op("01", appletA)
+      val second = Op("02", appletB)
+      val third = Op("03", appletA)
+      val planner = new OperationPlanner().add(second, first).add(third, second)
+      planner.plan(null).map(_.asInstanceOf[Op].name) shouldEqual Seq("01", "02", "03")
+    }
+    "run applet independent operations right away" in {
+      val ops = Seq(Op("01", appletA), Op("02", null), Op("03", appletA))
+      val planner = new OperationPlanner()
+      ops.foreach(planner.add(_))
+      planner.plan(null).map(_.asInstanceOf[Op].name) shouldEqual Seq("02", "01", "03")
+    }
+    "reject dependency cycles" in {
+      val first = Op("01", appletA)
+      val second = Op("02", appletB)
+      val planner = new OperationPlanner().add(second, first).add(first, second)
+      intercept[IllegalStateException] {
+        planner.plan(null)
+      }
+    }
+  }
+
+  "OperationPlanner.run" should {
+    "only select when the applet changes" in {
+      val card = okCard
+      val planner = new OperationPlanner()
+      Seq(Op("01", appletA), Op("02", appletB), Op("03", appletA), Op("04", appletB)).foreach(planner.add(_))
+      planner.run(card, null) shouldEqual appletB
+      card.commandsHex shouldEqual Seq(selectA, "01", "03", selectB, "02", "04")
+    }
+    "skip the select of the applet already selected" in {
+      val card = okCard
+      val planner = new OperationPlanner().add(Op("01", appletA))
+      planner.run(card, appletA.toLowerCase) shouldEqual appletA.toLowerCase
+      card.commandsHex shouldEqual Seq("01")
+    }
+    "fail if an applet can not be selected" in {
+      val card = new FakeIsoCard(_ => Apdu.decodeHex("6A82"))
+      intercept[IOException] {
+        new OperationPlanner().add(Op("01", appletA)).run(card, null)
+      }
+      card.commandsHex shouldEqual Seq(selectA)
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package nordpol
+
+import java.io.{IOException, StringReader, StringWriter}
+import java.util.Arrays
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+import scala.collection.JavaConversions._
+import org.scalatest._
+
+class PersonalizationPipelineSpec extends WordSpec with Matchers {
+  val fields = Arrays.asList("serial", "key", "pin")
+
+  /** Hands out the given cards once each */
+  class QueueCardSource(cards: FakeIsoCard*) extends CardSource {
+    val queue = new ConcurrentLinkedQueue[IsoCard](cards)
+    val released = new ConcurrentLinkedQueue[IsoCard]()
+    def next(): IsoCard = queue.poll()
+    def release(card: IsoCard): Unit = released.add(card)
+  }
+
+  def okCard = new FakeIsoCard(_ => Apdu.decodeHex("9000"))
+
+  def csv(lines: String*) = new CsvRecordSource(new StringReader(lines.mkString("\n")))
+
+  val pipeline = new PersonalizationPipeline()
+    .addCommand("00A4040007 A0000006170001")
+    .addCommand("80E20000 {lc} DF01 {key}")
+    .addCommand("80E28001 {lc} {pin}")
+
+  "CommandTemplate" should {
+    "fill placeholders and the data length" in {
+      val template = CommandTemplate.compile("80E20000 {lc} DF01 {key} {pin}", fields)
+      Apdu.encodeHex(template.fill(Array("1", "00112233", "1234"))) shouldEqual "80E2000008DF01001122331234"
+    }
+    "reject unknown fields" in {
+      an[IllegalArgumentException] should be thrownBy CommandTemplate.compile("00{nope}", fields)
+    }
+    "reject fields that are not hex" in {
+      val template = CommandTemplate.compile("00{key}", fields)
+      an[IllegalArgumentException] should be thrownBy template.fill(Array("1", "XY", "00"))
+      an[IllegalArgumentException] should be thrownBy template.fill(Array("1", "123", "00"))
+    }
+  }
+
+  "CsvRecordSource" should {
+    "read records one at a time" in {
+      val source = csv("serial,key", "# comment", "1,00", "", "\"2,a\",\"0\"\"1\"")
+      source.getFieldNames.toList shouldEqual Seq("serial", "key")
+      source.next().toList shouldEqual Seq("1", "00")
+      source.next().toList shouldEqual Seq("2,a", "0\"1")
+      source.next() shouldEqual null
+    }
+    "reject records with the wrong number of fields" in {
+      val source = csv("serial,key", "1,00,extra")
+      an[IOException] should be thrownBy source.next()
+    }
+  }
+
+  "PersonalizationPipeline" should {
+    "personalize each card with a record" in {
+      val first = okCard
+      val second = okCard
+      val cards = new QueueCardSource(first, second)
+      val out = new StringWriter()
+      pipeline.run(csv("serial,key,pin", "1,0011,1234", "2,2233,5678"), new CsvResultSink(out), cards) shouldEqual 2
+      second.commands.map(Apdu.encodeHex(_)).toList shouldEqual
+        Seq("00A4040007A0000006170001", "80E2000004DF012233", "80E28001025678")
+      cards.released.toList shouldEqual Seq(first, second)
+      out.toString shouldEqual "record,key,result,error\n1,1,OK,\n2,2,OK,\n"
+    }
+    "report failed records and go on with the next card" in {
+      val failing = new FakeIsoCard(command =>
+        if (command(1) == 0xE2.toByte) Apdu.decodeHex("6A80") else Apdu.decodeHex("9000"))
+      val out = new StringWriter()
+      val records = csv("serial,key,pin", "1,0011,1234", "2,XX,1234", "3,0011,1234")
+      val badData = okCard
+      pipeline.run(records, new CsvResultSink(out), new QueueCardSource(failing, badData, okCard)) shouldEqual 1
+      badData.commands shouldBe empty
+      out.toString.split("\n").toList shouldEqual Seq("record,key,result,error",
+        "1,1,FAILED,Command 2 answered 6A80", "2,2,FAILED,Not hex: XX", "3,3,OK,")
+    }
+    "stop when the cards run out" in {
+      val records = csv("serial,key,pin", "1,00,00", "2,00,00")
+      pipeline.run(records, new CsvResultSink(new StringWriter()), new QueueCardSource(okCard)) shouldEqual 1
+      records.next().head shouldEqual "2"
+    }
+    "serve several card sources at once" in {
+      val lines = "serial,key,pin" +: (1 to 100).map(i => s"$i,00,00")
+      val sources = Seq.fill(3)(new QueueCardSource(Seq.fill(50)(okCard): _*))
+      pipeline.run(csv(lines: _*), new CsvResultSink(new StringWriter()), sources: _*) shouldEqual 100
+      sources.map(source => source.released.size + source.queue.size).sum shouldEqual 150
+    }
+    "not take more cards once the records ran out" in {
+      /* The first card holds the only record until the second source has
+       * handed out a card and found the records exhausted */
+      val recordTaken = new CountDownLatch(1)
+      val exhausted = new CountDownLatch(1)
+      val slowCard = new FakeIsoCard(_ => {
+        recordTaken.countDown()
+        exhausted.await(10, TimeUnit.SECONDS) shouldBe true
+        Apdu.decodeHex("9000")
+      })
+      val first = new QueueCardSource(slowCard +: Seq.fill(4)(okCard): _*)
+      val second = new QueueCardSource(Seq.fill(5)(okCard): _*) {
+        override def next(): IsoCard = {
+          recordTaken.await(10, TimeUnit.SECONDS) shouldBe true
+          super.next()
+        }
+        override def release(card: IsoCard): Unit = {
+          super.release(card)
+          exhausted.countDown()
+        }
+      }
+      pipeline.run(csv("serial,key,pin", "1,00,00"), new CsvResultSink(new StringWriter()),
+                   first, second) shouldEqual 1
+      first.released.toList shouldEqual Seq(slowCard)
+      second.released.size shouldEqual 1
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package nordpol
+
+import java.io.IOException
+import java.net.{InetAddress, InetSocketAddress}
+import java.util.Arrays
+import java.util.concurrent.CopyOnWriteArrayList
+import scala.collection.JavaConversions._
+import org.scalatest._
+
+class RemoteIsoCardSpec extends WordSpec with Matchers {
+  /** Runs the test against a card served on the loopback interface */
+  def withRemote(card: FakeIsoCard)(test: RemoteIsoCard => Unit): Unit = {
+    val server = new IsoCardServer(card, new InetSocketAddress(InetAddress.getLoopbackAddress, 0))
+    server.start()
+    val remote = new RemoteIsoCard(server.getAddress)
+    try test(remote) finally {
+      remote.close()
+      server.close()
+    }
+  }
+
+  def echoCard = new FakeIsoCard(command => command ++ Apdu.decodeHex("9000"), maxTransceiveLength = 1000)
+
+  "RemoteIsoCard" should {
+    "transceive single commands" in {
+      val card = echoCard
+      withRemote(card) { remote =>
+        remote.connect()
+        Apdu.encodeHex(remote.transceive(Apdu.decodeHex("00A4040000"))) shouldEqual "00A40400009000"
+        card.commandsHex shouldEqual Seq("00A4040000")
+      }
+    }
+    "transceive batches in order" in {
+      val card = echoCard
+      withRemote(card) { remote =>
+        val commands = (1 to 20).map(i => Array[Byte](0, i.toByte))
+        val responses = remote.transceive(commands)
+        responses.map(Apdu.encodeHex(_)) shouldEqual commands.map(c => Apdu.encodeHex(c) + "9000")
+        card.commands.size shouldEqual 20
+      }
+    }
+    "transfer commands larger than the pooled buffers" in {
+      withRemote(echoCard) { remote =>
+        val command = Array.tabulate[Byte](100000)(_.toByte)
+        val response = remote.transceive(command)
+        Arrays.equals(response, command ++ Apdu.decodeHex("9000")) shouldEqual true
+      }
+    }
+    "forward card properties and the timeout" in {
+      val card = echoCard
+      withRemote(card) { remote =>
+        remote.getMaxTransceiveLength shouldEqual 1000
+        remote.setTimeout(4321)
+        remote.isConnected shouldEqual true
+        card.timeout shouldEqual 4321
+        remote.getTimeout shouldEqual 4321
+      }
+    }
+    "report card errors to listeners and callers" in {
+      val card = new FakeIsoCard(_ => throw new IOException("Tag was lost."))
+      withRemote(card) { remote =>
+        val errors = new CopyOnWriteArrayList[IOException]()
+        remote.addOnCardErrorListener(new OnCardErrorListener {
+          def error(card: IsoCard, exception: IOException): Unit = errors.add(exception)
+        })
+        val thrown = intercept[IOException] {
+          remote.transceive(Apdu.decodeHex("00B0000000"))
+        }
+        thrown.getMessage should include ("Tag was lost.")
+        errors.size shouldEqual 1
+        errors.get(0).getMessage should include ("Tag was lost.")
+      }
+    }
+    "close the remote card" in {
+      val card = echoCard
+      withRemote(card) { remote =>
+        remote.close()
+        card.connected shouldEqual false
+        remote.isConnected shouldEqual false
+      }
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package nordpol
+
+import java.io.File
+import java.nio.file.Files
+
+/** A fresh temporary directory, deleted with its content once the body returns */
+object TempDirectory {
+  def apply[T](prefix: String)(body: File => T): T = {
+    val directory = Files.createTempDirectory(prefix).toFile
+    try body(directory) finally delete(directory)
+  }
+
+  def delete(file: File): Unit = {
+    Option(file.listFiles).foreach(_.foreach(delete))
+    file.delete()
+  }
+}
@@ -0,0 +1,26 @@
+package nordpol.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("nordpol.Batch")
+@Label("APDU Batch")
+@Category({"Nordpol", "Card"})
+@Description("A batch of command APDUs sent to a card in one call")
+final class BatchEvent extends jdk.jfr.Event {
+    @Label("Commands")
+    int commands;
+
+    @Label("Command Length")
+    @Description("The total length of the commands")
+    @DataAmount
+    int commandLength;
+
+    @Label("Response Length")
+    @Description("The total length of the responses")
+    @DataAmount
+    int responseLength;
+}
@@ -0,0 +1,18 @@
+package nordpol.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("nordpol.CardError")
+@Label("Card Error")
+@Category({"Nordpol", "Card"})
+@Description("An error reported by a card to its listeners")
+final class CardErrorEvent extends jdk.jfr.Event {
+    @Label("Exception Class")
+    String exceptionClass;
+
+    @Label("Message")
+    String message;
+}
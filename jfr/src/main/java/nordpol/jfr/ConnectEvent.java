@@ -0,0 +1,16 @@
+package nordpol.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("nordpol.Connect")
+@Label("Card Connect")
+@Category({"Nordpol", "Card"})
+@Description("Connecting to a card")
+final class ConnectEvent extends jdk.jfr.Event {
+    @Label("Timeout")
+    @Description("The timeout of the card in milliseconds")
+    int timeout;
+}
@@ -0,0 +1,26 @@
+package nordpol.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("nordpol.GetResponse")
+@Label("GET RESPONSE Loop")
+@Category({"Nordpol", "Card"})
+@Description("A command answered with 61xx and the commands fetching the rest of its response")
+final class GetResponseEvent extends jdk.jfr.Event {
+    @Label("INS")
+    @Description("The instruction of the command starting the loop")
+    String ins;
+
+    @Label("Rounds")
+    @Description("The number of commands sent to fetch the rest of the response")
+    int rounds;
+
+    @Label("Response Length")
+    @Description("The total length of the data received, without status words")
+    @DataAmount
+    int responseLength;
+}
@@ -0,0 +1,217 @@
+package nordpol.jfr;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nordpol.IsoCard;
+import nordpol.OnCardErrorListener;
+
+/**
+ * An IsoCard emitting Java Flight Recorder events for everything done
+ * with the card it wraps.
+ * <p>
+ * Recorded next to the garbage collection and thread events of the JVM,
+ * the events show whether a slow command was slow on the card or in the
+ * application. The events are:
+ * <ul>
+ * <li>{@code nordpol.Connect} for connecting to the card</li>
+ * <li>{@code nordpol.Transceive} for each command, with CLA, INS, lengths
+ * and status word</li>
+ * <li>{@code nordpol.Batch} for commands sent in one call with
+ * {@link #transceive(List)}</li>
+ * <li>{@code nordpol.GetResponse} spanning a command answered with 61xx
+ * and the commands fetching the rest of its response</li>
+ * <li>{@code nordpol.CardError} for errors the card reports to its
+ * listeners</li>
+ * </ul>
+ * GET RESPONSE loops are only tracked while {@code nordpol.Transceive} is
+ * enabled. When the events are disabled, the card is called straight
+ * through: nothing is timed, formatted or tracked. Like the cards
+ * it wraps, a JfrIsoCard is meant to be used from one thread at a time.
+ * <pre>
+ * {@code
+ * IsoCard card = new JfrIsoCard(new RemoteIsoCard(address));
+ * }
+ * </pre>
+ */
+public class JfrIsoCard implements IsoCard {
+    private final IsoCard card;
+    private final List<OnCardErrorListener> errorListeners =
+        new CopyOnWriteArrayList<OnCardErrorListener>();
+    private GetResponseEvent getResponse;
+
+    /**
+     * @param card The card to record events for
+     */
+    public JfrIsoCard(IsoCard card) {
+        this.card = card;
+        card.addOnCardErrorListener(new OnCardErrorListener() {
+                @Override
+                public void error(IsoCard card, IOException exception) {
+                    cardError(exception);
+                }
+            });
+    }
+
+    /**
+     * @return The card the events are recorded for
+     */
+    public IsoCard getCard() {
+        return card;
+    }
+
+    public void addOnCardErrorListener(OnCardErrorListener listener) {
+        errorListeners.add(listener);
+    }
+
+    public void removeOnCardErrorListener(OnCardErrorListener listener) {
+        errorListeners.remove(listener);
+    }
+
+    public void close() throws IOException {
+        endGetResponse();
+        card.close();
+    }
+
+    public void connect() throws IOException {
+        ConnectEvent event = new ConnectEvent();
+        if(!event.isEnabled()) {
+            card.connect();
+            return;
+        }
+        event.begin();
+        try {
+            card.connect();
+        } finally {
+            event.timeout = card.getTimeout();
+            event.commit();
+        }
+    }
+
+    public int getMaxTransceiveLength() throws IOException {
+        return card.getMaxTransceiveLength();
+    }
+
+    public int getTimeout() {
+        return card.getTimeout();
+    }
+
+    public boolean isConnected() {
+        return card.isConnected();
+    }
+
+    public void setTimeout(int timeout) {
+        card.setTimeout(timeout);
+    }
+
+    public byte[] transceive(byte[] data) throws IOException {
+        TransceiveEvent event = new TransceiveEvent();
+        if(!event.isEnabled()) {
+            getResponse = null;
+            return card.transceive(data);
+        }
+        GetResponseEvent loop = getResponse;
+        if(loop == null) {
+            /* Started up front in case this command starts a loop */
+            loop = new GetResponseEvent();
+            loop.begin();
+        }
+        event.begin();
+        byte[] response = null;
+        try {
+            response = card.transceive(data);
+            return response;
+        } finally {
+            event.end();
+            if(data.length >= 2) {
+                event.cla = hex(data[0]);
+                event.ins = hex(data[1]);
+            }
+            event.commandLength = data.length;
+            if(response != null) {
+                event.responseLength = response.length;
+                if(response.length >= 2) {
+                    event.statusWord = hex(response[response.length - 2]) +
+                        hex(response[response.length - 1]);
+                }
+            }
+            event.commit();
+            trackGetResponse(loop, data, response);
+        }
+    }
+
+    public List<byte[]> transceive(List<byte[]> data) throws IOException {
+        BatchEvent event = new BatchEvent();
+        if(!event.isEnabled()) {
+            return card.transceive(data);
+        }
+        endGetResponse();
+        event.begin();
+        List<byte[]> responses = null;
+        try {
+            responses = card.transceive(data);
+            return responses;
+        } finally {
+            event.end();
+            event.commands = data.size();
+            for(byte[] command: data) {
+                event.commandLength += command.length;
+            }
+            if(responses != null) {
+                for(byte[] response: responses) {
+                    event.responseLength += response.length;
+                }
+            }
+            event.commit();
+        }
+    }
+
+    /* A response ending in 61xx starts or continues a loop, anything else
+     * ends it. The loop starts with the command the card first answered
+     * with 61xx.
+     */
+    private void trackGetResponse(GetResponseEvent loop, byte[] command, byte[] response) {
+        boolean more = response != null && response.length >= 2 &&
+            response[response.length - 2] == 0x61;
+        if(getResponse == null) {
+            if(!more) {
+                return;
+            }
+            getResponse = loop;
+            getResponse.ins = command.length >= 2 ? hex(command[1]) : null;
+        } else {
+            getResponse.rounds++;
+        }
+        if(response != null && response.length >= 2) {
+            getResponse.responseLength += response.length - 2;
+        }
+        if(!more) {
+            endGetResponse();
+        }
+    }
+
+    private void endGetResponse() {
+        if(getResponse != null) {
+            getResponse.commit();
+            getResponse = null;
+        }
+    }
+
+    private void cardError(IOException exception) {
+        CardErrorEvent event = new CardErrorEvent();
+        if(event.isEnabled()) {
+            endGetResponse();
+            event.exceptionClass = exception.getClass().getName();
+            event.message = exception.getMessage();
+            event.commit();
+        }
+        for(OnCardErrorListener listener: errorListeners) {
+            listener.error(this, exception);
+        }
+    }
+
+    private static String hex(byte b) {
+        return String.format("%02X", b & 0xFF);
+    }
+}
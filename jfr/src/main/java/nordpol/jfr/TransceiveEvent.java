@@ -0,0 +1,31 @@
+package nordpol.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("nordpol.Transceive")
+@Label("APDU Transceive")
+@Category({"Nordpol", "Card"})
+@Description("A command APDU sent to a card and its response")
+final class TransceiveEvent extends jdk.jfr.Event {
+    @Label("CLA")
+    String cla;
+
+    @Label("INS")
+    String ins;
+
+    @Label("Command Length")
+    @DataAmount
+    int commandLength;
+
+    @Label("Response Length")
+    @DataAmount
+    int responseLength;
+
+    @Label("Status Word")
+    @Description("The status word of the response, not set if the card failed")
+    String statusWord;
+}
@@ -0,0 +1,119 @@
+package nordpol.jfr
+
+import java.io.IOException
+import java.nio.file.Files
+import java.util.Arrays
+import scala.collection.JavaConversions._
+import jdk.jfr.Recording
+import jdk.jfr.consumer.{RecordedEvent, RecordingFile}
+import org.scalatest._
+import nordpol.{Apdu, FakeIsoCard, IsoCard, OnCardErrorListener}
+
+class JfrIsoCardSpec extends WordSpec with Matchers {
+  val eventNames = Seq("nordpol.Connect", "nordpol.Transceive", "nordpol.Batch",
+    "nordpol.GetResponse", "nordpol.CardError")
+
+  /** Runs the block with the given events enabled and returns the nordpol events recorded */
+  def record(enabled: Seq[String])(block: => Unit): Seq[RecordedEvent] = {
+    val recording = new Recording()
+    eventNames.foreach(name =>
+      if (enabled.contains(name)) recording.enable(name).withoutThreshold() else recording.disable(name))
+    recording.start()
+    try {
+      block
+    } finally {
+      recording.stop()
+    }
+    val file = Files.createTempFile("nordpol", ".jfr")
+    try {
+      recording.dump(file)
+      RecordingFile.readAllEvents(file).filter(_.getEventType.getName.startsWith("nordpol.")).toList
+    } finally {
+      recording.close()
+      Files.delete(file)
+    }
+  }
+
+  def named(events: Seq[RecordedEvent], name: String) = events.filter(_.getEventType.getName == name)
+
+  /** Answers a first command with two rounds of GET RESPONSE, anything else with 9000 */
+  def chainingCard = {
+    var round = 0
+    new FakeIsoCard({ command =>
+      if (command(1) == 0xC0.toByte) {
+        round += 1
+        if (round < 2) Apdu.decodeHex("BBBB6102") else Apdu.decodeHex("CC9000")
+      } else if (command(1) == 0xA4.toByte) {
+        Apdu.decodeHex("AAAA6102")
+      } else {
+        Apdu.decodeHex("9000")
+      }
+    })
+  }
+
+  "JfrIsoCard" should {
+    "record commands with their status words" in {
+      val card = new JfrIsoCard(new FakeIsoCard(_ => Apdu.decodeHex("01026A82")))
+      val events = record(eventNames) {
+        card.connect()
+        card.transceive(Apdu.decodeHex("00B0000004"))
+      }
+      named(events, "nordpol.Connect").size shouldEqual 1
+      val transceive = named(events, "nordpol.Transceive")
+      transceive.size shouldEqual 1
+      transceive.head.getString("cla") shouldEqual "00"
+      transceive.head.getString("ins") shouldEqual "B0"
+      transceive.head.getInt("commandLength") shouldEqual 5
+      transceive.head.getInt("responseLength") shouldEqual 4
+      transceive.head.getString("statusWord") shouldEqual "6A82"
+    }
+    "record GET RESPONSE loops" in {
+      val card = new JfrIsoCard(chainingCard)
+      val events = record(eventNames) {
+        Apdu.transceiveAndGetResponse(Apdu.decodeHex("00A4040000"), card, "00C0000000")
+        card.transceive(Apdu.decodeHex("00B0000000"))
+      }
+      named(events, "nordpol.Transceive").size shouldEqual 4
+      val loops = named(events, "nordpol.GetResponse")
+      loops.size shouldEqual 1
+      loops.head.getString("ins") shouldEqual "A4"
+      loops.head.getInt("rounds") shouldEqual 2
+      loops.head.getInt("responseLength") shouldEqual 5
+    }
+    "record batches" in {
+      val card = new JfrIsoCard(new FakeIsoCard(_ => Apdu.decodeHex("9000")))
+      val events = record(eventNames) {
+        card.transceive(Arrays.asList(Apdu.decodeHex("00B0000000"), Apdu.decodeHex("00B0000100")))
+      }
+      val batch = named(events, "nordpol.Batch")
+      batch.size shouldEqual 1
+      batch.head.getInt("commands") shouldEqual 2
+      batch.head.getInt("commandLength") shouldEqual 10
+      batch.head.getInt("responseLength") shouldEqual 4
+    }
+    "record and forward card errors" in {
+      val card = new JfrIsoCard(new FakeIsoCard(_ => throw new IOException("Tag lost")))
+      var forwarded: Option[IsoCard] = None
+      card.addOnCardErrorListener(new OnCardErrorListener {
+        def error(errorCard: IsoCard, exception: IOException): Unit = forwarded = Some(errorCard)
+      })
+      val events = record(eventNames) {
+        an[IOException] should be thrownBy card.transceive(Apdu.decodeHex("00B0000000"))
+      }
+      forwarded shouldEqual Some(card)
+      val errors = named(events, "nordpol.CardError")
+      errors.size shouldEqual 1
+      errors.head.getString("message") shouldEqual "Tag lost"
+      named(events, "nordpol.Transceive").head.getString("statusWord") shouldEqual null
+    }
+    "record nothing while the events are disabled" in {
+      val fake = chainingCard
+      val card = new JfrIsoCard(fake)
+      val events = record(Seq()) {
+        Apdu.transceiveAndGetResponse(Apdu.decodeHex("00A4040000"), card, "00C0000000")
+      }
+      events shouldBe empty
+      fake.commands.size shouldEqual 3
+    }
+  }
+}
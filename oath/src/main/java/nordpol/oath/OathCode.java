@@ -0,0 +1,52 @@
+package nordpol.oath;
+
+/**
+ * A one time password calculated for a credential
+ */
+public class OathCode {
+    private final OathCredential credential;
+    private final String value;
+    private final long validFrom;
+    private final long validUntil;
+
+    OathCode(OathCredential credential, String value, long validFrom, long validUntil) {
+        this.credential = credential;
+        this.value = value;
+        this.validFrom = validFrom;
+        this.validUntil = validUntil;
+    }
+
+    public OathCredential getCredential() {
+        return credential;
+    }
+
+    /**
+     * @return The code, or null for HOTP credentials and credentials
+     * requiring touch, which have to be calculated one by one with
+     * {@link OathSession#calculate(OathCredential, long)}
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return The start of the period the code is valid in, in
+     * milliseconds since the epoch
+     */
+    public long getValidFrom() {
+        return validFrom;
+    }
+
+    /**
+     * @return The end of the period the code is valid in, in milliseconds
+     * since the epoch
+     */
+    public long getValidUntil() {
+        return validUntil;
+    }
+
+    @Override
+    public String toString() {
+        return credential + ": " + value;
+    }
+}
@@ -0,0 +1,135 @@
+package nordpol.oath;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A credential stored on an OATH applet.
+ * <p>
+ * Names follow the convention of the Yubico authenticators:
+ * {@code [period/][issuer:]account}, where the period of TOTP
+ * credentials defaults to {@value #DEFAULT_PERIOD} seconds.
+ */
+public class OathCredential {
+    /** The period of TOTP credentials without one in their name */
+    public static final int DEFAULT_PERIOD = 30;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The kind of one time password a credential produces
+     */
+    public enum Type {
+        /** Counter based, calculated on request only */
+        HOTP,
+        /** Time based */
+        TOTP
+    }
+
+    private final byte[] nameBytes;
+    private final String name;
+    private final Type type;
+    private final boolean touchRequired;
+    private final int period;
+    private final String issuer;
+    private final String account;
+
+    OathCredential(byte[] nameBytes, Type type, boolean touchRequired) {
+        this.nameBytes = nameBytes;
+        this.name = new String(nameBytes, UTF_8);
+        this.type = type;
+        this.touchRequired = touchRequired;
+        String rest = name;
+        int period = DEFAULT_PERIOD;
+        int slash = rest.indexOf('/');
+        if(type == Type.TOTP && slash > 0) {
+            try {
+                period = Integer.parseInt(rest.substring(0, slash));
+                rest = rest.substring(slash + 1);
+            } catch(NumberFormatException e) {
+                /* A slash in the issuer or account, not a period */
+            }
+        }
+        this.period = period;
+        int colon = rest.indexOf(':');
+        this.issuer = colon >= 0 ? rest.substring(0, colon) : null;
+        this.account = colon >= 0 ? rest.substring(colon + 1) : rest;
+    }
+
+    /**
+     * @return The name as stored on the applet
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The issuer part of the name, or null if there is none
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * @return The account part of the name
+     */
+    public String getAccount() {
+        return account;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return true if the applet only calculates the code once the user
+     * touches the device
+     */
+    public boolean isTouchRequired() {
+        return touchRequired;
+    }
+
+    /**
+     * @return The period of a TOTP credential in seconds
+     */
+    public int getPeriod() {
+        return period;
+    }
+
+    byte[] getNameBytes() {
+        return nameBytes;
+    }
+
+    /* Whether this credential is the one named in buffer */
+    boolean matches(byte[] buffer, int offset, int length, Type type, boolean touchRequired) {
+        if(length != nameBytes.length || this.type != type || this.touchRequired != touchRequired) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            if(buffer[offset + i] != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(!(other instanceof OathCredential)) {
+            return false;
+        }
+        OathCredential credential = (OathCredential) other;
+        return Arrays.equals(nameBytes, credential.nameBytes) && type == credential.type &&
+            touchRequired == credential.touchRequired;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(nameBytes);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,68 @@
+package nordpol.oath;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nordpol.Apdu;
+
+/**
+ * Remembers the credentials of recently seen cards by their UID.
+ * <p>
+ * While parsing a CALCULATE ALL response, an {@link OathSession} compares
+ * the names on the card with the cached credentials of the same card in
+ * place and reuses the cached objects, so names are only decoded and
+ * parsed when a credential is new. An entry is dropped when the applet
+ * reports a different device ID, e.g. after it was reset. Share one
+ * cache between the sessions of an application.
+ */
+public class OathCredentialCache {
+    private static final int DEFAULT_MAX_CARDS = 16;
+
+    private final Map<String, CachedCard> entries;
+
+    static class CachedCard {
+        final byte[] deviceId;
+        final OathCredential[] credentials;
+
+        CachedCard(byte[] deviceId, OathCredential[] credentials) {
+            this.deviceId = deviceId;
+            this.credentials = credentials;
+        }
+    }
+
+    public OathCredentialCache() {
+        this(DEFAULT_MAX_CARDS);
+    }
+
+    /**
+     * @param maxCards The number of cards to remember, the least recently
+     * seen are forgotten first
+     */
+    public OathCredentialCache(final int maxCards) {
+        entries = new LinkedHashMap<String, CachedCard>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCard> eldest) {
+                return size() > maxCards;
+            }
+        };
+    }
+
+    /**
+     * Forget all cards
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized CachedCard get(byte[] uid) {
+        return entries.get(Apdu.encodeHex(uid));
+    }
+
+    synchronized void put(byte[] uid, CachedCard entry) {
+        entries.put(Apdu.encodeHex(uid), entry);
+    }
+
+    synchronized void remove(byte[] uid) {
+        entries.remove(Apdu.encodeHex(uid));
+    }
+}
@@ -0,0 +1,362 @@
+package nordpol.oath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nordpol.Apdu;
+import nordpol.IsoCard;
+
+/**
+ * Calculates one time passwords with the OATH applet of a YubiKey NEO or
+ * compatible card.
+ * <p>
+ * {@link #calculateAll(long)} gets the codes of all credentials with a
+ * single CALCULATE ALL command instead of one CALCULATE per credential.
+ * The response is parsed chunk by chunk as it arrives with SEND
+ * REMAINING, reading names and codes in place, and only the part of a
+ * credential cut off by the end of a chunk is carried over to the next.
+ * With a {@link OathCredentialCache}, credentials of a card seen before
+ * are recognized by comparing their names in place.
+ * <pre>
+ * {@code
+ * OathSession session = new OathSession(card, tag.getId(), cache);
+ * session.select();
+ * for(OathCode code: session.calculateAll(System.currentTimeMillis())) {
+ *     show(code.getCredential().getName(), code.getValue());
+ * }
+ * }
+ * </pre>
+ * Applets protected by a password are not supported; CALCULATE ALL fails
+ * on them with an IOException.
+ */
+public class OathSession {
+    /** The AID of the OATH applet */
+    public static final String AID = "A0000005272101";
+
+    private static final byte INS_CALCULATE = (byte) 0xA2;
+    private static final byte INS_CALCULATE_ALL = (byte) 0xA4;
+    private static final String SEND_REMAINING = "00A50000";
+    private static final byte P2_TRUNCATE = 0x01;
+
+    private static final int TAG_NAME = 0x71;
+    private static final int TAG_CHALLENGE = 0x74;
+    private static final int TAG_TRUNCATED = 0x76;
+    private static final int TAG_HOTP = 0x77;
+    private static final int TAG_VERSION = 0x79;
+    private static final int TAG_TOUCH = 0x7C;
+
+    private static final int INITIAL_BUFFER = 256;
+    private static final int[] POWERS_OF_TEN = {
+        1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+    };
+
+    private final IsoCard card;
+    private final byte[] uid;
+    private final OathCredentialCache cache;
+    private String version;
+    private byte[] deviceId;
+    private boolean passwordRequired;
+
+    /**
+     * Creates a session without caching
+     * @param card The connected card
+     */
+    public OathSession(IsoCard card) {
+        this(card, null, null);
+    }
+
+    /**
+     * @param card The connected card
+     * @param uid The UID of the card, e.g. from Tag.getId()
+     * @param cache The cache to keep the credentials of the card in
+     */
+    public OathSession(IsoCard card, byte[] uid, OathCredentialCache cache) {
+        this.card = card;
+        this.uid = uid;
+        this.cache = cache;
+    }
+
+    /**
+     * Selects the OATH applet
+     */
+    public void select() throws IOException {
+        byte[] response = card.transceive(Apdu.select(AID));
+        if(response.length < 2 || !Apdu.hasStatus(response, "9000")) {
+            throw new IOException("No OATH applet on the card");
+        }
+        version = null;
+        deviceId = null;
+        passwordRequired = false;
+        TlvReader reader = new TlvReader(response, 0, response.length - 2);
+        while(reader.next()) {
+            int offset = reader.valueOffset();
+            int length = reader.valueLength();
+            switch(reader.tag()) {
+            case TAG_VERSION:
+                StringBuilder builder = new StringBuilder();
+                for(int i = 0; i < length; i++) {
+                    builder.append(i > 0 ? "." : "").append(response[offset + i] & 0xFF);
+                }
+                version = builder.toString();
+                break;
+            case TAG_NAME:
+                deviceId = Arrays.copyOfRange(response, offset, offset + length);
+                break;
+            case TAG_CHALLENGE:
+                passwordRequired = true;
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return The version of the applet, e.g. "0.2.0", or null before
+     * {@link #select()}
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the applet is protected by a password
+     */
+    public boolean isPasswordRequired() {
+        return passwordRequired;
+    }
+
+    /**
+     * Calculates the codes of all credentials at once. TOTP credentials
+     * with a period other than {@value OathCredential#DEFAULT_PERIOD}
+     * seconds are calculated again one by one. HOTP credentials and
+     * credentials requiring touch are returned without a value.
+     * @param timeMillis The time to calculate TOTP codes for
+     * @return The codes in the order of the credentials on the applet
+     */
+    public List<OathCode> calculateAll(long timeMillis) throws IOException {
+        if(version == null) {
+            select();
+        }
+        OathCredentialCache.CachedCard cached = cachedCard();
+        long step = timeMillis / 1000 / OathCredential.DEFAULT_PERIOD;
+        long validFrom = step * OathCredential.DEFAULT_PERIOD * 1000;
+        long validUntil = validFrom + OathCredential.DEFAULT_PERIOD * 1000;
+        List<OathCode> codes = new ArrayList<OathCode>();
+        byte[] buffer = null;
+        int buffered = 0;
+        byte[] response = card.transceive(calculateCommand(INS_CALCULATE_ALL, null, challenge(step)));
+        while(true) {
+            if(response.length < 2) {
+                throw new IOException("Response without status word");
+            }
+            int dataLength = response.length - 2;
+            byte[] data;
+            int limit;
+            if(buffered == 0) {
+                /* Nothing carried over, read the response itself */
+                data = response;
+                limit = dataLength;
+            } else {
+                buffer = ensureCapacity(buffer, buffered + dataLength);
+                System.arraycopy(response, 0, buffer, buffered, dataLength);
+                data = buffer;
+                limit = buffered + dataLength;
+            }
+            int consumed = readCodes(data, limit, cached, validFrom, validUntil, codes);
+            buffered = limit - consumed;
+            if(buffered > 0) {
+                buffer = ensureCapacity(buffer, buffered);
+                System.arraycopy(data, consumed, buffer, 0, buffered);
+            }
+            int sw1 = response[dataLength] & 0xFF;
+            int sw2 = response[dataLength + 1] & 0xFF;
+            if(sw1 == 0x61) {
+                response = card.transceive(Apdu.decodeHex(SEND_REMAINING));
+            } else if(sw1 == 0x90 && sw2 == 0x00) {
+                break;
+            } else if(sw1 == 0x69 && sw2 == 0x82) {
+                throw new IOException("The OATH applet requires a password");
+            } else {
+                throw new IOException("CALCULATE ALL failed with " +
+                                      Apdu.encodeHex(Apdu.statusBytes(response)));
+            }
+        }
+        if(buffered > 0) {
+            throw new IOException("Truncated CALCULATE ALL response");
+        }
+        OathCredential[] credentials = new OathCredential[codes.size()];
+        for(int i = 0; i < credentials.length; i++) {
+            OathCode code = codes.get(i);
+            credentials[i] = code.getCredential();
+            if(code.getValue() != null &&
+               code.getCredential().getPeriod() != OathCredential.DEFAULT_PERIOD) {
+                codes.set(i, calculate(code.getCredential(), timeMillis));
+            }
+        }
+        if(cache != null && uid != null) {
+            cache.put(uid, new OathCredentialCache.CachedCard(deviceId, credentials));
+        }
+        return codes;
+    }
+
+    /**
+     * Calculates the code of a single credential, e.g. one requiring touch
+     * @param credential A credential returned by {@link #calculateAll(long)}
+     * @param timeMillis The time to calculate a TOTP code for
+     * @return The code
+     */
+    public OathCode calculate(OathCredential credential, long timeMillis) throws IOException {
+        byte[] challenge;
+        long validFrom = 0;
+        long validUntil = 0;
+        if(credential.getType() == OathCredential.Type.TOTP) {
+            long period = credential.getPeriod() * 1000L;
+            long step = timeMillis / period;
+            challenge = challenge(step);
+            validFrom = step * period;
+            validUntil = validFrom + period;
+        } else {
+            challenge = new byte[0];
+        }
+        byte[] command = calculateCommand(INS_CALCULATE, credential.getNameBytes(), challenge);
+        byte[] response = Apdu.transceiveAndGetResponse(command, card, SEND_REMAINING);
+        if(response.length < 2 || !Apdu.hasStatus(response, "9000")) {
+            throw new IOException("CALCULATE failed for " + credential);
+        }
+        TlvReader reader = new TlvReader(response, 0, response.length - 2);
+        if(!reader.next() || reader.tag() != TAG_TRUNCATED) {
+            throw new IOException("No code in the CALCULATE response for " + credential);
+        }
+        return new OathCode(credential, truncatedCode(response, reader.valueOffset(),
+                                                      reader.valueLength()),
+                            validFrom, validUntil);
+    }
+
+    /* Reads name and code pairs from data, returning the offset of the
+     * first pair not completely in it
+     */
+    private int readCodes(byte[] data, int limit, OathCredentialCache.CachedCard cached,
+                          long validFrom, long validUntil, List<OathCode> codes)
+        throws IOException {
+        TlvReader reader = new TlvReader(data, 0, limit);
+        while(true) {
+            int start = reader.position();
+            if(!reader.next()) {
+                return start;
+            }
+            if(reader.tag() != TAG_NAME) {
+                throw new IOException("Expected a credential name, got tag " + reader.tag());
+            }
+            int nameOffset = reader.valueOffset();
+            int nameLength = reader.valueLength();
+            if(!reader.next()) {
+                return start;
+            }
+            int tag = reader.tag();
+            OathCredential.Type type = tag == TAG_HOTP ?
+                OathCredential.Type.HOTP : OathCredential.Type.TOTP;
+            boolean touch = tag == TAG_TOUCH;
+            OathCredential credential = credential(cached, codes.size(), data, nameOffset,
+                                                   nameLength, type, touch);
+            if(tag == TAG_TRUNCATED) {
+                codes.add(new OathCode(credential, truncatedCode(data, reader.valueOffset(),
+                                                                 reader.valueLength()),
+                                       validFrom, validUntil));
+            } else {
+                codes.add(new OathCode(credential, null, 0, 0));
+            }
+        }
+    }
+
+    /* Looks in the cache at the same position first, as the order on the
+     * applet rarely changes
+     */
+    private static OathCredential credential(OathCredentialCache.CachedCard cached, int index,
+                                             byte[] data, int offset, int length,
+                                             OathCredential.Type type, boolean touch) {
+        if(cached != null) {
+            OathCredential[] credentials = cached.credentials;
+            if(index < credentials.length &&
+               credentials[index].matches(data, offset, length, type, touch)) {
+                return credentials[index];
+            }
+            for(OathCredential credential: credentials) {
+                if(credential.matches(data, offset, length, type, touch)) {
+                    return credential;
+                }
+            }
+        }
+        return new OathCredential(Arrays.copyOfRange(data, offset, offset + length), type, touch);
+    }
+
+    private OathCredentialCache.CachedCard cachedCard() {
+        if(cache == null || uid == null) {
+            return null;
+        }
+        OathCredentialCache.CachedCard cached = cache.get(uid);
+        if(cached != null && !Arrays.equals(cached.deviceId, deviceId)) {
+            cache.remove(uid);
+            return null;
+        }
+        return cached;
+    }
+
+    private static String truncatedCode(byte[] data, int offset, int length) throws IOException {
+        if(length != 5) {
+            throw new IOException("Invalid truncated response of " + length + " bytes");
+        }
+        int digits = data[offset];
+        if(digits < 1 || digits >= POWERS_OF_TEN.length) {
+            throw new IOException("Invalid number of digits " + digits);
+        }
+        int value = ((data[offset + 1] & 0x7F) << 24 | (data[offset + 2] & 0xFF) << 16 |
+                     (data[offset + 3] & 0xFF) << 8 | data[offset + 4] & 0xFF) %
+            POWERS_OF_TEN[digits];
+        StringBuilder code = new StringBuilder(Integer.toString(value));
+        while(code.length() < digits) {
+            code.insert(0, '0');
+        }
+        return code.toString();
+    }
+
+    private static byte[] challenge(long step) {
+        byte[] challenge = new byte[8];
+        for(int i = 7; i >= 0; i--) {
+            challenge[i] = (byte) step;
+            step >>>= 8;
+        }
+        return challenge;
+    }
+
+    private static byte[] calculateCommand(byte ins, byte[] name, byte[] challenge) {
+        int nameLength = name != null ? 2 + name.length : 0;
+        int dataLength = nameLength + 2 + challenge.length;
+        byte[] command = new byte[5 + dataLength];
+        command[1] = ins;
+        command[3] = P2_TRUNCATE;
+        command[4] = (byte) dataLength;
+        int offset = 5;
+        if(name != null) {
+            command[offset++] = TAG_NAME;
+            command[offset++] = (byte) name.length;
+            System.arraycopy(name, 0, command, offset, name.length);
+            offset += name.length;
+        }
+        command[offset++] = TAG_CHALLENGE;
+        command[offset++] = (byte) challenge.length;
+        System.arraycopy(challenge, 0, command, offset, challenge.length);
+        return command;
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int capacity) {
+        if(buffer != null && buffer.length >= capacity) {
+            return buffer;
+        }
+        byte[] larger = new byte[Math.max(capacity, buffer != null ? buffer.length * 2 : INITIAL_BUFFER)];
+        if(buffer != null) {
+            System.arraycopy(buffer, 0, larger, 0, buffer.length);
+        }
+        return larger;
+    }
+}
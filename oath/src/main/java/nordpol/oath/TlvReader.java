@@ -0,0 +1,82 @@
+package nordpol.oath;
+
+import java.io.IOException;
+
+/**
+ * Reads BER-TLV objects from a region of a byte array without copying.
+ * <p>
+ * Each call to {@link #next()} moves to the following object, whose value
+ * is then found at {@link #valueOffset()} in the array. Objects that do
+ * not completely fit in the region are left unread, so a response
+ * arriving in chunks can be read as far as it goes and continued once
+ * more data is appended.
+ */
+class TlvReader {
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+    private int tag;
+    private int valueOffset;
+    private int valueLength;
+
+    TlvReader(byte[] buffer, int offset, int limit) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * @return true if a complete object was read, false if the region
+     * ends before the next object does
+     */
+    boolean next() throws IOException {
+        int start = position;
+        if(start + 2 > limit) {
+            return false;
+        }
+        int length = buffer[start + 1] & 0xFF;
+        int headerLength = 2;
+        if(length == 0x81) {
+            if(start + 3 > limit) {
+                return false;
+            }
+            length = buffer[start + 2] & 0xFF;
+            headerLength = 3;
+        } else if(length == 0x82) {
+            if(start + 4 > limit) {
+                return false;
+            }
+            length = (buffer[start + 2] & 0xFF) << 8 | buffer[start + 3] & 0xFF;
+            headerLength = 4;
+        } else if(length > 0x7F) {
+            throw new IOException("Unsupported TLV length " + length);
+        }
+        if(start + headerLength + length > limit) {
+            return false;
+        }
+        tag = buffer[start] & 0xFF;
+        valueOffset = start + headerLength;
+        valueLength = length;
+        position = valueOffset + length;
+        return true;
+    }
+
+    /**
+     * @return The offset of the first object not read yet
+     */
+    int position() {
+        return position;
+    }
+
+    int tag() {
+        return tag;
+    }
+
+    int valueOffset() {
+        return valueOffset;
+    }
+
+    int valueLength() {
+        return valueLength;
+    }
+}
@@ -0,0 +1,122 @@
+package nordpol.oath
+
+import java.io.IOException
+import scala.collection.JavaConversions._
+import org.scalatest._
+import nordpol.{Apdu, FakeIsoCard}
+
+class OathSessionSpec extends WordSpec with Matchers {
+  val uid = Apdu.decodeHex("04A1B2C3")
+  val time = 1500000000000L
+  val step = time / 1000 / 30
+
+  def tlv(tag: Int, value: Array[Byte]): Array[Byte] = Array(tag.toByte, value.length.toByte) ++ value
+  def name(text: String) = tlv(0x71, text.getBytes("UTF-8"))
+  def truncated(value: String) = tlv(0x76, Apdu.decodeHex(value))
+
+  /** An OATH applet answering CALCULATE ALL in chunks of the given size */
+  class FakeOathApplet(credentials: Array[Byte], chunkSize: Int = 7,
+                       deviceId: String = "0102030405060708", password: Boolean = false) {
+    var remaining = Array[Byte]()
+    val card = new FakeIsoCard(respond _)
+
+    def reply(data: Array[Byte]): Array[Byte] = {
+      val (chunk, rest) = data.splitAt(chunkSize)
+      remaining = rest
+      chunk ++ (if (rest.isEmpty) Apdu.decodeHex("9000") else Array(0x61.toByte, math.min(rest.length, 255).toByte))
+    }
+
+    def respond(command: Array[Byte]): Array[Byte] = (command(1) & 0xFF) match {
+      case 0xA4 if command(2) == 0x04 =>
+        tlv(0x79, Apdu.decodeHex("000203")) ++ tlv(0x71, Apdu.decodeHex(deviceId)) ++
+          (if (password) tlv(0x74, new Array[Byte](8)) else Array[Byte]()) ++ Apdu.decodeHex("9000")
+      case 0xA4 =>
+        if (password) Apdu.decodeHex("6982") else reply(credentials)
+      case 0xA5 => reply(remaining)
+      case 0xA2 => truncated("0600000001") ++ Apdu.decodeHex("9000")
+      case _ => Apdu.decodeHex("6D00")
+    }
+
+    def instructions = card.commands.map(command => Apdu.encodeHex(Array(command(1)))).toList
+  }
+
+  val credentials =
+    name("Example:alice@example.com") ++ truncated("0600BC614E") ++
+    name("Counter") ++ tlv(0x77, Array[Byte](6)) ++
+    name("Bank:bob") ++ tlv(0x7C, Array[Byte](6)) ++
+    name("60/Slow:carol") ++ truncated("0800BC614E")
+
+  "OathSession.select" should {
+    "read the version and password protection" in {
+      val session = new OathSession(new FakeOathApplet(credentials, password = true).card)
+      session.select()
+      session.getVersion shouldEqual "0.2.3"
+      session.isPasswordRequired shouldEqual true
+    }
+    "fail without an OATH applet" in {
+      an[IOException] should be thrownBy new OathSession(new FakeIsoCard(_ => Apdu.decodeHex("6A82"))).select()
+    }
+  }
+
+  "OathSession.calculateAll" should {
+    "read all codes across SEND REMAINING chunks" in {
+      for (chunkSize <- Seq(1, 3, 7, 64, 255)) {
+        val applet = new FakeOathApplet(credentials, chunkSize)
+        val codes = new OathSession(applet.card).calculateAll(time)
+        codes.map(_.getCredential.getName).toList shouldEqual
+          Seq("Example:alice@example.com", "Counter", "Bank:bob", "60/Slow:carol")
+        codes.map(_.getValue).toList shouldEqual Seq("345678", null, null, "000001")
+        applet.instructions.count(_ == "A4") shouldEqual 2
+        applet.instructions.count(_ == "A2") shouldEqual 1
+      }
+    }
+    "send the time step as challenge" in {
+      val applet = new FakeOathApplet(credentials)
+      val codes = new OathSession(applet.card).calculateAll(time)
+      Apdu.encodeHex(applet.card.commands.get(1)) shouldEqual "00A400010A7408" + "%016X".format(step)
+      codes.head.getValidFrom shouldEqual step * 30000
+      codes.head.getValidUntil shouldEqual step * 30000 + 30000
+    }
+    "parse credential names" in {
+      val codes = new OathSession(new FakeOathApplet(credentials).card).calculateAll(time)
+      val example = codes.head.getCredential
+      example.getIssuer shouldEqual "Example"
+      example.getAccount shouldEqual "alice@example.com"
+      example.getPeriod shouldEqual 30
+      codes.get(1).getCredential.getType shouldEqual OathCredential.Type.HOTP
+      codes.get(2).getCredential.isTouchRequired shouldEqual true
+      codes.get(3).getCredential.getPeriod shouldEqual 60
+      codes.get(3).getValidUntil - codes.get(3).getValidFrom shouldEqual 60000
+    }
+    "reuse the cached credentials of a card" in {
+      val cache = new OathCredentialCache()
+      val first = new OathSession(new FakeOathApplet(credentials).card, uid, cache).calculateAll(time)
+      val second = new OathSession(new FakeOathApplet(credentials, 5).card, uid, cache).calculateAll(time)
+      first.zip(second).foreach { case (a, b) => b.getCredential should be theSameInstanceAs a.getCredential }
+    }
+    "drop the cache of a card with another device ID" in {
+      val cache = new OathCredentialCache()
+      val first = new OathSession(new FakeOathApplet(credentials).card, uid, cache).calculateAll(time)
+      val reset = new FakeOathApplet(credentials, deviceId = "0807060504030201")
+      val second = new OathSession(reset.card, uid, cache).calculateAll(time)
+      second.head.getCredential should not be theSameInstanceAs(first.head.getCredential)
+      second.head.getCredential shouldEqual first.head.getCredential
+    }
+    "fail on applets requiring a password" in {
+      an[IOException] should be thrownBy
+        new OathSession(new FakeOathApplet(credentials, password = true).card).calculateAll(time)
+    }
+  }
+
+  "OathSession.calculate" should {
+    "calculate a single credential" in {
+      val applet = new FakeOathApplet(credentials)
+      val session = new OathSession(applet.card)
+      val touch = session.calculateAll(time).get(2).getCredential
+      val code = session.calculate(touch, time)
+      code.getValue shouldEqual "000001"
+      Apdu.encodeHex(applet.card.commands.last) shouldEqual
+        "00A2000114" + "7108" + Apdu.encodeHex("Bank:bob".getBytes("UTF-8")) + "7408" + "%016X".format(step)
+    }
+  }
+}
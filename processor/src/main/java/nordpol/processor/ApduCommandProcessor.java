@@ -0,0 +1,518 @@
+package nordpol.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import nordpol.ApduCommand;
+import nordpol.ApduResponse;
+
+/**
+ * Generates implementations of interfaces declaring {@link ApduCommand}s
+ * and {@link ApduResponse}s.
+ * <p>
+ * For an interface Foo the class FooImpl is generated in the same
+ * package, nested interfaces are named after all enclosing types joined
+ * by underscores, e.g. Outer_FooImpl. Commands are encoded into a byte
+ * array of the exact APDU size, responses are decoded from the array
+ * returned by the card.
+ */
+public class ApduCommandProcessor extends AbstractProcessor {
+    private static final String IMPL_SUFFIX = "Impl";
+    private static final List<String> RESERVED_NAMES =
+        Arrays.asList("card", "command", "dataLength", "length", "offset", "response");
+
+    private final Set<String> generated = new HashSet<String>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> types = new LinkedHashSet<String>();
+        types.add(ApduCommand.class.getCanonicalName());
+        types.add(ApduResponse.class.getCanonicalName());
+        return types;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for(Element element: round.getElementsAnnotatedWith(ApduResponse.class)) {
+            if(isInterface(element, ApduResponse.class)) {
+                generateResponse((TypeElement) element);
+            }
+        }
+        Map<TypeElement, List<ExecutableElement>> commands =
+            new LinkedHashMap<TypeElement, List<ExecutableElement>>();
+        for(Element element: round.getElementsAnnotatedWith(ApduCommand.class)) {
+            Element type = element.getEnclosingElement();
+            if(isInterface(type, ApduCommand.class) && !commands.containsKey(type)) {
+                commands.put((TypeElement) type,
+                             ElementFilter.methodsIn(type.getEnclosedElements()));
+            }
+        }
+        for(Map.Entry<TypeElement, List<ExecutableElement>> entry: commands.entrySet()) {
+            generateCommands(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    private boolean isInterface(Element element, Class<?> annotation) {
+        if(element.getKind() != ElementKind.INTERFACE) {
+            error(element, "@" + annotation.getSimpleName() + " is only supported on interfaces");
+            return false;
+        }
+        return true;
+    }
+
+    private void generateCommands(TypeElement type, List<ExecutableElement> methods) {
+        StringBuilder body = new StringBuilder();
+        boolean valid = true;
+        for(ExecutableElement method: methods) {
+            ApduCommand command = method.getAnnotation(ApduCommand.class);
+            if(command == null) {
+                error(method, "Methods of command interfaces need @ApduCommand");
+                valid = false;
+            } else {
+                valid &= generateCommand(method, command, body);
+            }
+        }
+        if(!valid) {
+            return;
+        }
+        String name = implName(type);
+        StringBuilder source = new StringBuilder();
+        source.append("public final class ").append(name)
+            .append(" implements ").append(type.getQualifiedName()).append(" {\n");
+        source.append("    private final nordpol.IsoCard card;\n\n");
+        source.append("    public ").append(name).append("(nordpol.IsoCard card) {\n");
+        source.append("        this.card = card;\n");
+        source.append("    }\n");
+        source.append(body);
+        source.append(TRANSCEIVE_HELPER);
+        source.append(STATUS_HELPER);
+        source.append("}\n");
+        write(type, name, source);
+    }
+
+    /* Collects the response data announced with 61xx through GET RESPONSE
+     * on the logical channel of the command */
+    private static final String TRANSCEIVE_HELPER =
+        "\n    private static byte[] transceive(nordpol.IsoCard card, byte[] command)\n" +
+        "        throws java.io.IOException {\n" +
+        "        byte[] response = card.transceive(command);\n" +
+        "        if(response.length < 2 || response[response.length - 2] != 0x61) {\n" +
+        "            return response;\n" +
+        "        }\n" +
+        "        java.io.ByteArrayOutputStream data = new java.io.ByteArrayOutputStream();\n" +
+        "        while(response.length >= 2 && response[response.length - 2] == 0x61) {\n" +
+        "            data.write(response, 0, response.length - 2);\n" +
+        "            response = card.transceive(new byte[] {(byte) (command[0] & 0x03), (byte) 0xC0,\n" +
+        "                                                   0x00, 0x00, response[response.length - 1]});\n" +
+        "        }\n" +
+        "        data.write(response, 0, response.length);\n" +
+        "        return data.toByteArray();\n" +
+        "    }\n";
+
+    private static final String STATUS_HELPER =
+        "\n    private static int checkStatus(byte[] response, int expected, String command)\n" +
+        "        throws java.io.IOException {\n" +
+        "        int length = response.length - 2;\n" +
+        "        if(length < 0) {\n" +
+        "            throw new java.io.IOException(command + \" got no status word\");\n" +
+        "        }\n" +
+        "        int status = ((response[length] & 0xFF) << 8) | (response[length + 1] & 0xFF);\n" +
+        "        if(status != expected) {\n" +
+        "            throw new java.io.IOException(command + \" failed with status \" +\n" +
+        "                                          nordpol.Apdu.encodeHex(response, length, 2));\n" +
+        "        }\n" +
+        "        return length;\n" +
+        "    }\n";
+
+    private boolean generateCommand(ExecutableElement method, ApduCommand command,
+                                    StringBuilder out) {
+        String p1 = hexByte(command.p1());
+        String p2 = hexByte(command.p2());
+        String le = command.le() < 0 ? null : hexByte(command.le());
+        List<String> dataLengths = new ArrayList<String>();
+        List<VariableElement> dataParameters = new ArrayList<VariableElement>();
+        boolean valid = true;
+
+        for(VariableElement parameter: method.getParameters()) {
+            String name = parameter.getSimpleName().toString();
+            TypeKind kind = parameter.asType().getKind();
+            if(RESERVED_NAMES.contains(name)) {
+                error(parameter, "Parameter name " + name + " is reserved");
+                valid = false;
+            } else if(parameter.getAnnotation(ApduCommand.P1.class) != null) {
+                valid &= requireKind(parameter, kind, TypeKind.BYTE, TypeKind.INT);
+                p1 = "(byte) " + name;
+            } else if(parameter.getAnnotation(ApduCommand.P2.class) != null) {
+                valid &= requireKind(parameter, kind, TypeKind.BYTE, TypeKind.INT);
+                p2 = "(byte) " + name;
+            } else if(parameter.getAnnotation(ApduCommand.P1P2.class) != null) {
+                valid &= requireKind(parameter, kind, TypeKind.SHORT, TypeKind.INT);
+                p1 = "(byte) (" + name + " >> 8)";
+                p2 = "(byte) " + name;
+            } else if(parameter.getAnnotation(ApduCommand.Le.class) != null) {
+                valid &= requireKind(parameter, kind, TypeKind.INT);
+                le = "(byte) " + name;
+            } else if(kind == TypeKind.BYTE) {
+                dataLengths.add("1");
+                dataParameters.add(parameter);
+            } else if(kind == TypeKind.SHORT) {
+                dataLengths.add("2");
+                dataParameters.add(parameter);
+            } else if(kind == TypeKind.INT) {
+                dataLengths.add("4");
+                dataParameters.add(parameter);
+            } else if(isByteArray(parameter.asType())) {
+                dataLengths.add(name + ".length");
+                dataParameters.add(parameter);
+            } else {
+                error(parameter, "Unsupported parameter type " + parameter.asType());
+                valid = false;
+            }
+        }
+        String returns = returnDecoder(method);
+        if(returns == null) {
+            valid = false;
+        }
+        if(!throwsIOException(method)) {
+            error(method, "Commands have to declare throws IOException");
+            valid = false;
+        }
+        if(!valid) {
+            return false;
+        }
+
+        String methodName = method.getSimpleName().toString();
+        out.append("\n    @Override\n    public ").append(method.getReturnType())
+            .append(' ').append(methodName).append('(');
+        List<? extends VariableElement> parameters = method.getParameters();
+        for(int i = 0; i < parameters.size(); i++) {
+            if(i > 0) {
+                out.append(", ");
+            }
+            out.append(parameters.get(i).asType()).append(' ')
+                .append(parameters.get(i).getSimpleName());
+        }
+        out.append(") throws java.io.IOException {\n");
+
+        String dataLength = dataLengths.isEmpty() ? "0" : join(dataLengths, " + ");
+        boolean variableData = dataLength.contains(".length");
+        out.append("        int dataLength = ").append(dataLength).append(";\n");
+        if(variableData) {
+            out.append("        if(dataLength > 255) {\n");
+            out.append("            throw new IllegalArgumentException(\"Data of ")
+                .append(methodName).append(" longer than 255 bytes\");\n");
+            out.append("        }\n");
+        }
+        out.append("        byte[] command = new byte[4 + (dataLength > 0 ? 1 + dataLength : 0)")
+            .append(le != null ? " + 1" : "").append("];\n");
+        out.append("        command[0] = ").append(hexByte(command.cla())).append(";\n");
+        out.append("        command[1] = ").append(hexByte(command.ins())).append(";\n");
+        out.append("        command[2] = ").append(p1).append(";\n");
+        out.append("        command[3] = ").append(p2).append(";\n");
+        out.append("        int offset = 4;\n");
+        if(!dataParameters.isEmpty()) {
+            String indent = "        ";
+            if(variableData) {
+                out.append("        if(dataLength > 0) {\n");
+                indent = "            ";
+            }
+            out.append(indent).append("command[offset++] = (byte) dataLength;\n");
+            for(VariableElement parameter: dataParameters) {
+                appendEncoder(out, indent, parameter);
+            }
+            if(variableData) {
+                out.append("        }\n");
+            }
+        }
+        if(le != null) {
+            out.append("        command[offset] = ").append(le).append(";\n");
+        }
+        if((command.status() >> 8) == 0x61) {
+            out.append("        byte[] response = card.transceive(command);\n");
+        } else {
+            out.append("        byte[] response = transceive(card, command);\n");
+        }
+        out.append(returns.isEmpty() ? "        checkStatus(response, 0x" : "        int length = checkStatus(response, 0x")
+            .append(String.format(Locale.ROOT, "%04X", command.status())).append(", \"")
+            .append(methodName).append("\");\n");
+        out.append(returns);
+        out.append("    }\n");
+        return true;
+    }
+
+    private void appendEncoder(StringBuilder out, String indent, VariableElement parameter) {
+        String name = parameter.getSimpleName().toString();
+        switch(parameter.asType().getKind()) {
+        case BYTE:
+            out.append(indent).append("command[offset++] = ").append(name).append(";\n");
+            break;
+        case SHORT:
+            out.append(indent).append("command[offset++] = (byte) (").append(name).append(" >> 8);\n");
+            out.append(indent).append("command[offset++] = (byte) ").append(name).append(";\n");
+            break;
+        case INT:
+            for(int shift = 24; shift > 0; shift -= 8) {
+                out.append(indent).append("command[offset++] = (byte) (").append(name)
+                    .append(" >> ").append(shift).append(");\n");
+            }
+            out.append(indent).append("command[offset++] = (byte) ").append(name).append(";\n");
+            break;
+        default:
+            out.append(indent).append("System.arraycopy(").append(name).append(", 0, command, offset, ")
+                .append(name).append(".length);\n");
+            out.append(indent).append("offset += ").append(name).append(".length;\n");
+        }
+    }
+
+    private String returnDecoder(ExecutableElement method) {
+        TypeMirror type = method.getReturnType();
+        String name = method.getSimpleName().toString();
+        switch(type.getKind()) {
+        case VOID:
+            return "";
+        case BYTE:
+            return requireLength(name, "1") + "        return response[0];\n";
+        case SHORT:
+            return requireLength(name, "2") + "        return (short) (" + bigEndian("response", 0, 2) + ");\n";
+        case INT:
+            return requireLength(name, "4") + "        return " + bigEndian("response", 0, 4) + ";\n";
+        default:
+            if(isByteArray(type)) {
+                return "        return java.util.Arrays.copyOfRange(response, 0, length);\n";
+            }
+            if(type.getKind() == TypeKind.DECLARED) {
+                Element element = ((DeclaredType) type).asElement();
+                if(element.getAnnotation(ApduResponse.class) != null) {
+                    String impl = qualifiedImplName((TypeElement) element);
+                    return "        if(length < " + impl + ".MIN_LENGTH) {\n" +
+                        "            throw new java.io.IOException(\"Response to " + name +
+                        " too short: \" + length);\n" +
+                        "        }\n" +
+                        "        return new " + impl + "(response, length);\n";
+                }
+            }
+            error(method, "Unsupported return type " + type);
+            return null;
+        }
+    }
+
+    private static String requireLength(String method, String length) {
+        return "        if(length != " + length + ") {\n" +
+            "            throw new java.io.IOException(\"Response to " + method +
+            " has the wrong length: \" + length);\n" +
+            "        }\n";
+    }
+
+    private void generateResponse(TypeElement type) {
+        StringBuilder body = new StringBuilder();
+        int minLength = 0;
+        boolean valid = true;
+        for(ExecutableElement method: ElementFilter.methodsIn(type.getEnclosedElements())) {
+            ApduResponse.Field field = method.getAnnotation(ApduResponse.Field.class);
+            if(field == null) {
+                error(method, "Methods of response interfaces need @ApduResponse.Field");
+                valid = false;
+                continue;
+            }
+            if(!method.getParameters().isEmpty()) {
+                error(method, "Response fields can not take parameters");
+                valid = false;
+                continue;
+            }
+            TypeMirror returnType = method.getReturnType();
+            int offset = field.offset();
+            int length = field.length();
+            String value;
+            switch(returnType.getKind()) {
+            case BYTE:
+                length = 1;
+                value = "response[" + offset + "]";
+                break;
+            case SHORT:
+                length = length < 0 ? 2 : length;
+                value = "(short) (" + bigEndian("response", offset, length) + ")";
+                break;
+            case INT:
+                length = length < 0 ? 4 : length;
+                value = bigEndian("response", offset, length);
+                break;
+            default:
+                if(!isByteArray(returnType)) {
+                    error(method, "Unsupported field type " + returnType);
+                    valid = false;
+                    continue;
+                }
+                value = "java.util.Arrays.copyOfRange(response, " + offset + ", " +
+                    (length < 0 ? "length" : Integer.toString(offset + length)) + ")";
+                length = Math.max(length, 0);
+            }
+            int maxLength = returnType.getKind() == TypeKind.SHORT ? 2 : 4;
+            if(offset < 0 || (returnType.getKind() != TypeKind.ARRAY &&
+                              (length < 1 || length > maxLength))) {
+                error(method, "Invalid offset or length of field");
+                valid = false;
+                continue;
+            }
+            minLength = Math.max(minLength, offset + length);
+            body.append("\n    @Override\n    public ").append(returnType).append(' ')
+                .append(method.getSimpleName()).append("() {\n");
+            body.append("        return ").append(value).append(";\n");
+            body.append("    }\n");
+        }
+        if(!valid) {
+            return;
+        }
+        String name = implName(type);
+        StringBuilder source = new StringBuilder();
+        /* Public, as commands in other packages may return it */
+        source.append("public final class ").append(name)
+            .append(" implements ").append(type.getQualifiedName()).append(" {\n");
+        source.append("    public static final int MIN_LENGTH = ").append(minLength).append(";\n\n");
+        source.append("    private final byte[] response;\n");
+        source.append("    private final int length;\n\n");
+        source.append("    public ").append(name).append("(byte[] response, int length) {\n");
+        source.append("        this.response = response;\n");
+        source.append("        this.length = length;\n");
+        source.append("    }\n");
+        source.append(body);
+        source.append("}\n");
+        write(type, name, source);
+    }
+
+    private void write(TypeElement type, String name, StringBuilder source) {
+        String packageName = packageOf(type).getQualifiedName().toString();
+        String qualifiedName = packageName.isEmpty() ? name : packageName + "." + name;
+        if(!generated.add(qualifiedName)) {
+            return;
+        }
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+            PrintWriter writer = new PrintWriter(file.openWriter());
+            try {
+                writer.println("// Generated by " + getClass().getName() + ", do not edit");
+                if(!packageName.isEmpty()) {
+                    writer.println("package " + packageName + ";");
+                    writer.println();
+                }
+                writer.print(source);
+            } finally {
+                writer.close();
+            }
+        } catch(IOException e) {
+            error(type, "Could not write " + qualifiedName + ": " + e.getMessage());
+        }
+    }
+
+    private String implName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while(enclosing.getKind() != ElementKind.PACKAGE) {
+            name.insert(0, enclosing.getSimpleName() + "_");
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.append(IMPL_SUFFIX).toString();
+    }
+
+    private String qualifiedImplName(TypeElement type) {
+        String packageName = packageOf(type).getQualifiedName().toString();
+        return packageName.isEmpty() ? implName(type) : packageName + "." + implName(type);
+    }
+
+    private PackageElement packageOf(TypeElement type) {
+        return processingEnv.getElementUtils().getPackageOf(type);
+    }
+
+    private boolean requireKind(VariableElement parameter, TypeKind kind, TypeKind... allowed) {
+        for(TypeKind candidate: allowed) {
+            if(kind == candidate) {
+                return true;
+            }
+        }
+        error(parameter, "Unsupported parameter type " + parameter.asType());
+        return false;
+    }
+
+    private boolean throwsIOException(ExecutableElement method) {
+        TypeMirror ioException = processingEnv.getElementUtils()
+            .getTypeElement(IOException.class.getCanonicalName()).asType();
+        for(TypeMirror thrown: method.getThrownTypes()) {
+            if(processingEnv.getTypeUtils().isSubtype(ioException, thrown)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isByteArray(TypeMirror type) {
+        return type.getKind() == TypeKind.ARRAY &&
+            ((ArrayType) type).getComponentType().getKind() == TypeKind.BYTE;
+    }
+
+    private static String bigEndian(String array, int offset, int length) {
+        StringBuilder value = new StringBuilder();
+        for(int i = 0; i < length; i++) {
+            if(i > 0) {
+                value.append(" | ");
+            }
+            int shift = 8 * (length - 1 - i);
+            value.append("((").append(array).append('[').append(offset + i).append("] & 0xFF)");
+            if(shift > 0) {
+                value.append(" << ").append(shift);
+            }
+            value.append(')');
+        }
+        return value.toString();
+    }
+
+    private static String hexByte(int value) {
+        return String.format(Locale.ROOT, "(byte) 0x%02X", value & 0xFF);
+    }
+
+    private static String join(List<String> parts, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for(String part: parts) {
+            if(joined.length() > 0) {
+                joined.append(separator);
+            }
+            joined.append(part);
+        }
+        return joined.toString();
+    }
+
+    private void error(Element element, String message) {
+        Messager messager = processingEnv.getMessager();
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,193 @@
+package nordpol.processor
+
+import java.io.{File, IOException}
+import java.net.URLClassLoader
+import java.nio.file.Files
+import java.util.{ArrayList, Arrays, List => JList}
+import javax.tools.{DiagnosticCollector, JavaFileObject, SimpleJavaFileObject, ToolProvider}
+import java.net.URI
+import scala.collection.JavaConversions._
+import org.scalatest._
+
+import nordpol.{Apdu, IsoCard, OnCardErrorListener, TempDirectory}
+
+class ApduCommandProcessorSpec extends WordSpec with Matchers with BeforeAndAfterAll {
+  /** A card answering with the given responses, repeating the last one,
+    * and recording the commands */
+  class RecordingCard(responses: String*) extends IsoCard {
+    val commands = new ArrayList[String]()
+    def addOnCardErrorListener(listener: OnCardErrorListener): Unit = ()
+    def removeOnCardErrorListener(listener: OnCardErrorListener): Unit = ()
+    def close(): Unit = ()
+    def connect(): Unit = ()
+    def getMaxTransceiveLength(): Int = 253
+    def getTimeout(): Int = 0
+    def isConnected(): Boolean = true
+    def setTimeout(timeout: Int): Unit = ()
+    def transceive(data: Array[Byte]): Array[Byte] = {
+      commands.add(Apdu.encodeHex(data))
+      Apdu.decodeHex(responses(math.min(commands.size - 1, responses.size - 1)))
+    }
+    def transceive(data: JList[Array[Byte]]): JList[Array[Byte]] = data.map(transceive(_))
+  }
+
+  class Source(name: String, code: String)
+      extends SimpleJavaFileObject(URI.create("string:///" + name.replace('.', '/') + ".java"),
+                                   JavaFileObject.Kind.SOURCE) {
+    override def getCharContent(ignoreEncodingErrors: Boolean): CharSequence = code
+  }
+
+  val commands = """
+    package example;
+    import java.io.IOException;
+    import nordpol.ApduCommand;
+    import nordpol.ApduResponse;
+    public interface Commands {
+        @ApduResponse
+        interface Version {
+            @ApduResponse.Field(offset = 0)
+            byte major();
+            @ApduResponse.Field(offset = 1, length = 3)
+            int build();
+            @ApduResponse.Field(offset = 4)
+            byte[] name();
+        }
+        @ApduCommand(ins = 0xA4, p1 = 0x02, p2 = 0x0C)
+        void selectFile(short fileId) throws IOException;
+        @ApduCommand(ins = 0xB0, le = 0)
+        byte[] readBinary(@ApduCommand.P1P2 int position) throws IOException;
+        @ApduCommand(cla = 0x80, ins = 0xCA, p1 = 0x01)
+        short getCounter(@ApduCommand.P2 int index, @ApduCommand.Le int expected) throws IOException;
+        @ApduCommand(cla = 0x80, ins = 0xF1, status = 0x6310)
+        Version getVersion(byte flags, byte[] challenge) throws IOException;
+    }
+  """
+
+  val classpath = new File(classOf[IsoCard].getProtectionDomain.getCodeSource.getLocation.toURI).getPath
+
+  /* The generated classes are loaded until the end of the spec */
+  val outputs = new ArrayList[File]()
+
+  override def afterAll(): Unit = outputs.foreach(TempDirectory.delete)
+
+  def compile(sources: Source*): (Boolean, Seq[String], File) = {
+    val output = Files.createTempDirectory("processor").toFile
+    outputs.add(output)
+    val compiler = ToolProvider.getSystemJavaCompiler
+    val diagnostics = new DiagnosticCollector[JavaFileObject]()
+    val task = compiler.getTask(null, null, diagnostics,
+      Arrays.asList("-classpath", classpath, "-d", output.getPath, "-s", output.getPath),
+      null, sources)
+    task.setProcessors(Arrays.asList(new ApduCommandProcessor()))
+    val success = task.call()
+    (success, diagnostics.getDiagnostics.map(_.getMessage(null)).toList, output)
+  }
+
+  lazy val loader = {
+    val (success, messages, output) = compile(new Source("example.Commands", commands))
+    withClue(messages) { success shouldEqual true }
+    new URLClassLoader(Array(output.toURI.toURL), classOf[IsoCard].getClassLoader)
+  }
+
+  def commandsFor(card: IsoCard): AnyRef =
+    loader.loadClass("example.CommandsImpl").getConstructor(classOf[IsoCard]).newInstance(card).asInstanceOf[AnyRef]
+
+  def call(target: AnyRef, name: String, args: AnyRef*): AnyRef = {
+    /* Call through the interface the generated class implements */
+    val method = target.getClass.getInterfaces.flatMap(_.getMethods).find(_.getName == name).get
+    try method.invoke(target, args: _*) catch {
+      case e: java.lang.reflect.InvocationTargetException => throw e.getCause
+    }
+  }
+
+  "The generated commands" should {
+    "encode the data field from the parameters" in {
+      val card = new RecordingCard("9000")
+      call(commandsFor(card), "selectFile", java.lang.Short.valueOf(0x2F01.toShort))
+      card.commands.toList shouldEqual Seq("00A4020C022F01")
+    }
+    "set P1 and P2 from a parameter and return the response data" in {
+      val card = new RecordingCard("0102039000")
+      val data = call(commandsFor(card), "readBinary", Integer.valueOf(0x01F6)).asInstanceOf[Array[Byte]]
+      Apdu.encodeHex(data) shouldEqual "010203"
+      card.commands.toList shouldEqual Seq("00B001F600")
+    }
+    "decode primitive responses" in {
+      val card = new RecordingCard("12349000")
+      call(commandsFor(card), "getCounter", Integer.valueOf(7), Integer.valueOf(2)) shouldEqual 0x1234.toShort
+      card.commands.toList shouldEqual Seq("80CA010702")
+    }
+    "decode responses with a declared layout" in {
+      val card = new RecordingCard("02000102414243" + "6310")
+      val version = call(commandsFor(card), "getVersion", java.lang.Byte.valueOf(1.toByte), Apdu.decodeHex("CAFE"))
+      card.commands.toList shouldEqual Seq("80F1000003" + "01CAFE")
+      call(version, "major") shouldEqual 2.toByte
+      call(version, "build") shouldEqual 0x000102
+      Apdu.encodeHex(call(version, "name").asInstanceOf[Array[Byte]]) shouldEqual "414243"
+    }
+    "collect the response data announced with 61xx" in {
+      val card = new RecordingCard("01026102", "03049000")
+      val data = call(commandsFor(card), "readBinary", Integer.valueOf(0x01F6)).asInstanceOf[Array[Byte]]
+      Apdu.encodeHex(data) shouldEqual "01020304"
+      card.commands.toList shouldEqual Seq("00B001F600", "00C0000002")
+    }
+    "reject unexpected status words" in {
+      val card = new RecordingCard("6A82")
+      val thrown = intercept[IOException] {
+        call(commandsFor(card), "selectFile", java.lang.Short.valueOf(0x2F01.toShort))
+      }
+      thrown.getMessage should include ("6A82")
+    }
+    "reject responses shorter than their layout" in {
+      val card = new RecordingCard("0200" + "6310")
+      intercept[IOException] {
+        call(commandsFor(card), "getVersion", java.lang.Byte.valueOf(1.toByte), Apdu.decodeHex("CAFE"))
+      }
+    }
+  }
+
+  "The processor" should {
+    "report unsupported parameter types" in {
+      val (success, messages, _) = compile(new Source("example.Bad", """
+        package example;
+        public interface Bad {
+            @nordpol.ApduCommand(ins = 0x01)
+            void command(String text) throws java.io.IOException;
+        }
+      """))
+      success shouldEqual false
+      messages.exists(_.contains("Unsupported parameter type")) shouldEqual true
+    }
+    "generate responses usable from other packages" in {
+      val (success, messages, _) = compile(new Source("responses.Status", """
+        package responses;
+        import nordpol.ApduResponse;
+        @ApduResponse
+        public interface Status {
+            @ApduResponse.Field(offset = 0)
+            short value();
+        }
+      """), new Source("commands.StatusCommands", """
+        package commands;
+        import java.io.IOException;
+        import nordpol.ApduCommand;
+        public interface StatusCommands {
+            @ApduCommand(ins = 0xCA)
+            responses.Status getStatus() throws IOException;
+        }
+      """))
+      withClue(messages) { success shouldEqual true }
+    }
+    "require commands to throw IOException" in {
+      val (success, messages, _) = compile(new Source("example.Unchecked", """
+        package example;
+        public interface Unchecked {
+            @nordpol.ApduCommand(ins = 0x01)
+            void command();
+        }
+      """))
+      success shouldEqual false
+      messages.exists(_.contains("IOException")) shouldEqual true
+    }
+  }
+}
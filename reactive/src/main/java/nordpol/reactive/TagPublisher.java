@@ -0,0 +1,262 @@
+package nordpol.android.reactive;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import android.nfc.Tag;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import nordpol.android.OnDiscoveredTagListener;
+import nordpol.android.OnExclusiveNfcDisabledListener;
+import nordpol.android.TagDispatcher;
+
+/**
+ * A Reactive Streams Publisher of the tags found by a TagDispatcher.
+ * <p>
+ * Every subscriber receives tags according to its own demand. Tags
+ * arriving while a subscriber has no outstanding demand are buffered
+ * according to the {@link OverflowPolicy}. Subscriptions outlive pauses of
+ * the activity, tags simply stop arriving while exclusive NFC is disabled
+ * and continue once it is enabled again. The stream only completes when
+ * {@link #complete()} is called, e.g. when the activity is destroyed.
+ * A dispatcher that is only disabled once it is no longer needed can
+ * complete the stream itself, see {@link #completeOnDisable(TagDispatcher)}.
+ * <p>
+ * To use it, pass the publisher as listener to the TagDispatcherBuilder:
+ * <pre>
+ * {@code
+ * TagPublisher publisher = new TagPublisher(TagPublisher.OverflowPolicy.LATEST, 1);
+ * TagDispatcher dispatcher = new TagDispatcherBuilder(activity, publisher).build();
+ * ...
+ * // in onDestroy()
+ * publisher.complete();
+ * }
+ * </pre>
+ */
+public class TagPublisher implements Publisher<Tag>, OnDiscoveredTagListener {
+    /**
+     * What to do with a tag when the buffer of a subscriber is full
+     */
+    public enum OverflowPolicy {
+        /** Drop the oldest buffered tag to make room for the new one */
+        LATEST,
+        /** Drop the new tag */
+        DROP,
+        /** Fail the subscription with an IllegalStateException */
+        ERROR
+    }
+
+    private final OverflowPolicy overflowPolicy;
+    private final int capacity;
+    private final List<TagSubscription> subscriptions =
+        new CopyOnWriteArrayList<TagSubscription>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean completed = false;
+
+    /**
+     * Creates a publisher buffering the latest tag only.
+     */
+    public TagPublisher() {
+        this(OverflowPolicy.LATEST, 1);
+    }
+
+    /**
+     * @param overflowPolicy What to do when a subscriber's buffer is full
+     * @param capacity The number of tags buffered per subscriber
+     */
+    public TagPublisher(OverflowPolicy overflowPolicy, int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.overflowPolicy = overflowPolicy;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Tag> subscriber) {
+        if(subscriber == null) {
+            throw new NullPointerException("Subscriber is null");
+        }
+        TagSubscription subscription = new TagSubscription(subscriber);
+        /* Tags are only offered once onSubscribe has returned */
+        subscriber.onSubscribe(subscription);
+        subscriptions.add(subscription);
+        if(subscription.isTerminated()) {
+            subscriptions.remove(subscription);
+        } else if(completed) {
+            subscription.complete();
+        }
+    }
+
+    @Override
+    public void tagDiscovered(Tag tag) {
+        if(completed) {
+            return;
+        }
+        for(TagSubscription subscription: subscriptions) {
+            subscription.offer(tag);
+        }
+    }
+
+    /**
+     * Complete the stream for all subscribers once they have received
+     * the tags already buffered. Later subscribers complete right away.
+     */
+    public void complete() {
+        completed = true;
+        for(TagSubscription subscription: subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * Complete the stream as soon as exclusive NFC of a dispatcher is
+     * disabled
+     * <p>
+     * Only suited to dispatchers that are disabled once they are no
+     * longer needed, e.g. for a single activity that disables exclusive
+     * NFC in onDestroy. A dispatcher disabled in onPause would complete
+     * the stream on the first pause.
+     * @param dispatcher The dispatcher tags are published from
+     */
+    public void completeOnDisable(TagDispatcher dispatcher) {
+        dispatcher.addOnExclusiveNfcDisabledListener(new OnExclusiveNfcDisabledListener() {
+                @Override
+                public void exclusiveNfcDisabled(TagDispatcher tagDispatcher) {
+                    tagDispatcher.removeOnExclusiveNfcDisabledListener(this);
+                    complete();
+                }
+            });
+    }
+
+    /**
+     * @return the number of tags dropped by the overflow policy over all
+     * subscribers
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private class TagSubscription implements Subscription {
+        private final Subscriber<? super Tag> subscriber;
+        private final ArrayDeque<Tag> queue = new ArrayDeque<Tag>();
+        private final AtomicInteger wip = new AtomicInteger();
+        private long requested = 0;
+        private boolean done = false;
+        private boolean terminated = false;
+        private Throwable error = null;
+
+        TagSubscription(Subscriber<? super Tag> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(Tag tag) {
+            synchronized(this) {
+                if(terminated || done) {
+                    return;
+                }
+                if(queue.size() >= capacity) {
+                    switch(overflowPolicy) {
+                    case LATEST:
+                        queue.pollFirst();
+                        droppedCount.incrementAndGet();
+                        queue.addLast(tag);
+                        break;
+                    case DROP:
+                        droppedCount.incrementAndGet();
+                        break;
+                    case ERROR:
+                        error = new IllegalStateException("Tag buffer overflow");
+                        break;
+                    }
+                } else {
+                    queue.addLast(tag);
+                }
+            }
+            drain();
+        }
+
+        void complete() {
+            synchronized(this) {
+                done = true;
+            }
+            drain();
+        }
+
+        synchronized boolean isTerminated() {
+            return terminated;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized(this) {
+                if(n <= 0) {
+                    error = new IllegalArgumentException("Non-positive request: " + n);
+                } else {
+                    requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized(this) {
+                terminated = true;
+                queue.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        /* Signals are only ever sent by the thread that brings wip from
+         * 0 to 1, which serializes them and prevents recursion from
+         * request() calls inside onNext().
+         */
+        private void drain() {
+            if(wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while(true) {
+                    Tag tag = null;
+                    Throwable failure = null;
+                    boolean finished = false;
+                    synchronized(this) {
+                        if(terminated) {
+                            break;
+                        }
+                        if(error != null) {
+                            failure = error;
+                            terminated = true;
+                            queue.clear();
+                        } else if(requested > 0 && !queue.isEmpty()) {
+                            tag = queue.pollFirst();
+                            if(requested != Long.MAX_VALUE) {
+                                requested--;
+                            }
+                        } else if(done && queue.isEmpty()) {
+                            finished = true;
+                            terminated = true;
+                        } else {
+                            break;
+                        }
+                    }
+                    if(failure != null) {
+                        subscriptions.remove(this);
+                        subscriber.onError(failure);
+                    } else if(finished) {
+                        subscriptions.remove(this);
+                        subscriber.onComplete();
+                    } else {
+                        subscriber.onNext(tag);
+                    }
+                }
+            } while(wip.decrementAndGet() != 0);
+        }
+    }
+}
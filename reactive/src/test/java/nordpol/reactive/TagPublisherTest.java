@@ -0,0 +1,245 @@
+package nordpol.android.reactive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import android.app.Activity;
+import android.nfc.Tag;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import nordpol.Apdu;
+import nordpol.android.TagDispatcher;
+import nordpol.android.TagDispatcherBuilder;
+import nordpol.android.testkit.NfcTestKit;
+import nordpol.android.testkit.ScriptedCard;
+import nordpol.android.testkit.ShadowBasicTagTechnology;
+import nordpol.android.testkit.ShadowIsoDep;
+import nordpol.android.testkit.ShadowReaderModeNfcAdapter;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE,
+        shadows = {ShadowReaderModeNfcAdapter.class, ShadowIsoDep.class,
+                   ShadowBasicTagTechnology.class})
+public class TagPublisherTest {
+    /* Records the signals of a subscription */
+    private static class RecordingSubscriber implements Subscriber<Tag> {
+        final List<String> tags = new ArrayList<String>();
+        Subscription subscription;
+        Throwable error;
+        boolean completed;
+        boolean subscribing;
+        boolean signalled;
+        int depth;
+        int maxDepth;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Tag tag) {
+            signalled |= subscribing;
+            depth++;
+            maxDepth = Math.max(maxDepth, depth);
+            tags.add(Apdu.encodeHex(tag.getId()));
+            onTag();
+            depth--;
+        }
+
+        void onTag() {
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        NfcTestKit.reset();
+    }
+
+    private static Tag tag(int n) {
+        return new ScriptedCard(uid(n)).getTag();
+    }
+
+    private static String uid(int n) {
+        return String.format("04A1B2C3D4E5%02X", n);
+    }
+
+    @Test
+    public void deliversTagsAsRequested() {
+        TagPublisher publisher = new TagPublisher(TagPublisher.OverflowPolicy.DROP, 4);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        publisher.tagDiscovered(tag(1));
+        publisher.tagDiscovered(tag(2));
+        assertEquals(0, subscriber.tags.size());
+
+        subscriber.subscription.request(1);
+        assertEquals(1, subscriber.tags.size());
+        subscriber.subscription.request(5);
+        publisher.tagDiscovered(tag(3));
+        assertArrayEquals(new Object[] {uid(1), uid(2), uid(3)}, subscriber.tags.toArray());
+    }
+
+    @Test
+    public void keepsTheLatestTagsOnOverflow() {
+        TagPublisher publisher = new TagPublisher(TagPublisher.OverflowPolicy.LATEST, 2);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        for(int i = 1; i <= 4; i++) {
+            publisher.tagDiscovered(tag(i));
+        }
+        subscriber.subscription.request(10);
+        assertArrayEquals(new Object[] {uid(3), uid(4)}, subscriber.tags.toArray());
+        assertEquals(2, publisher.getDroppedCount());
+    }
+
+    @Test
+    public void dropsNewTagsOnOverflow() {
+        TagPublisher publisher = new TagPublisher(TagPublisher.OverflowPolicy.DROP, 2);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        for(int i = 1; i <= 4; i++) {
+            publisher.tagDiscovered(tag(i));
+        }
+        subscriber.subscription.request(10);
+        assertArrayEquals(new Object[] {uid(1), uid(2)}, subscriber.tags.toArray());
+        assertEquals(2, publisher.getDroppedCount());
+    }
+
+    @Test
+    public void failsTheSubscriptionOnOverflow() {
+        TagPublisher publisher = new TagPublisher(TagPublisher.OverflowPolicy.ERROR, 1);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        publisher.tagDiscovered(tag(1));
+        publisher.tagDiscovered(tag(2));
+        assertTrue(subscriber.error instanceof IllegalStateException);
+
+        subscriber.subscription.request(10);
+        publisher.tagDiscovered(tag(3));
+        assertEquals(0, subscriber.tags.size());
+    }
+
+    @Test
+    public void failsTheSubscriptionOnNonPositiveRequests() {
+        TagPublisher publisher = new TagPublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void doesNotRecurseOnRequestsFromOnNext() {
+        TagPublisher publisher = new TagPublisher(TagPublisher.OverflowPolicy.DROP, 8);
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+                @Override
+                void onTag() {
+                    subscription.request(1);
+                }
+            };
+        publisher.subscribe(subscriber);
+        for(int i = 1; i <= 5; i++) {
+            publisher.tagDiscovered(tag(i));
+        }
+        subscriber.subscription.request(1);
+        assertEquals(5, subscriber.tags.size());
+        assertEquals(1, subscriber.maxDepth);
+    }
+
+    @Test
+    public void offersTagsOnlyOnceSubscribed() {
+        final TagPublisher publisher = new TagPublisher();
+        final RecordingSubscriber subscriber = new RecordingSubscriber() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    super.onSubscribe(subscription);
+                    subscribing = true;
+                    subscription.request(10);
+                    /* As if the dispatcher found a tag meanwhile */
+                    publisher.tagDiscovered(tag(1));
+                    subscribing = false;
+                }
+            };
+        publisher.subscribe(subscriber);
+        publisher.tagDiscovered(tag(2));
+        assertFalse(subscriber.signalled);
+        assertArrayEquals(new Object[] {uid(2)}, subscriber.tags.toArray());
+    }
+
+    @Test
+    public void stopsDeliveringOnceCancelled() {
+        TagPublisher publisher = new TagPublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(10);
+        subscriber.subscription.cancel();
+        publisher.tagDiscovered(tag(1));
+        publisher.complete();
+        assertEquals(0, subscriber.tags.size());
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void completesAfterTheBufferedTags() {
+        TagPublisher publisher = new TagPublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        publisher.tagDiscovered(tag(1));
+        publisher.complete();
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(1);
+        assertArrayEquals(new Object[] {uid(1)}, subscriber.tags.toArray());
+        assertTrue(subscriber.completed);
+
+        RecordingSubscriber late = new RecordingSubscriber();
+        publisher.subscribe(late);
+        assertTrue(late.completed);
+        assertNull(late.error);
+    }
+
+    @Test
+    public void completesOnDisableWhenAsked() throws Exception {
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        TagPublisher publisher = new TagPublisher();
+        TagDispatcher dispatcher = new TagDispatcherBuilder(activity, publisher)
+            .enableDispatchingOnReaderThread(true)
+            .enableUnavailableNfcUserPrompt(false)
+            .enableSounds(false)
+            .build();
+        publisher.completeOnDisable(dispatcher);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(10);
+
+        dispatcher.enableExclusiveNfc();
+        NfcTestKit.presentTag(tag(1));
+        dispatcher.disableExclusiveNfc();
+        assertArrayEquals(new Object[] {uid(1)}, subscriber.tags.toArray());
+        assertTrue(subscriber.completed);
+    }
+}
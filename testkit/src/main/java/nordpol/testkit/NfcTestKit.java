@@ -0,0 +1,158 @@
+package nordpol.android.testkit;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.os.Bundle;
+
+/**
+ * Entry point for running the NFC paths of an app on the JVM with
+ * Robolectric.
+ * <p>
+ * Register the shadows of this package on the test and reset the kit
+ * before each test:
+ * <pre>
+ * {@literal @}RunWith(RobolectricTestRunner.class)
+ * {@literal @}Config(shadows = {ShadowReaderModeNfcAdapter.class, ShadowIsoDep.class,
+ *                    ShadowBasicTagTechnology.class})
+ * public class DispatchTest {
+ *     {@literal @}Before
+ *     public void setUp() {
+ *         NfcTestKit.reset();
+ *     }
+ *
+ *     {@literal @}Test
+ *     public void dispatchesTag() throws Exception {
+ *         ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6").respond("00A4", "9000", 10);
+ *         // enable exclusive NFC on a TagDispatcher of an activity, then
+ *         NfcTestKit.presentTag(card.getTag());
+ *         ShadowLooper.runUiThreadTasks();
+ *     }
+ * }
+ * </pre>
+ * Tags are presented the way the platform does: in reader mode the
+ * callback runs on a separate binder thread, with foreground dispatch an
+ * intent is delivered to the activity, see {@link #createTagIntent(Tag)}.
+ */
+public class NfcTestKit {
+    private NfcTestKit() {
+    }
+
+    /**
+     * Restore the default state: NFC available and enabled, reader mode
+     * and foreground dispatch disabled
+     */
+    public static void reset() {
+        ShadowReaderModeNfcAdapter.reset();
+    }
+
+    /**
+     * @param available false to make NfcAdapter.getDefaultAdapter return
+     * null, as on devices without NFC
+     */
+    public static void setNfcAvailable(boolean available) {
+        ShadowReaderModeNfcAdapter.setAvailable(available);
+    }
+
+    /**
+     * @param enabled false to simulate NFC switched off in the settings
+     */
+    public static void setNfcEnabled(boolean enabled) {
+        ShadowReaderModeNfcAdapter.setEnabled(enabled);
+    }
+
+    /**
+     * Present a tag to the reader mode callback, if any
+     *
+     * The callback is run on a thread of its own, like the binder
+     * thread used by the platform, and this method returns when the
+     * callback has returned.
+     * @param tag The tag to present, typically from {@link ScriptedCard#getTag()}
+     * @return false if reader mode is not enabled
+     * @throws InterruptedException if interrupted while waiting for the callback
+     * @throws RuntimeException rethrown from the callback
+     */
+    public static boolean presentTag(final Tag tag) throws InterruptedException {
+        final NfcAdapter.ReaderCallback callback = ShadowReaderModeNfcAdapter.getReaderCallback();
+        if(callback == null) {
+            return false;
+        }
+        final RuntimeException[] failure = new RuntimeException[1];
+        Thread binder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        callback.onTagDiscovered(tag);
+                    } catch(RuntimeException e) {
+                        failure[0] = e;
+                    }
+                }
+            }, "Binder:nfc");
+        binder.start();
+        binder.join();
+        if(failure[0] != null) {
+            throw failure[0];
+        }
+        return true;
+    }
+
+    /**
+     * Create the intent delivered to onNewIntent of the foreground
+     * dispatch activity when a tag is found
+     *
+     * Pass it to {@link nordpol.android.TagDispatcher#interceptIntent(Intent)}
+     * or to the activity controller of the test.
+     * @param tag The tag to deliver
+     * @return An ACTION_TECH_DISCOVERED intent carrying the tag
+     */
+    public static Intent createTagIntent(Tag tag) {
+        return new Intent(NfcAdapter.ACTION_TECH_DISCOVERED)
+            .putExtra(NfcAdapter.EXTRA_TAG, tag)
+            .putExtra(NfcAdapter.EXTRA_ID, tag.getId());
+    }
+
+    /**
+     * @return true if an activity has reader mode enabled
+     */
+    public static boolean isReaderModeEnabled() {
+        return ShadowReaderModeNfcAdapter.getReaderCallback() != null;
+    }
+
+    /**
+     * @return The activity reader mode was enabled for or null
+     */
+    public static Activity getReaderModeActivity() {
+        return ShadowReaderModeNfcAdapter.getReaderActivity();
+    }
+
+    /**
+     * @return The flags reader mode was enabled with
+     */
+    public static int getReaderModeFlags() {
+        return ShadowReaderModeNfcAdapter.getReaderFlags();
+    }
+
+    /**
+     * @return The extras reader mode was enabled with, e.g. the presence
+     * check delay, or null
+     */
+    public static Bundle getReaderModeExtras() {
+        return ShadowReaderModeNfcAdapter.getReaderExtras();
+    }
+
+    /**
+     * @return How many times reader mode has been enabled since the last
+     * reset, including re-arming
+     */
+    public static int getReaderModeEnableCount() {
+        return ShadowReaderModeNfcAdapter.getReaderModeEnableCount();
+    }
+
+    /**
+     * @return The activity foreground dispatch was enabled for or null
+     */
+    public static Activity getForegroundDispatchActivity() {
+        return ShadowReaderModeNfcAdapter.getForegroundActivity();
+    }
+}
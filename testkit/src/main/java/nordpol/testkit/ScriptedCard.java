@@ -0,0 +1,228 @@
+package nordpol.android.testkit;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import android.nfc.Tag;
+import android.nfc.TagLostException;
+import android.os.Bundle;
+
+import org.robolectric.util.ReflectionHelpers;
+
+import nordpol.Apdu;
+
+/**
+ * An IsoDep card with scripted responses and latencies.
+ * <p>
+ * Responses are matched on a hex prefix of the command APDU, the first
+ * matching entry wins. Commands without a matching entry get the default
+ * response, "6D00" (instruction not supported) unless set otherwise.
+ * Each response is returned after its latency has passed on the calling
+ * thread, which makes it possible to reproduce slow cards and to
+ * measure the overhead of the code around the transceive.
+ * <p>
+ * The {@link Tag} of the card is what {@link android.nfc.tech.IsoDep#get(Tag)}
+ * and in turn {@link nordpol.android.AndroidCard#get(Tag)} are called
+ * with. The shadows in this package route all I/O of the tag to the
+ * card.
+ * <pre>
+ * {@code
+ * ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6")
+ *     .respond("00A40400", "9000", 20)
+ *     .respond("80CA", "01029000", 5);
+ * NfcTestKit.presentTag(card.getTag());
+ * }
+ * </pre>
+ */
+public class ScriptedCard {
+    /* Technology codes and extras from the hidden android.nfc.tech.TagTechnology */
+    private static final int NFC_A = 1;
+    private static final int ISO_DEP = 3;
+
+    private static final Map<Tag, ScriptedCard> cards = new WeakHashMap<Tag, ScriptedCard>();
+
+    private final byte[] uid;
+    private final List<Response> responses = new ArrayList<Response>();
+    private final List<byte[]> commands = new ArrayList<byte[]>();
+    private byte[] defaultResponse = Apdu.decodeHex("6D00");
+    private long defaultLatency = 0;
+    private int maxTransceiveLength = 261;
+    private volatile boolean removed = false;
+    private Tag tag;
+
+    private static class Response {
+        final String prefix;
+        final byte[] response;
+        final long latency;
+
+        Response(String prefix, byte[] response, long latency) {
+            this.prefix = prefix;
+            this.response = response;
+            this.latency = latency;
+        }
+    }
+
+    /**
+     * @param uid The UID of the card as a hex string
+     */
+    public ScriptedCard(String uid) {
+        this.uid = Apdu.decodeHex(uid);
+    }
+
+    /**
+     * Add a response with the default latency
+     * @see #respond(String, String, long)
+     */
+    public ScriptedCard respond(String commandPrefix, String response) {
+        return respond(commandPrefix, response, -1);
+    }
+
+    /**
+     * Add a response
+     * @param commandPrefix The start of the commands to respond to as a
+     * hex string, the empty string matches all commands
+     * @param response The response APDU including the status word as a
+     * hex string
+     * @param latencyMillis How long the card takes to respond
+     * @return This card
+     */
+    public synchronized ScriptedCard respond(String commandPrefix, String response,
+                                             long latencyMillis) {
+        responses.add(new Response(commandPrefix.toUpperCase(), Apdu.decodeHex(response),
+                                   latencyMillis));
+        return this;
+    }
+
+    /**
+     * @param response The response to commands not matched by any prefix
+     * as a hex string
+     * @return This card
+     */
+    public synchronized ScriptedCard setDefaultResponse(String response) {
+        this.defaultResponse = Apdu.decodeHex(response);
+        return this;
+    }
+
+    /**
+     * @param latencyMillis The latency of responses added without one
+     * @return This card
+     */
+    public synchronized ScriptedCard setDefaultLatency(long latencyMillis) {
+        this.defaultLatency = latencyMillis;
+        return this;
+    }
+
+    /**
+     * @param maxTransceiveLength The value reported by
+     * {@link android.nfc.tech.IsoDep#getMaxTransceiveLength()}
+     * @return This card
+     */
+    public synchronized ScriptedCard setMaxTransceiveLength(int maxTransceiveLength) {
+        this.maxTransceiveLength = maxTransceiveLength;
+        return this;
+    }
+
+    /**
+     * Returns the tag of the card, created on first use
+     * @return A tag supporting NfcA and IsoDep
+     */
+    public synchronized Tag getTag() {
+        if(tag == null) {
+            Bundle nfcA = new Bundle();
+            nfcA.putShort("sak", (short) 0x20);
+            nfcA.putByteArray("atqa", new byte[]{0x04, 0x00});
+            Bundle isoDep = new Bundle();
+            isoDep.putByteArray("histbytes", new byte[0]);
+            tag = ReflectionHelpers.callStaticMethod(
+                Tag.class, "createMockTag",
+                ReflectionHelpers.ClassParameter.from(byte[].class, uid.clone()),
+                ReflectionHelpers.ClassParameter.from(int[].class, new int[]{NFC_A, ISO_DEP}),
+                ReflectionHelpers.ClassParameter.from(Bundle[].class, new Bundle[]{nfcA, isoDep}));
+            synchronized(cards) {
+                cards.put(tag, this);
+            }
+        }
+        return tag;
+    }
+
+    /**
+     * Take the card out of the field. Commands in flight and all later
+     * commands fail with a TagLostException.
+     */
+    public void remove() {
+        removed = true;
+    }
+
+    /**
+     * @return true if {@link #remove()} has been called
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return Copies of the commands received so far, in order
+     */
+    public synchronized List<byte[]> getCommands() {
+        List<byte[]> copies = new ArrayList<byte[]>(commands.size());
+        for(byte[] command: commands) {
+            copies.add(command.clone());
+        }
+        return Collections.unmodifiableList(copies);
+    }
+
+    synchronized int getMaxTransceiveLength() {
+        return maxTransceiveLength;
+    }
+
+    byte[] transceive(byte[] command) throws IOException {
+        byte[] response = defaultResponse;
+        long latency = -1;
+        synchronized(this) {
+            checkPresent();
+            commands.add(command.clone());
+            String hex = Apdu.encodeHex(command);
+            for(Response candidate: responses) {
+                if(hex.startsWith(candidate.prefix)) {
+                    response = candidate.response;
+                    latency = candidate.latency;
+                    break;
+                }
+            }
+            if(latency < 0) {
+                latency = defaultLatency;
+            }
+        }
+        if(latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the card");
+            }
+        }
+        checkPresent();
+        return response.clone();
+    }
+
+    void checkPresent() throws TagLostException {
+        if(removed) {
+            throw new TagLostException("Tag was lost.");
+        }
+    }
+
+    static ScriptedCard forTag(Tag tag) {
+        ScriptedCard card;
+        synchronized(cards) {
+            card = cards.get(tag);
+        }
+        if(card == null) {
+            throw new IllegalStateException("The tag was not created by a ScriptedCard");
+        }
+        return card;
+    }
+}
@@ -0,0 +1,55 @@
+package nordpol.android.testkit;
+
+import java.io.IOException;
+import android.nfc.Tag;
+import android.nfc.tech.TagTechnology;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.RealObject;
+
+/**
+ * Shadow of the package-private base class of all tag technologies,
+ * connecting them to the {@link ScriptedCard} of their tag.
+ */
+@Implements(className = "android.nfc.tech.BasicTagTechnology")
+public class ShadowBasicTagTechnology {
+    @RealObject
+    private Object realTechnology;
+    private volatile boolean connected = false;
+
+    @Implementation
+    public void connect() throws IOException {
+        getCard().checkPresent();
+        connected = true;
+    }
+
+    @Implementation
+    public void reconnect() throws IOException {
+        if(!connected) {
+            throw new IllegalStateException("Technology not connected.");
+        }
+        connect();
+    }
+
+    @Implementation
+    public void close() throws IOException {
+        connected = false;
+    }
+
+    @Implementation
+    public boolean isConnected() {
+        return connected;
+    }
+
+    ScriptedCard getCard() {
+        Tag tag = ((TagTechnology) realTechnology).getTag();
+        return ScriptedCard.forTag(tag);
+    }
+
+    void checkConnected() {
+        if(!connected) {
+            throw new IllegalStateException("Call connect() first!");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package nordpol.android.testkit;
+
+import java.io.IOException;
+import android.nfc.tech.IsoDep;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+/**
+ * Shadow of IsoDep answering commands from the {@link ScriptedCard} of
+ * the tag. {@link IsoDep#get(android.nfc.Tag)} itself is not shadowed.
+ */
+@Implements(IsoDep.class)
+public class ShadowIsoDep extends ShadowBasicTagTechnology {
+    private int timeout = 0;
+
+    @Implementation
+    public byte[] transceive(byte[] data) throws IOException {
+        checkConnected();
+        return getCard().transceive(data);
+    }
+
+    @Implementation
+    public int getMaxTransceiveLength() {
+        return getCard().getMaxTransceiveLength();
+    }
+
+    @Implementation
+    public boolean isExtendedLengthApduSupported() {
+        return getCard().getMaxTransceiveLength() > 261;
+    }
+
+    @Implementation
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Implementation
+    public int getTimeout() {
+        return timeout;
+    }
+}
@@ -0,0 +1,170 @@
+package nordpol.android.testkit;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.IntentFilter;
+import android.nfc.NfcAdapter;
+import android.os.Bundle;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.util.ReflectionHelpers;
+
+/**
+ * Shadow of NfcAdapter supporting reader mode as well as foreground
+ * dispatch.
+ * <p>
+ * The state is kept for the whole device rather than per adapter
+ * instance, as the platform only has a single NFC controller and
+ * {@link NfcAdapter#getDefaultAdapter(Context)} is called repeatedly by
+ * TagDispatcher. Use {@link NfcTestKit} to inspect it and to present tags.
+ * <p>
+ * Like NfcActivityManager, reader mode is dropped once its activity is
+ * destroyed, and enabling or disabling it for a destroyed activity throws
+ * IllegalStateException.
+ */
+@Implements(NfcAdapter.class)
+public class ShadowReaderModeNfcAdapter {
+    private static NfcAdapter adapter;
+    private static boolean available = true;
+    private static boolean enabled = true;
+    private static Activity readerActivity;
+    private static NfcAdapter.ReaderCallback readerCallback;
+    private static int readerFlags;
+    private static Bundle readerExtras;
+    private static int readerModeEnableCount = 0;
+    private static Activity foregroundActivity;
+
+    @Implementation
+    public static NfcAdapter getDefaultAdapter(Context context) {
+        return getNfcAdapter(context);
+    }
+
+    @Implementation
+    public static synchronized NfcAdapter getNfcAdapter(Context context) {
+        if(!available) {
+            return null;
+        }
+        if(adapter == null) {
+            /* The only constructor of NfcAdapter from API 15 to 23 */
+            adapter = ReflectionHelpers.callConstructor(NfcAdapter.class,
+                ReflectionHelpers.ClassParameter.from(Context.class, context));
+        }
+        return adapter;
+    }
+
+    @Implementation
+    public boolean isEnabled() {
+        synchronized(ShadowReaderModeNfcAdapter.class) {
+            return enabled;
+        }
+    }
+
+    @Implementation
+    public void enableReaderMode(Activity activity, NfcAdapter.ReaderCallback callback,
+                                 int flags, Bundle extras) {
+        checkNotDestroyed(activity);
+        synchronized(ShadowReaderModeNfcAdapter.class) {
+            readerActivity = activity;
+            readerCallback = callback;
+            readerFlags = flags;
+            readerExtras = extras;
+            readerModeEnableCount++;
+        }
+    }
+
+    @Implementation
+    public void disableReaderMode(Activity activity) {
+        checkNotDestroyed(activity);
+        synchronized(ShadowReaderModeNfcAdapter.class) {
+            if(readerActivity == activity) {
+                readerActivity = null;
+                readerCallback = null;
+                readerFlags = 0;
+                readerExtras = null;
+            }
+        }
+    }
+
+    @Implementation
+    public void enableForegroundDispatch(Activity activity, PendingIntent intent,
+                                         IntentFilter[] filters, String[][] techLists) {
+        synchronized(ShadowReaderModeNfcAdapter.class) {
+            foregroundActivity = activity;
+        }
+    }
+
+    @Implementation
+    public void disableForegroundDispatch(Activity activity) {
+        synchronized(ShadowReaderModeNfcAdapter.class) {
+            if(foregroundActivity == activity) {
+                foregroundActivity = null;
+            }
+        }
+    }
+
+    private static void checkNotDestroyed(Activity activity) {
+        if(activity.isDestroyed()) {
+            throw new IllegalStateException("activity is already destroyed");
+        }
+    }
+
+    /* The platform forgets the reader mode of destroyed activities */
+    private static void dropDestroyedReaderActivity() {
+        if(readerActivity != null && readerActivity.isDestroyed()) {
+            readerActivity = null;
+            readerCallback = null;
+            readerFlags = 0;
+            readerExtras = null;
+        }
+    }
+
+    static synchronized void setAvailable(boolean available) {
+        ShadowReaderModeNfcAdapter.available = available;
+    }
+
+    static synchronized void setEnabled(boolean enabled) {
+        ShadowReaderModeNfcAdapter.enabled = enabled;
+    }
+
+    static synchronized Activity getReaderActivity() {
+        dropDestroyedReaderActivity();
+        return readerActivity;
+    }
+
+    static synchronized NfcAdapter.ReaderCallback getReaderCallback() {
+        dropDestroyedReaderActivity();
+        return readerCallback;
+    }
+
+    static synchronized int getReaderFlags() {
+        dropDestroyedReaderActivity();
+        return readerFlags;
+    }
+
+    static synchronized Bundle getReaderExtras() {
+        dropDestroyedReaderActivity();
+        return readerExtras;
+    }
+
+    static synchronized int getReaderModeEnableCount() {
+        return readerModeEnableCount;
+    }
+
+    static synchronized Activity getForegroundActivity() {
+        return foregroundActivity;
+    }
+
+    static synchronized void reset() {
+        adapter = null;
+        available = true;
+        enabled = true;
+        readerActivity = null;
+        readerCallback = null;
+        readerFlags = 0;
+        readerExtras = null;
+        readerModeEnableCount = 0;
+        foregroundActivity = null;
+    }
+}
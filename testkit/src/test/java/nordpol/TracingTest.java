@@ -0,0 +1,75 @@
+package nordpol.android;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+import android.nfc.Tag;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import nordpol.android.testkit.NfcTestKit;
+import nordpol.android.testkit.ShadowBasicTagTechnology;
+import nordpol.android.testkit.ShadowIsoDep;
+import nordpol.android.testkit.ShadowReaderModeNfcAdapter;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE,
+        shadows = {ShadowReaderModeNfcAdapter.class, ShadowIsoDep.class,
+                   ShadowBasicTagTechnology.class})
+public class TracingTest {
+    @Before
+    public void setUp() {
+        NfcTestKit.reset();
+    }
+
+    private static TagDispatcher dispatcher(boolean tracing) {
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        return new TagDispatcherBuilder(activity, new OnDiscoveredTagListener() {
+                @Override
+                public void tagDiscovered(Tag tag) {
+                }
+            })
+            .enableUnavailableNfcUserPrompt(false)
+            .enableSounds(false)
+            .enableTracing(tracing)
+            .build();
+    }
+
+    @Test
+    public void tracesWhileATracingDispatcherIsEnabled() {
+        TagDispatcher traced = dispatcher(true);
+        TagDispatcher untraced = dispatcher(false);
+        assertFalse(Tracing.isEnabled());
+
+        untraced.enableExclusiveNfc();
+        assertFalse(Tracing.isEnabled());
+        traced.enableExclusiveNfc();
+        traced.enableExclusiveNfc();
+        assertTrue(Tracing.isEnabled());
+
+        untraced.disableExclusiveNfc();
+        assertTrue(Tracing.isEnabled());
+        traced.disableExclusiveNfc();
+        assertFalse(Tracing.isEnabled());
+    }
+
+    @Test
+    public void tracesUntilTheLastTracingDispatcherIsDisabled() {
+        TagDispatcher first = dispatcher(true);
+        TagDispatcher second = dispatcher(true);
+        first.enableExclusiveNfc();
+        second.enableExclusiveNfc();
+
+        first.disableExclusiveNfc();
+        first.disableExclusiveNfc();
+        assertTrue(Tracing.isEnabled());
+        second.disableExclusiveNfc();
+        assertFalse(Tracing.isEnabled());
+    }
+}
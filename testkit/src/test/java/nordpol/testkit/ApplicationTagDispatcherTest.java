@@ -0,0 +1,124 @@
+package nordpol.android.testkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.app.Activity;
+import android.nfc.Tag;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ActivityController;
+
+import nordpol.android.ApplicationTagDispatcher;
+import nordpol.android.OnDiscoveredTagListener;
+import nordpol.android.TagDispatcher;
+import nordpol.android.TagDispatcherBuilder;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE,
+        shadows = {ShadowReaderModeNfcAdapter.class, ShadowIsoDep.class,
+                   ShadowBasicTagTechnology.class})
+public class ApplicationTagDispatcherTest {
+    /* Shorter than the handover delay of ApplicationTagDispatcher */
+    private static final int WITHIN_HANDOVER = 100;
+
+    private ApplicationTagDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        NfcTestKit.reset();
+        dispatcher = ApplicationTagDispatcher.register(RuntimeEnvironment.application,
+            new OnDiscoveredTagListener() {
+                @Override
+                public void tagDiscovered(Tag tag) {
+                }
+            },
+            new ApplicationTagDispatcher.DispatcherFactory() {
+                @Override
+                public TagDispatcher create(Activity activity, OnDiscoveredTagListener listener) {
+                    return new TagDispatcherBuilder(activity, listener)
+                        .enableUnavailableNfcUserPrompt(false)
+                        .enableSounds(false)
+                        .build();
+                }
+            });
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.unregister();
+    }
+
+    private static ActivityController<Activity> resumedActivity() {
+        return Robolectric.buildActivity(Activity.class).create().start().resume();
+    }
+
+    @Test
+    public void enablesReaderModeForTheResumedActivity() {
+        ActivityController<Activity> first = resumedActivity();
+        assertSame(first.get(), NfcTestKit.getReaderModeActivity());
+        assertEquals(1, NfcTestKit.getReaderModeEnableCount());
+    }
+
+    @Test
+    public void keepsReaderModeDuringTheHandoverDelay() {
+        ActivityController<Activity> first = resumedActivity();
+        first.pause();
+        ShadowLooper.idleMainLooper(WITHIN_HANDOVER);
+        assertSame(first.get(), NfcTestKit.getReaderModeActivity());
+    }
+
+    @Test
+    public void handsReaderModeOverToTheNextActivity() {
+        ActivityController<Activity> first = resumedActivity();
+        first.pause();
+        ActivityController<Activity> second = resumedActivity();
+        first.stop();
+        assertSame(second.get(), NfcTestKit.getReaderModeActivity());
+        assertEquals(2, NfcTestKit.getReaderModeEnableCount());
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertSame(second.get(), NfcTestKit.getReaderModeActivity());
+    }
+
+    @Test
+    public void enablesReaderModeForRecreatedActivities() {
+        ActivityController<Activity> first = resumedActivity();
+        first.pause().stop().destroy();
+        assertFalse(NfcTestKit.isReaderModeEnabled());
+        assertNull(dispatcher.getCurrentDispatcher());
+
+        ActivityController<Activity> recreated = resumedActivity();
+        assertSame(recreated.get(), NfcTestKit.getReaderModeActivity());
+        assertEquals(2, NfcTestKit.getReaderModeEnableCount());
+    }
+
+    @Test
+    public void releasesReaderModeWhenNoActivityResumes() {
+        ActivityController<Activity> first = resumedActivity();
+        first.pause().stop();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertFalse(NfcTestKit.isReaderModeEnabled());
+        assertNull(dispatcher.getCurrentDispatcher());
+    }
+
+    @Test
+    public void releasesDestroyedActivitiesRightAway() {
+        ActivityController<Activity> first = resumedActivity();
+        first.pause().stop().destroy();
+        assertFalse(NfcTestKit.isReaderModeEnabled());
+        assertNull(dispatcher.getCurrentDispatcher());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertNull(dispatcher.getCurrentDispatcher());
+    }
+}
@@ -0,0 +1,239 @@
+package nordpol.android.testkit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import android.app.Activity;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ActivityController;
+import org.robolectric.util.ReflectionHelpers;
+
+import nordpol.Apdu;
+import nordpol.FlightRecorderDumper;
+import nordpol.IsoCard;
+import nordpol.android.AndroidCard;
+import nordpol.android.CardSession;
+import nordpol.android.OnDiscoveredSessionListener;
+import nordpol.android.OnDiscoveredTagListener;
+import nordpol.android.TagDispatcher;
+import nordpol.android.TagDispatcherBuilder;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE,
+        shadows = {ShadowReaderModeNfcAdapter.class, ShadowIsoDep.class,
+                   ShadowBasicTagTechnology.class})
+public class NfcTestKitTest {
+    private static final String AID = "A00000061700";
+    private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+    private final List<Tag> tags = new CopyOnWriteArrayList<Tag>();
+    private final List<byte[]> responses = new CopyOnWriteArrayList<byte[]>();
+    private Activity activity;
+
+    /* Selects the applet through AndroidCard on the thread it is called on */
+    private final OnDiscoveredTagListener selectingListener = new OnDiscoveredTagListener() {
+            @Override
+            public void tagDiscovered(Tag tag) {
+                tags.add(tag);
+                try {
+                    AndroidCard card = AndroidCard.get(tag);
+                    card.connect();
+                    responses.add(card.transceive(Apdu.select(AID)));
+                    card.close();
+                } catch(IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+
+    @Before
+    public void setUp() {
+        NfcTestKit.reset();
+        activity = Robolectric.setupActivity(Activity.class);
+    }
+
+    @Test
+    public void presentsTagsToTheReaderModeCallback() throws Exception {
+        ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6").respond("00A40400", "9000");
+        TagDispatcher dispatcher = new TagDispatcherBuilder(activity, selectingListener)
+            .enableDispatchingOnReaderThread(true)
+            .enableUnavailableNfcUserPrompt(false)
+            .enableSounds(false)
+            .build();
+        assertFalse(NfcTestKit.presentTag(card.getTag()));
+
+        assertEquals(TagDispatcher.NfcStatus.AVAILABLE_ENABLED, dispatcher.enableExclusiveNfc());
+        assertTrue(NfcTestKit.isReaderModeEnabled());
+        assertEquals(activity, NfcTestKit.getReaderModeActivity());
+        assertTrue(NfcTestKit.presentTag(card.getTag()));
+
+        assertEquals(1, tags.size());
+        assertArrayEquals(Apdu.decodeHex("04A1B2C3D4E5F6"), tags.get(0).getId());
+        assertEquals("9000", Apdu.encodeHex(responses.get(0)));
+        assertEquals(Apdu.encodeHex(Apdu.select(AID)), Apdu.encodeHex(card.getCommands().get(0)));
+
+        dispatcher.disableExclusiveNfc();
+        assertFalse(NfcTestKit.isReaderModeEnabled());
+        assertNull(NfcTestKit.getReaderModeActivity());
+    }
+
+    @Test
+    public void postsTagsToTheMainLooper() throws Exception {
+        ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6");
+        TagDispatcher dispatcher = new TagDispatcherBuilder(activity, new OnDiscoveredTagListener() {
+                @Override
+                public void tagDiscovered(Tag tag) {
+                    tags.add(tag);
+                }
+            })
+            .enableUnavailableNfcUserPrompt(false)
+            .enableSounds(false)
+            .build();
+        dispatcher.enableExclusiveNfc();
+        NfcTestKit.presentTag(card.getTag());
+        assertEquals(0, tags.size());
+
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(1, tags.size());
+        dispatcher.disableExclusiveNfc();
+    }
+
+    @Test
+    public void endsSessionsOfTagsRejectedByAQuitHandlerThread() throws Exception {
+        ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6");
+        HandlerThread thread = new HandlerThread("dispatch");
+        thread.start();
+        TagDispatcher dispatcher = new TagDispatcherBuilder(activity, selectingListener)
+            .enableDispatchingOnUiThread(false)
+            .setDispatchHandlerThread(thread)
+            .setDebounceWindow(100)
+            .enableUnavailableNfcUserPrompt(false)
+            .enableSounds(false)
+            .build();
+        dispatcher.enableExclusiveNfc();
+        Looper looper = thread.getLooper();
+        thread.quit();
+        thread.join();
+        /* Robolectric 3.1 does not mark the queue of a quit looper, which
+         * makes Handler.post return false on a device */
+        ReflectionHelpers.setField(looper.getQueue(), "mQuitting", true);
+        for(int i = 0; i < 2; i++) {
+            try {
+                NfcTestKit.presentTag(card.getTag());
+                throw new AssertionError("Tag dispatched to a quit thread");
+            } catch(RejectedExecutionException e) {
+                /* After the debounce window the card is reported again
+                 * rather than suppressed as if still being dispatched */
+                SystemClock.sleep(200);
+            }
+        }
+        assertEquals(0, dispatcher.getSuppressedTagCount());
+        dispatcher.disableExclusiveNfc();
+    }
+
+    @Test
+    public void handsPrefetchedSessionsToSessionListeners() throws Exception {
+        ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6").respond("00A40400", "6F009000");
+        final List<CardSession> sessions = new CopyOnWriteArrayList<CardSession>();
+        TagDispatcher dispatcher = new TagDispatcherBuilder(activity, new OnDiscoveredSessionListener() {
+                @Override
+                public void tagDiscovered(Tag tag) {
+                    tags.add(tag);
+                }
+
+                @Override
+                public void sessionDiscovered(CardSession session) {
+                    sessions.add(session);
+                }
+            })
+            .enableDispatchingOnUiThread(false)
+            .setDispatchExecutor(DIRECT)
+            .addPrefetchSelect(AID)
+            .enableUnavailableNfcUserPrompt(false)
+            .enableSounds(false)
+            .build();
+        dispatcher.enableExclusiveNfc();
+        NfcTestKit.presentTag(card.getTag());
+
+        assertEquals(0, tags.size());
+        assertEquals(1, sessions.size());
+        CardSession session = sessions.get(0);
+        assertTrue(session.isConnected());
+        assertEquals(AID, session.getSelectedAid());
+        assertEquals("6F009000", Apdu.encodeHex(session.getPrefetchedResponse(Apdu.select(AID))));
+        session.getCard().close();
+        dispatcher.disableExclusiveNfc();
+    }
+
+    @Test
+    public void forgetsReaderModeOfDestroyedActivities() throws Exception {
+        ActivityController<Activity> controller =
+            Robolectric.buildActivity(Activity.class).create().start().resume();
+        TagDispatcher dispatcher = new TagDispatcherBuilder(controller.get(), selectingListener)
+            .enableUnavailableNfcUserPrompt(false)
+            .enableSounds(false)
+            .build();
+        dispatcher.enableExclusiveNfc();
+        controller.pause().stop().destroy();
+        assertFalse(NfcTestKit.isReaderModeEnabled());
+
+        try {
+            NfcAdapter.getDefaultAdapter(activity).disableReaderMode(controller.get());
+            throw new AssertionError("Reader mode disabled for a destroyed activity");
+        } catch(IllegalStateException e) {
+            /* As NfcActivityManager does */
+        }
+        /* TagDispatcher leaves the adapter alone */
+        dispatcher.disableExclusiveNfc();
+    }
+
+    @Test
+    public void failsCommandsOnceTheCardIsRemoved() throws Exception {
+        ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6").respond("", "9000");
+        AndroidCard androidCard = AndroidCard.get(card.getTag());
+        final List<String> dumps = new CopyOnWriteArrayList<String>();
+        androidCard.addOnCardErrorListener(new FlightRecorderDumper() {
+                @Override
+                protected void dumped(IsoCard card, IOException exception, String dump) {
+                    dumps.add(dump);
+                }
+            });
+        androidCard.connect();
+        assertEquals("9000", Apdu.encodeHex(androidCard.transceive(Apdu.select(AID))));
+
+        card.remove();
+        try {
+            androidCard.transceive(Apdu.select(AID));
+            throw new AssertionError("Transceive succeeded without a card");
+        } catch(IOException e) {
+            assertTrue(card.isRemoved());
+        }
+        assertEquals(1, dumps.size());
+        assertTrue(dumps.get(0).startsWith("Last 3 of 3 APDUs"));
+    }
+}
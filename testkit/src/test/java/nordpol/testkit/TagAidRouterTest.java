@@ -0,0 +1,88 @@
+package nordpol.android.testkit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import android.nfc.Tag;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import nordpol.AidRouter;
+import nordpol.IsoCard;
+import nordpol.android.OnDiscoveredTagListener;
+import nordpol.android.TagAidRouter;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE,
+        shadows = {ShadowReaderModeNfcAdapter.class, ShadowIsoDep.class,
+                   ShadowBasicTagTechnology.class})
+public class TagAidRouterTest {
+    private static final String AID = "A00000061700";
+
+    private final List<String> routed = new CopyOnWriteArrayList<String>();
+    private final List<Tag> unrouted = new CopyOnWriteArrayList<Tag>();
+    private final List<IOException> failures = new CopyOnWriteArrayList<IOException>();
+    private TagAidRouter tagRouter;
+
+    @Before
+    public void setUp() {
+        NfcTestKit.reset();
+        AidRouter router = new AidRouter().addRoute(AID, new AidRouter.AidHandler() {
+                @Override
+                public void handle(IsoCard card, String aid, byte[] selectResponse)
+                    throws IOException {
+                    routed.add(aid);
+                    card.transceive(new byte[] {(byte) 0x80, 0x01, 0x00, 0x00});
+                }
+            });
+        tagRouter = new TagAidRouter(router, new OnDiscoveredTagListener() {
+                @Override
+                public void tagDiscovered(Tag tag) {
+                    unrouted.add(tag);
+                }
+            }, new TagAidRouter.OnRoutingFailedListener() {
+                @Override
+                public void routingFailed(Tag tag, IOException exception) {
+                    failures.add(exception);
+                }
+            });
+    }
+
+    @Test
+    public void routesCardsToTheHandlerOfTheirApplet() {
+        ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6")
+            .respond("00A40400", "9000")
+            .respond("8001", "9000");
+        tagRouter.tagDiscovered(card.getTag());
+        assertEquals(1, routed.size());
+        assertEquals(AID, routed.get(0));
+        assertEquals(0, unrouted.size());
+        assertEquals(0, failures.size());
+    }
+
+    @Test
+    public void handsUnroutedTagsToTheFallback() {
+        ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6").respond("00A40400", "6A82");
+        tagRouter.tagDiscovered(card.getTag());
+        assertEquals(0, routed.size());
+        assertEquals(1, unrouted.size());
+        assertEquals(0, failures.size());
+    }
+
+    @Test
+    public void reportsRoutingErrors() {
+        ScriptedCard card = new ScriptedCard("04A1B2C3D4E5F6").respond("00A40400", "9000");
+        Tag tag = card.getTag();
+        card.remove();
+        tagRouter.tagDiscovered(tag);
+        assertEquals(0, routed.size());
+        assertEquals(0, unrouted.size());
+        assertEquals(1, failures.size());
+    }
+}